@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.basex.core.Context;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * BenchmarkData generates a synthetic data set for the size parameters of a benchmark run, loads it
+ * the way TraceQuery does and hands out trace sessions over it. The queries and style sheets come
+ * from the configuration file named by the bench.cfg system property; the data set is written to
+ * the bench.data.dir directory, a temporary directory by default.
+ * @version 0.1
+ */
+@State(Scope.Benchmark)
+public class BenchmarkData {
+    @Param({"1000", "10000"})
+    public int nodes;
+    @Param({"3"})
+    public int fanOut;
+    @Param({"4"})
+    public int depth;
+    @Param({"xquery", "java"})
+    public String engine;
+    @Param({"100"})
+    public int batchSize;
+    @Param({"false", "true"})
+    public boolean useOidIndex;
+    private final Context context = new Context();
+    private SyntheticTraceXml dataSet;
+    private String graphMlFileName;
+    private String l1FileName;
+    private TraceGraph graph;
+    private OidIndex oidIndex;
+    private List<String> batchOids;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        String cfg = System.getProperty("bench.cfg", "");
+        String dataDir = System.getProperty("bench.data.dir", "");
+        File dir = dataDir.isEmpty() ? Files.createTempDirectory("trace-bench").toFile() : new File(dataDir);
+        dir = new File(dir, nodes + "-" + fanOut + "-" + depth);
+        dataSet = new SyntheticTraceXml(nodes, fanOut, depth, 1);
+        File cfgFile = dataSet.generate(dir, cfg.isEmpty() ? null : new File(cfg));
+        ConfigReader.loadConfigProperties(cfgFile.getPath());
+        graphMlFileName = ConfigReader.getXmlPath() + ConfigReader.getL3Graph();
+        l1FileName = ConfigReader.getXmlPath() + XmlFileList.FILE_NAME;
+        if ("java".equals(engine)) graph = GraphMlLoader.load(new File(graphMlFileName));
+        if (useOidIndex) oidIndex = OidIndex.open(ConfigReader.getXmlPath());
+        List<String> oids = dataSet.getOids(getTraceLayer());
+        batchOids = oids.subList(0, Math.min(batchSize, oids.size()));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        context.close();
+    }
+
+    /* a middle layer variable has both upstream and downstream nodes to trace */
+    private int getTraceLayer() {
+        return dataSet.getDepth() / 2;
+    }
+
+    /**
+     * getOid returns the OID traced by the single trace and stage benchmarks
+     * @return String with the OID of a variable in the middle layer
+     */
+    public String getOid() {
+        return SyntheticTraceXml.getVariableOid(getTraceLayer(), nodes / 2);
+    }
+
+    public List<String> getBatchOids() {
+        return batchOids;
+    }
+
+    /**
+     * newSession creates a trace session over the data set without a trace cache so every stage runs
+     * @return TraceSession for the calling thread
+     */
+    public TraceSession newSession() {
+        return new TraceSession(context, graphMlFileName, l1FileName, graph, Boolean.FALSE, null, oidIndex, new StageMetrics(false), 
+                null);
+    }
+
+    /**
+     * newSessionPool creates a session pool over the data set for the batch benchmark
+     * @param size int number of sessions
+     * @return SessionPool without a trace cache
+     */
+    public SessionPool newSessionPool(int size) {
+        return new SessionPool(context, graphMlFileName, l1FileName, graph, Boolean.FALSE, null, oidIndex, new StageMetrics(false), 
+                null, null, size);
+    }
+}
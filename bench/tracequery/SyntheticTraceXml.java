@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * SyntheticTraceXml generates a synthetic trace data set for the benchmarks: an L3 GraphML graph,
+ * xml-files.xml and the matching data collection ODM and tabulation and analysis Define-XML files,
+ * plus a trace-xml.cfg that points at them. The graph has depth layers of variables; the first
+ * layer is collected on Forms, the last layer is analysis and the layers between are tabulation.
+ * Each variable after the first layer is derived from fanOut variables of the layer before it, so
+ * a trace from a middle layer variable walks about fanOut^depth nodes upstream and downstream.
+ * @version 0.1
+ */
+public final class SyntheticTraceXml {
+    public static final String GRAPH_FILE = "synthetic-graph.graphml";
+    public static final String COLLECTION_FILE = "synthetic-odm.xml";
+    public static final String TABULATION_FILE = "synthetic-sdtm-define.xml";
+    public static final String ANALYSIS_FILE = "synthetic-adam-define.xml";
+    public static final String CFG_FILE = "trace-xml.cfg";
+    private static final String GRAPHML_NS = "http://graphml.graphdrawing.org/xmlns";
+    private static final String ODM_NS = "http://www.cdisc.org/ns/odm/v1.3";
+    private static final String DEFINE_NS = "http://www.cdisc.org/ns/def/v2.0";
+    private static final int ITEMS_PER_GROUP = 10;
+    private static final int GROUPS_PER_FORM = 4;
+    private final int nodes;
+    private final int fanOut;
+    private final int depth;
+    private final int[][][] sources;
+
+    /**
+     * Constructor for SyntheticTraceXml
+     * @param nodes int number of variables in each layer
+     * @param fanOut int number of variables each derived variable is derived from
+     * @param depth int number of layers, at least 3 (collection, tabulation, analysis)
+     * @param seed long seed for the random derivations so a data set can be generated again
+     */
+    public SyntheticTraceXml(int nodes, int fanOut, int depth, long seed) {
+        this.nodes = Math.max(1, nodes);
+        this.fanOut = Math.max(1, Math.min(fanOut, this.nodes));
+        this.depth = Math.max(3, depth);
+        this.sources = new int[this.depth][][];
+        Random random = new Random(seed);
+        for (int layer = 1; layer < this.depth; layer++) {
+            sources[layer] = new int[this.nodes][];
+            for (int i = 0; i < this.nodes; i++) {
+                sources[layer][i] = pickSources(random);
+            }
+        }
+    }
+
+    /* distinct random variables of the layer before */
+    private int[] pickSources(Random random) {
+        int[] picked = new int[fanOut];
+        int count = 0;
+        while (count < fanOut) {
+            int candidate = random.nextInt(nodes);
+            boolean isNew = true;
+            for (int j = 0; j < count; j++) {
+                if (picked[j] == candidate) isNew = false;
+            }
+            if (isNew) picked[count++] = candidate;
+        }
+        return picked;
+    }
+
+    /**
+     * getVariableOid returns the OID of a variable in the generated graph
+     * @param layer int layer of the variable, 0 for data collection
+     * @param index int index of the variable in the layer
+     * @return String with the ItemDef OID
+     */
+    public static String getVariableOid(int layer, int index) {
+        return String.format("IT.L%d.V%06d", layer, index);
+    }
+
+    private static String getGroupOid(int layer, int group) {
+        return String.format("IG.L%d.G%05d", layer, group);
+    }
+
+    private static String getFormOid(int form) {
+        return String.format("F.%05d", form);
+    }
+
+    /**
+     * getOids returns every variable OID of one layer
+     * @param layer int layer of the variables
+     * @return List of ItemDef OIDs
+     */
+    public List<String> getOids(int layer) {
+        List<String> oids = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            oids.add(getVariableOid(layer, i));
+        }
+        return oids;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /* the L1 file that defines the variables of a layer */
+    private String getLayerFile(int layer) {
+        if (layer == 0) return COLLECTION_FILE;
+        return layer == depth - 1 ? ANALYSIS_FILE : TABULATION_FILE;
+    }
+
+    /**
+     * generate writes the graph, xml-files.xml, the L1 files and trace-xml.cfg to a directory
+     * @param dir File directory for the data set, created if needed
+     * @param baseCfg File configuration that supplies the xquery-path and style sheets, or null
+     * @return File with the generated configuration file
+     * @throws IOException if a file cannot be written
+     */
+    public File generate(File dir, File baseCfg) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create the directory " + dir);
+        try {
+            writeGraph(new File(dir, GRAPH_FILE));
+            writeFileList(new File(dir, XmlFileList.FILE_NAME));
+            writeOdm(new File(dir, COLLECTION_FILE));
+            writeDefine(new File(dir, TABULATION_FILE), 1, depth - 1, "SDTM");
+            writeDefine(new File(dir, ANALYSIS_FILE), depth - 1, depth, "ADaM");
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to write the synthetic data set to " + dir + ". " + ex.getMessage(), ex);
+        }
+        return writeConfig(dir, baseCfg);
+    }
+
+    private static XMLStreamWriter openWriter(OutputStream os) throws XMLStreamException {
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        return writer;
+    }
+
+    private static void closeWriter(XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeEndDocument();
+        writer.close();
+    }
+
+    private void writeGraph(File file) throws IOException, XMLStreamException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            XMLStreamWriter w = openWriter(os);
+            w.writeStartElement("graphml");
+            w.writeDefaultNamespace(GRAPHML_NS);
+            writeKey(w, "type");
+            writeKey(w, "file");
+            w.writeStartElement("graph");
+            w.writeAttribute("id", "L3");
+            w.writeAttribute("edgedefault", "directed");
+            int groups = groupCount();
+            for (int form = 0; form < (groups + GROUPS_PER_FORM - 1) / GROUPS_PER_FORM; form++) {
+                writeNode(w, getFormOid(form), "Form", COLLECTION_FILE);
+            }
+            for (int layer = 0; layer < depth; layer++) {
+                for (int group = 0; group < groups; group++) {
+                    writeNode(w, getGroupOid(layer, group), "ItemGroup", getLayerFile(layer));
+                }
+                for (int i = 0; i < nodes; i++) {
+                    writeNode(w, getVariableOid(layer, i), "ItemDef", getLayerFile(layer));
+                }
+            }
+            for (int group = 0; group < groups; group++) {
+                writeEdge(w, getFormOid(group / GROUPS_PER_FORM), getGroupOid(0, group));
+            }
+            for (int layer = 0; layer < depth; layer++) {
+                for (int i = 0; i < nodes; i++) {
+                    String oid = getVariableOid(layer, i);
+                    writeEdge(w, getGroupOid(layer, i / ITEMS_PER_GROUP), oid);
+                    if (layer == 0) continue;
+                    for (int source : sources[layer][i]) {
+                        writeEdge(w, getVariableOid(layer - 1, source), oid);
+                    }
+                }
+            }
+            w.writeEndElement();
+            w.writeEndElement();
+            closeWriter(w);
+        }
+    }
+
+    private static void writeKey(XMLStreamWriter w, String name) throws XMLStreamException {
+        w.writeEmptyElement("key");
+        w.writeAttribute("id", name);
+        w.writeAttribute("for", "node");
+        w.writeAttribute("attr.name", name);
+        w.writeAttribute("attr.type", "string");
+    }
+
+    private static void writeNode(XMLStreamWriter w, String id, String type, String file) throws XMLStreamException {
+        w.writeStartElement("node");
+        w.writeAttribute("id", id);
+        writeData(w, "type", type);
+        writeData(w, "file", file);
+        w.writeEndElement();
+    }
+
+    private static void writeData(XMLStreamWriter w, String key, String value) throws XMLStreamException {
+        w.writeStartElement("data");
+        w.writeAttribute("key", key);
+        w.writeCharacters(value);
+        w.writeEndElement();
+    }
+
+    private static void writeEdge(XMLStreamWriter w, String source, String target) throws XMLStreamException {
+        w.writeEmptyElement("edge");
+        w.writeAttribute("source", source);
+        w.writeAttribute("target", target);
+    }
+
+    private void writeFileList(File file) throws IOException, XMLStreamException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            XMLStreamWriter w = openWriter(os);
+            w.writeStartElement("files");
+            writeFileEntry(w, "data-collection", COLLECTION_FILE);
+            writeFileEntry(w, "data-tabulation", TABULATION_FILE);
+            writeFileEntry(w, "data-analysis", ANALYSIS_FILE);
+            w.writeEndElement();
+            closeWriter(w);
+        }
+    }
+
+    private static void writeFileEntry(XMLStreamWriter w, String role, String fileName) throws XMLStreamException {
+        w.writeStartElement("file");
+        w.writeAttribute("role", role);
+        w.writeCharacters(fileName);
+        w.writeEndElement();
+    }
+
+    private int groupCount() {
+        return (nodes + ITEMS_PER_GROUP - 1) / ITEMS_PER_GROUP;
+    }
+
+    /* ODM 1.3 study metadata with the collection layer on Forms */
+    private void writeOdm(File file) throws IOException, XMLStreamException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            XMLStreamWriter w = openWriter(os);
+            w.writeStartElement("ODM");
+            w.writeDefaultNamespace(ODM_NS);
+            w.writeAttribute("FileOID", "SYNTHETIC.ODM");
+            w.writeAttribute("FileType", "Snapshot");
+            w.writeAttribute("ODMVersion", "1.3.2");
+            w.writeAttribute("CreationDateTime", "2017-01-01T00:00:00");
+            writeStudyStart(w, "MDV.ODM", "Data Collection");
+            int groups = groupCount();
+            for (int form = 0; form < (groups + GROUPS_PER_FORM - 1) / GROUPS_PER_FORM; form++) {
+                w.writeStartElement("FormDef");
+                w.writeAttribute("OID", getFormOid(form));
+                w.writeAttribute("Name", "Form " + form);
+                w.writeAttribute("Repeating", "No");
+                for (int group = form * GROUPS_PER_FORM; group < Math.min(groups, (form + 1) * GROUPS_PER_FORM); group++) {
+                    writeRef(w, "ItemGroupRef", "ItemGroupOID", getGroupOid(0, group), group);
+                }
+                w.writeEndElement();
+            }
+            writeGroupsAndItems(w, 0, null);
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndElement();
+            closeWriter(w);
+        }
+    }
+
+    /* Define-XML 2.0 metadata for the derived layers, each variable names its sources in a method */
+    private void writeDefine(File file, int fromLayer, int toLayer, String standard) throws IOException, XMLStreamException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            XMLStreamWriter w = openWriter(os);
+            w.writeStartElement("ODM");
+            w.writeDefaultNamespace(ODM_NS);
+            w.writeNamespace("def", DEFINE_NS);
+            w.writeAttribute("FileOID", "SYNTHETIC." + standard);
+            w.writeAttribute("FileType", "Snapshot");
+            w.writeAttribute("ODMVersion", "1.3.2");
+            w.writeAttribute("CreationDateTime", "2017-01-01T00:00:00");
+            writeStudyStart(w, "MDV." + standard, standard);
+            for (int layer = fromLayer; layer < toLayer; layer++) {
+                writeGroupsAndItems(w, layer, standard);
+            }
+            for (int layer = fromLayer; layer < toLayer; layer++) {
+                for (int i = 0; i < nodes; i++) {
+                    w.writeStartElement("MethodDef");
+                    w.writeAttribute("OID", "MT." + getVariableOid(layer, i));
+                    w.writeAttribute("Name", "Derive " + getVariableOid(layer, i));
+                    w.writeAttribute("Type", "Computation");
+                    StringBuilder text = new StringBuilder("Derived from");
+                    for (int source : sources[layer][i]) {
+                        text.append(' ').append(getVariableOid(layer - 1, source));
+                    }
+                    writeDescription(w, text.toString());
+                    w.writeEndElement();
+                }
+            }
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndElement();
+            closeWriter(w);
+        }
+    }
+
+    private static void writeStudyStart(XMLStreamWriter w, String mdvOid, String name) throws XMLStreamException {
+        w.writeStartElement("Study");
+        w.writeAttribute("OID", "SYNTHETIC");
+        w.writeStartElement("GlobalVariables");
+        writeText(w, "StudyName", "SYNTHETIC");
+        writeText(w, "StudyDescription", "Synthetic trace benchmark study");
+        writeText(w, "ProtocolName", "SYNTHETIC");
+        w.writeEndElement();
+        w.writeStartElement("MetaDataVersion");
+        w.writeAttribute("OID", mdvOid);
+        w.writeAttribute("Name", name);
+    }
+
+    private void writeGroupsAndItems(XMLStreamWriter w, int layer, String standard) throws XMLStreamException {
+        int groups = groupCount();
+        for (int group = 0; group < groups; group++) {
+            w.writeStartElement("ItemGroupDef");
+            w.writeAttribute("OID", getGroupOid(layer, group));
+            w.writeAttribute("Name", "IG" + layer + "_" + group);
+            w.writeAttribute("Repeating", "No");
+            if (standard != null) {
+                w.writeAttribute(DEFINE_NS, "Structure", "One record per subject");
+                w.writeAttribute(DEFINE_NS, "StandardOID", "STD." + standard);
+            }
+            for (int i = group * ITEMS_PER_GROUP; i < Math.min(nodes, (group + 1) * ITEMS_PER_GROUP); i++) {
+                writeRef(w, "ItemRef", "ItemOID", getVariableOid(layer, i), i - group * ITEMS_PER_GROUP);
+                if (standard != null) w.writeAttribute("MethodOID", "MT." + getVariableOid(layer, i));
+            }
+            w.writeEndElement();
+        }
+        for (int i = 0; i < nodes; i++) {
+            w.writeStartElement("ItemDef");
+            w.writeAttribute("OID", getVariableOid(layer, i));
+            w.writeAttribute("Name", "V" + layer + "_" + i);
+            w.writeAttribute("DataType", "text");
+            w.writeAttribute("Length", "20");
+            writeDescription(w, "Synthetic variable " + i + " of layer " + layer);
+            if (standard != null) {
+                w.writeEmptyElement(DEFINE_NS, "Origin");
+                w.writeAttribute("Type", "Derived");
+            }
+            w.writeEndElement();
+        }
+    }
+
+    private static void writeRef(XMLStreamWriter w, String element, String oidAttribute, String oid, int order) 
+            throws XMLStreamException {
+        w.writeEmptyElement(element);
+        w.writeAttribute(oidAttribute, oid);
+        w.writeAttribute("OrderNumber", String.valueOf(order + 1));
+        w.writeAttribute("Mandatory", "No");
+    }
+
+    private static void writeDescription(XMLStreamWriter w, String text) throws XMLStreamException {
+        w.writeStartElement("Description");
+        w.writeStartElement("TranslatedText");
+        w.writeAttribute("xml", "http://www.w3.org/XML/1998/namespace", "lang", "en");
+        w.writeCharacters(text);
+        w.writeEndElement();
+        w.writeEndElement();
+    }
+
+    private static void writeText(XMLStreamWriter w, String element, String text) throws XMLStreamException {
+        w.writeStartElement(element);
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
+
+    /* the base configuration supplies the queries and style sheets, the data settings point at the generated files */
+    private File writeConfig(File dir, File baseCfg) throws IOException {
+        Properties cfg = new Properties();
+        if (baseCfg != null) {
+            try (InputStream in = new FileInputStream(baseCfg)) {
+                cfg.load(in);
+            }
+            String baseXmlPath = cfg.getProperty("xml-path", "");
+            for (String xslKey : new String[] {"trace-xsl", "text-trace-xsl", "unreachable-xsl"}) {
+                copyStyleSheet(new File(baseXmlPath, cfg.getProperty(xslKey, "")), dir);
+            }
+        }
+        cfg.setProperty("xml-path", dir.getAbsolutePath());
+        cfg.setProperty("L3-graph", GRAPH_FILE);
+        cfg.setProperty("data-collection-file", COLLECTION_FILE);
+        cfg.setProperty("data-tabulation-file", TABULATION_FILE);
+        cfg.setProperty("data-analysis-file", ANALYSIS_FILE);
+        cfg.setProperty("variable-oid-prefix", "IT.");
+        cfg.remove("graph-db");
+        File cfgFile = new File(dir, CFG_FILE);
+        try (OutputStream os = new FileOutputStream(cfgFile)) {
+            cfg.store(os, "synthetic trace data set: " + nodes + " nodes, fan-out " + fanOut + ", depth " + depth);
+        }
+        return cfgFile;
+    }
+
+    private static void copyStyleSheet(File xsl, File dir) throws IOException {
+        if (xsl.isFile()) Files.copy(xsl.toPath(), new File(dir, xsl.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * main generates a data set from the command line:
+     * dir=path nodes=n fanout=n depth=n seed=n cfg=base configuration file
+     * @param args command-line arguments
+     */
+    public static void main(String[] args) {
+        File dir = new File("synthetic");
+        File baseCfg = null;
+        int nodes = 1000;
+        int fanOut = 3;
+        int depth = 4;
+        long seed = 1;
+        for (String argument : args) {
+            String value = argument.substring(argument.indexOf("=")+1);
+            if (argument.startsWith("dir=")) {
+                dir = new File(value);
+            } else if (argument.startsWith("cfg=")) {
+                baseCfg = value.isEmpty() ? null : new File(value);
+            } else if (argument.startsWith("nodes=")) {
+                nodes = Integer.parseInt(value);
+            } else if (argument.startsWith("fanout=")) {
+                fanOut = Integer.parseInt(value);
+            } else if (argument.startsWith("depth=")) {
+                depth = Integer.parseInt(value);
+            } else if (argument.startsWith("seed=")) {
+                seed = Long.parseLong(value);
+            } else {
+                System.err.println("Usage: SyntheticTraceXml dir=<output dir> [nodes=<n>] [fanout=<n>] [depth=<n>] [seed=<n>] [cfg=<base config>]");
+                System.exit(0);
+            }
+        }
+        try {
+            File cfgFile = new SyntheticTraceXml(nodes, fanOut, depth, seed).generate(dir, baseCfg);
+            System.out.println("Wrote the synthetic data set and " + cfgFile);
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TraceBenchmark measures complete traces: a single OID rendered to html the way a command-line
+ * trace runs, and a batch of OIDs traced in parallel the way oids= runs.
+ * @version 0.1
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TraceBenchmark {
+
+    /**
+     * Sessions holds a session for single traces, and a pool with its worker threads for batch traces
+     * so the measured batch neither starts threads nor prints timing lines
+     */
+    @State(Scope.Thread)
+    public static class Sessions {
+        TraceSession session;
+        SessionPool pool;
+        ExecutorService executor;
+        ParallelTrace batch;
+        String prefix;
+
+        @Setup(Level.Trial)
+        public void createSessions(BenchmarkData data) {
+            session = data.newSession();
+            pool = data.newSessionPool(Runtime.getRuntime().availableProcessors());
+            executor = Executors.newFixedThreadPool(pool.size());
+            batch = new ParallelTrace(pool, executor, Boolean.TRUE);
+            prefix = "bench-" + Thread.currentThread().getId() + "-";
+        }
+
+        @TearDown(Level.Trial)
+        public void stopWorkers() {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void singleTrace(BenchmarkData data, Sessions sessions) throws TraceException {
+        sessions.session.runTrace(data.getOid(), Boolean.TRUE, sessions.prefix, Boolean.FALSE);
+    }
+
+    @Benchmark
+    public int batchTrace(BenchmarkData data, Sessions sessions) {
+        return sessions.batch.run(data.getBatchOids(), Boolean.TRUE, TraceLimits.NONE);
+    }
+}
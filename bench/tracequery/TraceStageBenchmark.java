@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TraceStageBenchmark measures each stage of the trace pipeline on its own. The stages before the
+ * measured one run once per trial and their results are bound into every invocation, the result
+ * of the measured stage is released after each invocation.
+ * @version 0.1
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceStageBenchmark {
+
+    /**
+     * Stages holds a session with the results of every stage for the benchmark OID
+     */
+    @State(Scope.Thread)
+    public static class Stages {
+        TraceSession session;
+        StageResult nodeTrace;
+        StageResult nodeOids;
+        StageResult nodeDetails;
+        String xslFileName;
+        String htmlFileName;
+        String oid;
+
+        @Setup(Level.Trial)
+        public void runStages(BenchmarkData data) throws TraceException {
+            session = data.newSession();
+            oid = data.getOid();
+            session.begin(data.getOid(), Boolean.TRUE, "bench-" + Thread.currentThread().getId() + "-");
+            nodeTrace = session.runNodeTrace();
+            nodeOids = session.runGetNodeOIDs(nodeTrace);
+            nodeDetails = session.runGetNodeDetails(nodeOids);
+            xslFileName = ConfigReader.getXmlPath() + ConfigReader.getTraceXsl();
+            htmlFileName = ConfigReader.getXmlPath() + "bench-" + Thread.currentThread().getId() + "-" + ConfigReader.getTraceHtml();
+        }
+
+        @TearDown(Level.Trial)
+        public void closeStages() {
+            session.closeQueries();
+        }
+
+        int release(StageResult result) {
+            session.closeStage(result);
+            return result.getCount();
+        }
+    }
+
+    @Benchmark
+    public int nodeTrace(Stages stages) throws TraceException {
+        return stages.release(stages.session.runNodeTrace());
+    }
+
+    @Benchmark
+    public int nodeOids(Stages stages) throws TraceException {
+        return stages.release(stages.session.runGetNodeOIDs(stages.nodeTrace));
+    }
+
+    @Benchmark
+    public int nodeDetails(Stages stages) throws TraceException {
+        return stages.release(stages.session.runGetNodeDetails(stages.nodeOids));
+    }
+
+    @Benchmark
+    public int filteredNodes(Stages stages) throws TraceException {
+        return stages.release(stages.session.runGetFilteredNodes(stages.nodeDetails));
+    }
+
+    @Benchmark
+    public void xsltTransform(Stages stages) throws TraceException {
+        new XsltTrace(stages.nodeDetails.toSource(stages.oid), stages.xslFileName).transformXMLFile(stages.htmlFileName, Boolean.FALSE);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ChangeTracker works out which trace outputs are stale after an input changes, so only those traces
+ * are run again. It keeps the fingerprint of the L3 graph, xml-files.xml, each L1 file and each .xql
+ * and .xsl file, an adjacency hash of every graph node, a checksum of every definition in the L1 files,
+ * and for each trace output prefix the OID, filter option and graph nodes of the trace that wrote it.
+ * <p>
+ * A trace is stale when a query or style sheet changed, when the list of L1 files changed, when one
+ * of its nodes gained or lost an edge or was removed, or when a definition it reads (a traced node or
+ * a definition it references) changed. A change outside the definitions of an L1 file, such as the
+ * study header, makes every trace that reads that file stale. The state is saved as trace-changes.dat
+ * in the xml-path.
+ * @version 0.1
+ */
+final class ChangeTracker {
+    public static final String FILE_NAME = "trace-changes.dat";
+    private static final int MAGIC = 0x54514354;
+    private static final int VERSION = 2;
+    private final String xmlPath;
+    private final File stateFile;
+    private final Map<String, String> inputs = new LinkedHashMap<>();
+    private final Map<String, Long> nodeHashes = new HashMap<>();
+    private final Map<String, Map<String, Long>> definitions = new LinkedHashMap<>();
+    private final Map<String, Trace> traces = new LinkedHashMap<>();
+    private String graphKey = "";
+
+    private ChangeTracker(String xmlPath) {
+        this.xmlPath = xmlPath;
+        this.stateFile = new File(xmlPath + FILE_NAME);
+    }
+
+    /**
+     * Trace is the recorded trace behind one set of output files
+     */
+    static final class Trace {
+        private final String oid;
+        private final Boolean isFilter;
+        private final String prefix;
+        private final List<String> nodeIds;
+        private boolean isStale = false;
+
+        Trace(String oid, Boolean isFilter, String prefix, List<String> nodeIds) {
+            this.oid = oid;
+            this.isFilter = isFilter;
+            this.prefix = prefix;
+            this.nodeIds = nodeIds;
+        }
+
+        public String getOid() {
+            return oid;
+        }
+
+        public Boolean getFilter() {
+            return isFilter;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+    }
+
+    /**
+     * open loads the saved state from the xml-path, or starts with no recorded traces
+     * @param xmlPath String with the xml-path from the configuration file
+     * @return ChangeTracker with the saved state
+     * @throws IOException if the saved state cannot be read
+     */
+    public static ChangeTracker open(String xmlPath) throws IOException {
+        ChangeTracker tracker = new ChangeTracker(xmlPath);
+        if (tracker.stateFile.isFile()) tracker.load();
+        return tracker;
+    }
+
+    /**
+     * record keeps the trace that wrote the outputs with a prefix, replacing the trace that wrote them before
+     * @param oid String OID that was traced
+     * @param isFilter Boolean filter option of the trace
+     * @param prefix String prefix of the output files
+     * @param nodeIds List of the ids of the graph nodes in the trace
+     */
+    public synchronized void record(String oid, Boolean isFilter, String prefix, List<String> nodeIds) {
+        traces.put(prefix, new Trace(oid, isFilter, prefix, nodeIds));
+    }
+
+    /**
+     * isRecorded checks that the outputs with a prefix were last written by a trace of the OID that is not stale
+     * @param oid String OID of the trace
+     * @param isFilter Boolean filter option of the trace
+     * @param prefix String prefix of the output files
+     * @return boolean true if the trace of the outputs is recorded and current
+     */
+    public synchronized boolean isRecorded(String oid, Boolean isFilter, String prefix) {
+        Trace trace = traces.get(prefix);
+        return trace != null && !trace.isStale && trace.oid.equals(oid) && trace.isFilter.equals(isFilter);
+    }
+
+    public synchronized int getTraceCount() {
+        return traces.size();
+    }
+
+    /**
+     * update compares the current inputs with the saved state, marks the traces the changes made stale
+     * and takes the current inputs as the new state; the stale marks are kept until the trace is recorded again
+     * @param graphFile File with the L3 GraphML graph
+     * @param graph TraceGraph loaded from the graph file, or null to load it only if the graph changed
+     * @param oidIndex OidIndex over the current L1 files
+     * @param codeFiles List of the .xql and .xsl files
+     * @return List of every stale trace, in the order they were recorded
+     * @throws IOException if an input cannot be read
+     */
+    public synchronized List<Trace> update(File graphFile, TraceGraph graph, OidIndex oidIndex, List<File> codeFiles) 
+            throws IOException {
+        XmlFileList fileList = new XmlFileList(xmlPath);
+        Map<String, String> current = new LinkedHashMap<>();
+        boolean isCodeChanged = false;
+        for (File file : codeFiles) {
+            isCodeChanged |= put(current, file);
+        }
+        isCodeChanged |= put(current, fileList.getListFile());
+        boolean isGraphChanged = put(current, graphFile);
+        Set<String> changedFiles = new HashSet<>();
+        for (String reference : fileList.getReferences()) {
+            if (put(current, fileList.resolve(reference))) changedFiles.add(reference);
+        }
+        // with no saved state every input counts as changed but there are no traces to mark
+        isCodeChanged |= !current.keySet().equals(inputs.keySet());
+
+        Set<String> changedNodes = new HashSet<>();
+        if (isGraphChanged || !graphFile.getPath().equals(graphKey)) {
+            Map<String, Long> hashes = hashNodes(graph == null ? GraphMlLoader.load(graphFile) : graph);
+            for (Map.Entry<String, Long> saved : nodeHashes.entrySet()) {
+                if (!saved.getValue().equals(hashes.get(saved.getKey()))) changedNodes.add(saved.getKey());
+            }
+            nodeHashes.clear();
+            nodeHashes.putAll(hashes);
+            graphKey = graphFile.getPath();
+        }
+
+        Set<String> changedOids = new HashSet<>();
+        Set<String> wholeFileOids = new HashSet<>();
+        Map<String, Map<String, Long>> currentDefinitions = new LinkedHashMap<>();
+        for (String reference : fileList.getReferences()) {
+            Map<String, Long> saved = definitions.get(reference);
+            if (saved != null && !changedFiles.contains(reference)) {
+                currentDefinitions.put(reference, saved);
+                continue;
+            }
+            Map<String, Long> checksums = oidIndex.checksumDefinitions(reference);
+            currentDefinitions.put(reference, checksums);
+            if (saved == null) continue;
+            Set<String> oids = new HashSet<>(saved.keySet());
+            oids.addAll(checksums.keySet());
+            for (String oid : oids) {
+                if (!oid.isEmpty() && !equal(saved.get(oid), checksums.get(oid))) changedOids.add(oid);
+            }
+            if (!equal(saved.get(""), checksums.get(""))) {
+                wholeFileOids.addAll(oids);
+            }
+        }
+        definitions.clear();
+        definitions.putAll(currentDefinitions);
+        inputs.clear();
+        inputs.putAll(current);
+
+        List<Trace> stale = new ArrayList<>();
+        for (Trace trace : traces.values()) {
+            if (!trace.isStale) trace.isStale = isCodeChanged || isStale(trace, changedNodes, changedOids, wholeFileOids, oidIndex);
+            if (trace.isStale) stale.add(trace);
+        }
+        return stale;
+    }
+
+    private static boolean isStale(Trace trace, Set<String> changedNodes, Set<String> changedOids, Set<String> wholeFileOids, 
+            OidIndex oidIndex) {
+        for (String id : trace.nodeIds) {
+            if (changedNodes.contains(id) || changedOids.contains(id) || wholeFileOids.contains(id)) return true;
+        }
+        if (changedOids.isEmpty() && wholeFileOids.isEmpty()) return false;
+        // the referenced definitions, such as MethodDefs and CodeLists, are read from the current index
+        for (String oid : oidIndex.getDefinitionOids(trace.nodeIds)) {
+            if (changedOids.contains(oid) || wholeFileOids.contains(oid)) return true;
+        }
+        return false;
+    }
+
+    private static boolean equal(Long saved, Long current) {
+        return saved == null ? current == null : saved.equals(current);
+    }
+
+    /* add the fingerprint of a file to the state, returns true if it differs from the saved fingerprint */
+    private boolean put(Map<String, String> state, File file) throws IOException {
+        String path = file.getAbsolutePath();
+        FileFingerprint saved = FileFingerprint.parse(inputs.get(path));
+        if (!file.isFile()) {
+            state.put(path, "");
+            return saved != null;
+        }
+        if (saved != null && saved.matches(file)) {
+            state.put(path, FileFingerprint.of(file.length(), file.lastModified(), saved.getChecksum()).toString());
+            return false;
+        }
+        state.put(path, FileFingerprint.of(file).toString());
+        return true;
+    }
+
+    /* a hash of the ids of the upstream and of the downstream neighbours of each node, independent of the edge order */
+    private static Map<String, Long> hashNodes(TraceGraph graph) {
+        Map<String, Long> hashes = new HashMap<>(graph.nodeCount() * 2);
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            long hash = graph.adjacencyHash(node, true) + Long.rotateLeft(graph.adjacencyHash(node, false), 17);
+            hashes.put(graph.idOf(node), hash);
+        }
+        return hashes;
+    }
+
+    /**
+     * save writes the state, replacing the saved file only once it is complete
+     * @throws IOException if the state cannot be written
+     */
+    public synchronized void save() throws IOException {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inputs.size());
+            for (Map.Entry<String, String> input : inputs.entrySet()) {
+                out.writeUTF(input.getKey());
+                out.writeUTF(input.getValue());
+            }
+            out.writeUTF(graphKey);
+            out.writeInt(nodeHashes.size());
+            for (Map.Entry<String, Long> node : nodeHashes.entrySet()) {
+                out.writeUTF(node.getKey());
+                out.writeLong(node.getValue());
+            }
+            out.writeInt(definitions.size());
+            for (Map.Entry<String, Map<String, Long>> file : definitions.entrySet()) {
+                out.writeUTF(file.getKey());
+                out.writeInt(file.getValue().size());
+                for (Map.Entry<String, Long> definition : file.getValue().entrySet()) {
+                    out.writeUTF(definition.getKey());
+                    out.writeLong(definition.getValue());
+                }
+            }
+            out.writeInt(traces.size());
+            for (Trace trace : traces.values()) {
+                out.writeUTF(trace.oid);
+                out.writeBoolean(trace.isFilter);
+                out.writeUTF(trace.prefix);
+                out.writeBoolean(trace.isStale);
+                out.writeInt(trace.nodeIds.size());
+                for (String id : trace.nodeIds) {
+                    out.writeUTF(id);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* a state file in another format is ignored, so every input counts as changed */
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            for (int i = in.readInt(); i > 0; i--) {
+                inputs.put(in.readUTF(), in.readUTF());
+            }
+            graphKey = in.readUTF();
+            for (int i = in.readInt(); i > 0; i--) {
+                nodeHashes.put(in.readUTF(), in.readLong());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String reference = in.readUTF();
+                Map<String, Long> checksums = new HashMap<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    checksums.put(in.readUTF(), in.readLong());
+                }
+                definitions.put(reference, checksums);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String oid = in.readUTF();
+                Boolean isFilter = in.readBoolean();
+                String prefix = in.readUTF();
+                boolean isStale = in.readBoolean();
+                List<String> nodeIds = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    nodeIds.add(in.readUTF());
+                }
+                Trace trace = new Trace(oid, isFilter, prefix, Collections.unmodifiableList(nodeIds));
+                trace.isStale = isStale;
+                traces.put(prefix, trace);
+            }
+        }
+    }
+}
@@ -19,6 +19,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -47,6 +51,19 @@ class ConfigReader {
   private static Boolean verbose;
   private static String odmXsdFile;
   private static String defineXsdFile;
+  private static String variableOidPrefix;
+  private static String graphDb;
+  private static String traceEngine;
+  private static String graphSnapshot;
+  private static String traceCacheMemoryMb;
+  private static String traceCacheDiskMb;
+  private static String oidIndex;
+  private static String traceText;
+  private static String traceXml;
+  private static String changeTracking;
+  private static String lowMemory;
+  private static String heapBudgetMb;
+  private static final Map<String, String[]> shards = new LinkedHashMap<>();
    
   /** 
    * loadConfigProperties reads the configuration file and loads them into property variables
@@ -62,8 +79,8 @@ class ConfigReader {
 	prop.load(input);
 
 	// get the property value and print it out
-	xqueryPath = prop.getProperty("xquery-path");
-	xmlPath = prop.getProperty("xml-path");
+	xqueryPath = withSeparator(prop.getProperty("xquery-path"));
+	xmlPath = withSeparator(prop.getProperty("xml-path"));
 	traceNode = prop.getProperty("trace-node");
 	traceNodeUnique = prop.getProperty("trace-node-unique");
 	traceNodeOid = prop.getProperty("trace-node-oid");
@@ -81,6 +98,19 @@ class ConfigReader {
         dataAnalysis = prop.getProperty("data-analysis-file");
         odmXsdFile = prop.getProperty("odm-xsd-file");
         defineXsdFile = prop.getProperty("define-xsd-file");
+        variableOidPrefix = prop.getProperty("variable-oid-prefix");
+        graphDb = prop.getProperty("graph-db");
+        traceEngine = prop.getProperty("trace-engine");
+        graphSnapshot = prop.getProperty("graph-snapshot");
+        traceCacheMemoryMb = prop.getProperty("trace-cache-memory-mb");
+        traceCacheDiskMb = prop.getProperty("trace-cache-disk-mb");
+        oidIndex = prop.getProperty("oid-index");
+        traceText = prop.getProperty("trace-text");
+        traceXml = prop.getProperty("trace-xml");
+        changeTracking = prop.getProperty("change-tracking");
+        lowMemory = prop.getProperty("low-memory");
+        heapBudgetMb = prop.getProperty("heap-budget-mb");
+        loadShards(prop);
 
     } catch (FileNotFoundException ex) {
         System.out.println("Configuration file not found: " + cfgFileName);
@@ -99,6 +129,26 @@ class ConfigReader {
 	}
   }
 
+    /* shards=A,B lists the graphs of a pooled trace, each with A.xml-path and A.L3-graph */
+    private static void loadShards(Properties prop) {
+        shards.clear();
+        String names = prop.getProperty("shards");
+        if (names == null) return;
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            shards.put(name, new String[] {withSeparator(prop.getProperty(name + ".xml-path")), prop.getProperty(name + ".L3-graph")});
+        }
+    }
+
+    /* paths are completed when loaded so the getters can be called concurrently by trace sessions */
+    private static String withSeparator(String path) {
+        if (path == null || path.isEmpty() || path.endsWith(File.separator)) {
+            return path;
+        }
+        return path + File.separator;
+    }
+
     public static String getUnreachableXsl() {
         if (unreachableXsl == null) {
             return "";
@@ -130,8 +180,6 @@ class ConfigReader {
     public static String getXqueryPath() {
         if (xqueryPath == null) {
             return "";
-        } else if (!xqueryPath.endsWith(File.separator)) {
-            xqueryPath += File.separator;
         }
         return xqueryPath;
     }
@@ -139,8 +187,6 @@ class ConfigReader {
     public static String getXmlPath() {
         if (xmlPath == null) {
             return "";
-        } else if (!xmlPath.endsWith(File.separator)) {
-            xmlPath += File.separator;
         }
         return xmlPath;
     }
@@ -201,6 +247,22 @@ class ConfigReader {
         return traceHtml;
     }  
 
+    /* text trace rendered with text-trace-xsl in the same pass as trace-html, empty for none */
+    public static String getTraceText() {
+        if (traceText == null) {
+            return "";
+        }
+        return traceText;
+    }
+
+    /* raw node details XML written in the same pass as trace-html, empty for none */
+    public static String getTraceXml() {
+        if (traceXml == null) {
+            return "";
+        }
+        return traceXml;
+    }
+
     public static String getDataCollection() {
         if (dataCollection == null) {
             return "";
@@ -235,6 +297,104 @@ class ConfigReader {
         return defineXsdFile;
     }
 
+    /* graph node ids starting with this prefix are traced by oid=* (ItemDef OIDs by CDISC convention) */
+    public static String getVariableOidPrefix() {
+        if (variableOidPrefix == null) {
+            return "IT.";
+        }
+        return variableOidPrefix;
+    }
+
+    /* name of the persistent BaseX database holding the graph and L1 files, empty to read the files directly */
+    public static String getGraphDb() {
+        if (graphDb == null) {
+            return "";
+        }
+        return graphDb;
+    }
+
+    /* engine that walks the graph for the trace-node stage: xquery (trace-node.xql), java or index (lineage index) */
+    public static String getTraceEngine() {
+        if (traceEngine == null) {
+            return "xquery";
+        }
+        return traceEngine;
+    }
+
+    /* true if the java engine reads the graph from a memory-mapped snapshot written next to the GraphML */
+    public static Boolean getGraphSnapshot() {
+        return Boolean.valueOf(graphSnapshot);
+    }
+
+    /* megabytes of finished traces kept in memory, 0 disables the memory cache */
+    public static long getTraceCacheMemoryMb() {
+        return getMegabytes("trace-cache-memory-mb", traceCacheMemoryMb, 64);
+    }
+
+    /* megabytes of finished traces kept under xml-path/trace-cache, 0 disables the disk cache */
+    public static long getTraceCacheDiskMb() {
+        return getMegabytes("trace-cache-disk-mb", traceCacheDiskMb, 256);
+    }
+
+    /* a size in megabytes from the configuration file, a value that is not a whole number ends the run */
+    private static long getMegabytes(String key, String value, long defaultMb) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultMb;
+        }
+        try {
+            long megabytes = Long.parseLong(value.trim());
+            if (megabytes >= 0) return megabytes;
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        System.out.println("The " + key + " value " + value + " in the configuration file is not a whole number of megabytes.");
+        System.exit(0);
+        return defaultMb;
+    }
+
+    /* true if the node OID and details stages read subsets of the L1 files built from the OID index */
+    public static Boolean getOidIndex() {
+        return Boolean.valueOf(oidIndex);
+    }
+
+    /* true if single and batch traces record their nodes so refresh re-traces only the outputs made stale by a change */
+    public static Boolean getChangeTracking() {
+        return Boolean.valueOf(changeTracking);
+    }
+
+    /* true to keep the graph ids and node labels off the heap, stream the L1 files through the OID index and
+       never load the GraphML into a main-memory database, the OID stage gets the records of the traced nodes */
+    public static Boolean getLowMemory() {
+        return Boolean.valueOf(lowMemory);
+    }
+
+    /* megabytes of live heap the low-memory mode keeps to before starting another trace, 0 for the maximum heap */
+    public static long getHeapBudgetMb() {
+        return getMegabytes("heap-budget-mb", heapBudgetMb, 0);
+    }
+
+    /* names of the graph shards traced together, empty when the configuration has one graph */
+    public static List<String> getShards() {
+        return new ArrayList<>(shards.keySet());
+    }
+
+    /* xml-path of a shard, holding its graph, xml-files.xml and L1 files */
+    public static String getShardXmlPath(String shard) {
+        String xmlPath = shards.get(shard)[0];
+        if (xmlPath == null) {
+            return "";
+        }
+        return xmlPath;
+    }
+
+    public static String getShardL3Graph(String shard) {
+        String graph = shards.get(shard)[1];
+        if (graph == null) {
+            return "";
+        }
+        return graph;
+    }
+
     public static Boolean getVerbose() {
         return verbose;
     }
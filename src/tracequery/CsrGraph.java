@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * CsrGraph holds the graph on the heap as primitive offset and edge arrays for both edge directions.
+ * @version 0.1
+ */
+final class CsrGraph implements TraceGraph {
+    private final NodeIdTable ids;
+    private final int[] outOffsets;
+    private final int[] outEdges;
+    private final int[] inOffsets;
+    private final int[] inEdges;
+    private final String nodeNamespace;
+    private final NodeRecords records;
+
+    /**
+     * Constructor for CsrGraph builds the forward and reverse adjacency arrays from an edge list
+     * @param ids NodeIdTable with the interned node ids
+     * @param sources int[] source node of each edge
+     * @param targets int[] target node of each edge
+     * @param edgeCount int number of edges used in the sources and targets arrays
+     * @param nodeNamespace String namespace of the GraphML node elements
+     */
+    public CsrGraph(NodeIdTable ids, int[] sources, int[] targets, int edgeCount, String nodeNamespace) {
+        this(ids, sources, targets, edgeCount, nodeNamespace, null);
+    }
+
+    /**
+     * Constructor for CsrGraph that also keeps the data of the GraphML nodes
+     * @param records NodeRecords with the data of each node, or null
+     */
+    CsrGraph(NodeIdTable ids, int[] sources, int[] targets, int edgeCount, String nodeNamespace, NodeRecords records) {
+        this.ids = ids;
+        this.nodeNamespace = nodeNamespace;
+        this.records = records;
+        int nodeCount = ids.size();
+        outOffsets = new int[nodeCount + 1];
+        inOffsets = new int[nodeCount + 1];
+        outEdges = new int[edgeCount];
+        inEdges = new int[edgeCount];
+        toCsr(sources, targets, edgeCount, outOffsets, outEdges);
+        toCsr(targets, sources, edgeCount, inOffsets, inEdges);
+    }
+
+    /**
+     * Constructor for CsrGraph from arrays that are already in compressed sparse row form
+     */
+    CsrGraph(NodeIdTable ids, int[] outOffsets, int[] outEdges, int[] inOffsets, int[] inEdges, String nodeNamespace) {
+        this.ids = ids;
+        this.outOffsets = outOffsets;
+        this.outEdges = outEdges;
+        this.inOffsets = inOffsets;
+        this.inEdges = inEdges;
+        this.nodeNamespace = nodeNamespace;
+        this.records = null;
+    }
+
+    /* counting sort of the edges by their from node */
+    private static void toCsr(int[] from, int[] to, int edgeCount, int[] offsets, int[] edges) {
+        for (int i = 0; i < edgeCount; i++) {
+            offsets[from[i] + 1]++;
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        int[] next = new int[offsets.length - 1];
+        System.arraycopy(offsets, 0, next, 0, next.length);
+        for (int i = 0; i < edgeCount; i++) {
+            edges[next[from[i]]++] = to[i];
+        }
+    }
+
+    @Override
+    public int nodeCount() {
+        return ids.size();
+    }
+
+    @Override
+    public int indexOf(String id) {
+        return ids.indexOf(id);
+    }
+
+    @Override
+    public String idOf(int node) {
+        return ids.idOf(node);
+    }
+
+    @Override
+    public int outStart(int node) {
+        return outOffsets[node];
+    }
+
+    @Override
+    public int outEnd(int node) {
+        return outOffsets[node + 1];
+    }
+
+    @Override
+    public int outTarget(int position) {
+        return outEdges[position];
+    }
+
+    @Override
+    public int inStart(int node) {
+        return inOffsets[node];
+    }
+
+    @Override
+    public int inEnd(int node) {
+        return inOffsets[node + 1];
+    }
+
+    @Override
+    public int inSource(int position) {
+        return inEdges[position];
+    }
+
+    @Override
+    public String getNodeNamespace() {
+        return nodeNamespace;
+    }
+
+    @Override
+    public NodeRecords getNodeRecords() {
+        return records;
+    }
+
+    @Override
+    public int edgeCount() {
+        return outEdges.length;
+    }
+
+    /* the arrays are shared, not copied, callers must not modify them */
+    NodeIdTable getIds() {
+        return ids;
+    }
+
+    int[] getOutOffsets() {
+        return outOffsets;
+    }
+
+    int[] getOutEdges() {
+        return outEdges;
+    }
+
+    int[] getInOffsets() {
+        return inOffsets;
+    }
+
+    int[] getInEdges() {
+        return inEdges;
+    }
+}
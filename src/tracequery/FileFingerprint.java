@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * FileFingerprint records the size, modification time and CRC32 checksum of a source file so
+ * derived artifacts (databases, snapshots, indexes) can tell when they are stale.
+ * @version 0.1
+ */
+final class FileFingerprint {
+    private final long size;
+    private final long modified;
+    private final long checksum;
+
+    private FileFingerprint(long size, long modified, long checksum) {
+        this.size = size;
+        this.modified = modified;
+        this.checksum = checksum;
+    }
+
+    /**
+     * of reads the file to compute its fingerprint
+     * @param file File to fingerprint
+     * @return FileFingerprint for the current contents of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static FileFingerprint of(File file) throws IOException {
+        return new FileFingerprint(file.length(), file.lastModified(), checksum(file));
+    }
+
+    /**
+     * parse restores a fingerprint saved with toString
+     * @param value String in the size:modified:checksum format, may be null
+     * @return FileFingerprint or null if the value is missing or malformed
+     */
+    public static FileFingerprint parse(String value) {
+        if (value == null) return null;
+        String[] parts = value.split(":");
+        if (parts.length != 3) return null;
+        try {
+            return new FileFingerprint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * matches tests the file against this fingerprint; the checksum is only computed when the
+     * size matches but the modification time differs, so unchanged files are not re-read
+     * @param file File to compare
+     * @return true if the file content is unchanged
+     * @throws IOException if the file cannot be read
+     */
+    public boolean matches(File file) throws IOException {
+        if (!file.isFile() || file.length() != size) return false;
+        if (file.lastModified() == modified) return true;
+        return checksum(file) == checksum;
+    }
+
+    /**
+     * of restores a fingerprint from its parts
+     */
+    public static FileFingerprint of(long size, long modified, long checksum) {
+        return new FileFingerprint(size, modified, checksum);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /* CRC32 of the file contents */
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; (n = in.read(buffer)) > 0;) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public String toString() {
+        return size + ":" + modified + ":" + checksum;
+    }
+}
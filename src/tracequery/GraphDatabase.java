@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.basex.core.BaseXException;
+import org.basex.core.Context;
+import org.basex.core.MainOptions;
+import org.basex.core.cmd.Add;
+import org.basex.core.cmd.CreateDB;
+import org.basex.core.cmd.Open;
+import org.basex.core.cmd.Optimize;
+
+/**
+ * GraphDatabase keeps the L3 graph and the L1 files listed in xml-files.xml in a persistent BaseX
+ * database with text, attribute and token indexes so the trace queries probe indexes instead of
+ * parsing the files on each run. The queries reach the documents with doc("database/path").
+ * The fingerprint of each source file is saved next to the graph and the database is rebuilt
+ * when any source file changes.
+ * @version 0.1
+ */
+class GraphDatabase {
+    private static final String SOURCES_SUFFIX = ".sources";
+    private final Context context;
+    private final String name;
+    private final String xmlPath;
+    private final String graphFileName;
+
+    /**
+     * Constructor for GraphDatabase
+     * @param context BaseX Context used to create and open the database
+     * @param name String with the database name from the graph-db configuration option
+     * @param xmlPath String with the xml-path that contains the graph and xml-files.xml
+     * @param graphFileName String with the L3 graph file name relative to the xml-path
+     */
+    public GraphDatabase(Context context, String name, String xmlPath, String graphFileName) {
+        this.context = context;
+        this.name = name;
+        this.xmlPath = xmlPath;
+        this.graphFileName = graphFileName;
+    }
+
+    /**
+     * open opens the database, building it first if it is missing or any source file has changed
+     * @return true if the database was rebuilt
+     * @throws IOException if the source files cannot be read or the database cannot be created
+     */
+    public boolean open() throws IOException {
+        if (isCurrent()) {
+            try {
+                new Open(name).execute(context);
+                return false;
+            } catch (BaseXException ex) {
+                System.err.println("Unable to open the " + name + " database, rebuilding it. " + ex.getMessage());
+            }
+        }
+        build();
+        return true;
+    }
+
+    /**
+     * build (re)creates the database from the graph and the L1 files and records their fingerprints
+     * @throws IOException if the source files cannot be read or the database cannot be created
+     */
+    public void build() throws IOException {
+        XmlFileList l1Files = new XmlFileList(xmlPath);
+        context.options.set(MainOptions.MAINMEM, false);
+        context.options.set(MainOptions.TEXTINDEX, true);
+        context.options.set(MainOptions.ATTRINDEX, true);
+        context.options.set(MainOptions.TOKENINDEX, true);
+        new CreateDB(name).execute(context);
+        new Add(graphFileName, xmlPath + graphFileName).execute(context);
+        // point xml-files.xml at the database copies of the L1 files
+        Map<String, String> referenceMap = new HashMap<>();
+        for (String reference : l1Files.getReferences()) {
+            File l1File = l1Files.resolve(reference);
+            if (!l1File.isFile()) {
+                System.err.println("Warning: L1 file " + l1File + " listed in " + XmlFileList.FILE_NAME + " was not found.");
+                continue;
+            }
+            String resourcePath = getResourcePath(reference);
+            new Add(resourcePath, l1File.getPath()).execute(context);
+            referenceMap.put(reference, name + "/" + resourcePath);
+        }
+        new Add(XmlFileList.FILE_NAME, l1Files.toMappedXml(referenceMap)).execute(context);
+        // build the indexes once after all documents are added
+        new Optimize().execute(context);
+        saveSources(l1Files);
+    }
+
+    /**
+     * getGraphPath returns the doc() path of the L3 graph in the database
+     * @return String to bind in place of the GraphML file name
+     */
+    public String getGraphPath() {
+        return name + "/" + graphFileName;
+    }
+
+    /**
+     * getL1ListPath returns the doc() path of xml-files.xml in the database
+     * @return String to bind in place of the xml-files.xml file name
+     */
+    public String getL1ListPath() {
+        return name + "/" + XmlFileList.FILE_NAME;
+    }
+
+    /* database path of an L1 file: relative references keep their path, absolute ones keep the file name */
+    private static String getResourcePath(String reference) {
+        File file = new File(reference);
+        return file.isAbsolute() ? file.getName() : reference.replace('\\', '/');
+    }
+
+    /* the database is current when the same source files are listed and none has changed */
+    private boolean isCurrent() throws IOException {
+        File sourcesFile = getSourcesFile();
+        if (!sourcesFile.isFile()) return false;
+        Properties sources = new Properties();
+        try (InputStream in = new FileInputStream(sourcesFile)) {
+            sources.load(in);
+        }
+        List<File> files = getSourceFiles(new XmlFileList(xmlPath));
+        if (files.size() != sources.size()) return false;
+        for (File file : files) {
+            FileFingerprint fingerprint = FileFingerprint.parse(sources.getProperty(file.getAbsolutePath()));
+            if (fingerprint == null || !fingerprint.matches(file)) return false;
+        }
+        return true;
+    }
+
+    private void saveSources(XmlFileList l1Files) throws IOException {
+        Properties sources = new Properties();
+        for (File file : getSourceFiles(l1Files)) {
+            sources.setProperty(file.getAbsolutePath(), FileFingerprint.of(file).toString());
+        }
+        try (OutputStream os = new FileOutputStream(getSourcesFile())) {
+            sources.store(os, "Source files of the " + name + " database");
+        }
+    }
+
+    private List<File> getSourceFiles(XmlFileList l1Files) {
+        List<File> files = new ArrayList<>();
+        files.add(new File(xmlPath + graphFileName));
+        files.add(l1Files.getListFile());
+        for (File file : l1Files.getFiles()) {
+            if (file.isFile()) files.add(file);
+        }
+        return files;
+    }
+
+    private File getSourcesFile() {
+        return new File(xmlPath + name + SOURCES_SUFFIX);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * GraphMlLoader streams a GraphML file with StAX and builds a CsrGraph from its node and edge elements.
+ * Edges are read as directed from source (upstream) to target (downstream). With low-memory
+ * set in the configuration the node ids are interned off the heap and the data of every node is kept
+ * as NodeRecords, with its keys and labels interned off the heap, for the OID stage of the trace.
+ * @version 0.1
+ */
+final class GraphMlLoader {
+    private final NodeIdTable ids = ConfigReader.getLowMemory() ? new NodeIdTable(new StringPool(1 << 16)) 
+            : new NodeIdTable(1 << 16);
+    private final NodeRecords records = ConfigReader.getLowMemory() ? new NodeRecords() : null;
+    private int[] sources = new int[1 << 16];
+    private int[] targets = new int[1 << 16];
+    private int edgeCount = 0;
+    private String nodeNamespace = "";
+    private int node = -1;
+
+    private GraphMlLoader() {
+    }
+
+    /**
+     * load parses the GraphML file into a CsrGraph
+     * @param graphFile File with the L3 GraphML graph
+     * @return CsrGraph with every node and edge in the file
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static CsrGraph load(File graphFile) throws IOException {
+        GraphMlLoader loader = new GraphMlLoader();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(graphFile), 1 << 16)) {
+            loader.parse(in);
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to parse the graph " + graphFile + ". " + ex.getMessage(), ex);
+        }
+        return new CsrGraph(loader.ids, loader.sources, loader.targets, loader.edgeCount, loader.nodeNamespace, 
+                loader.records);
+    }
+
+    private void parse(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+            String name = reader.getLocalName();
+            if ("node".equals(name)) {
+                String id = reader.getAttributeValue(null, "id");
+                node = id == null ? -1 : ids.add(id);
+                if (ids.size() == 1 && reader.getNamespaceURI() != null) nodeNamespace = reader.getNamespaceURI();
+                if (records != null && node >= 0) records.startNode(node);
+            } else if ("key".equals(name) && records != null) {
+                String domain = reader.getAttributeValue(null, "for");
+                if (!"edge".equals(domain) && !"graph".equals(domain)) records.addKey(toKeyElement(reader));
+            } else if ("data".equals(name) && node >= 0 && records != null) {
+                String key = reader.getAttributeValue(null, "key");
+                String text = readText(reader);
+                if (key != null) records.addData(node, key, text);
+            } else if ("edge".equals(name)) {
+                node = -1;
+                String source = reader.getAttributeValue(null, "source");
+                String target = reader.getAttributeValue(null, "target");
+                if (source != null && target != null) addEdge(ids.add(source), ids.add(target));
+            }
+        }
+        reader.close();
+    }
+
+    /* the key element with its attributes, without any default value */
+    private static String toKeyElement(XMLStreamReader reader) {
+        StringBuilder key = new StringBuilder("<key");
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            key.append(' ').append(reader.getAttributeLocalName(i)).append("=\"")
+                    .append(NodeRecords.escape(reader.getAttributeValue(i))).append('"');
+        }
+        return key.append("/>").toString();
+    }
+
+    /* the text of a data element, including the text of any elements nested in it */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        for (int depth = 1; depth > 0;) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString();
+    }
+
+    private void addEdge(int source, int target) {
+        if (edgeCount == sources.length) {
+            sources = Arrays.copyOf(sources, edgeCount * 2);
+            targets = Arrays.copyOf(targets, edgeCount * 2);
+        }
+        sources[edgeCount] = source;
+        targets[edgeCount] = target;
+        edgeCount++;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * GraphSnapshot is a compiled binary form of the L3 graph written next to the GraphML file and
+ * memory-mapped with FileChannel.map, so later runs trace straight from the mapped file without
+ * parsing XML or building the graph on the heap. The snapshot carries a format version and the
+ * fingerprint of the GraphML it was compiled from, a stale or older snapshot is rebuilt.
+ * <p>
+ * Layout, all values big-endian: a fixed header, then the int sections outOffsets[n + 1],
+ * outEdges[e], inOffsets[n + 1], inEdges[e], idOffsets[n + 1] and the id hash table, then the
+ * UTF-8 string pool with the node ids followed by the GraphML node namespace.
+ * @version 0.1
+ */
+final class GraphSnapshot implements TraceGraph {
+    public static final String SUFFIX = ".tqs";
+    private static final int MAGIC = 0x54515347;
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 64;
+    private final ByteBuffer buffer;
+    private final int nodeCount;
+    private final int edgeCount;
+    private final IntBuffer outOffsets;
+    private final IntBuffer outEdges;
+    private final IntBuffer inOffsets;
+    private final IntBuffer inEdges;
+    private final IntBuffer idOffsets;
+    private final IntBuffer table;
+    private final int poolStart;
+    private final String nodeNamespace;
+
+    private GraphSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        nodeCount = buffer.getInt(8);
+        edgeCount = buffer.getInt(12);
+        int tableSize = buffer.getInt(16);
+        int position = HEADER_BYTES;
+        outOffsets = section(position, nodeCount + 1);
+        position += (nodeCount + 1) * 4;
+        outEdges = section(position, edgeCount);
+        position += edgeCount * 4;
+        inOffsets = section(position, nodeCount + 1);
+        position += (nodeCount + 1) * 4;
+        inEdges = section(position, edgeCount);
+        position += edgeCount * 4;
+        idOffsets = section(position, nodeCount + 1);
+        position += (nodeCount + 1) * 4;
+        table = section(position, tableSize);
+        poolStart = position + tableSize * 4;
+        nodeNamespace = readString(idOffsets.get(nodeCount), buffer.getInt(44));
+    }
+
+    private IntBuffer section(int position, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.limit(position + length * 4);
+        return view.slice().asIntBuffer();
+    }
+
+    /**
+     * open maps the snapshot of the graph file, compiling it first if it is missing or stale
+     * @param graphFile File with the L3 GraphML graph
+     * @return TraceGraph backed by the mapped snapshot
+     * @throws IOException if the graph or snapshot cannot be read or written
+     */
+    public static GraphSnapshot open(File graphFile) throws IOException {
+        File snapshotFile = new File(graphFile.getPath() + SUFFIX);
+        if (snapshotFile.isFile()) {
+            GraphSnapshot snapshot = map(snapshotFile);
+            if (snapshot != null && snapshot.isCurrent(graphFile)) return snapshot;
+        }
+        return map(write(GraphMlLoader.load(graphFile), FileFingerprint.of(graphFile), snapshotFile));
+    }
+
+    /* map a snapshot file, returns null if it is not a snapshot in the current format */
+    private static GraphSnapshot map(File snapshotFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "r")) {
+            if (file.length() < HEADER_BYTES) return null;
+            MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) return null;
+            return new GraphSnapshot(mapped);
+        }
+    }
+
+    private boolean isCurrent(File graphFile) throws IOException {
+        return FileFingerprint.of(buffer.getLong(20), buffer.getLong(28), buffer.getLong(36)).matches(graphFile);
+    }
+
+    /**
+     * write compiles a graph into a snapshot file, replacing the file only once it is complete
+     * @param graph CsrGraph loaded from the GraphML file
+     * @param source FileFingerprint of the GraphML file
+     * @param snapshotFile File to write
+     * @return File that was written, the temporary file if the old snapshot is still mapped and cannot be replaced
+     * @throws IOException if the snapshot cannot be written
+     */
+    static File write(CsrGraph graph, FileFingerprint source, File snapshotFile) throws IOException {
+        int nodeCount = graph.nodeCount();
+        NodeIdTable ids = graph.getIds();
+        byte[][] idBytes = new byte[nodeCount][];
+        int[] idOffsets = new int[nodeCount + 1];
+        for (int i = 0; i < nodeCount; i++) {
+            idBytes[i] = ids.idOf(i).getBytes(StandardCharsets.UTF_8);
+            idOffsets[i + 1] = idOffsets[i] + idBytes[i].length;
+        }
+        byte[] namespace = graph.getNodeNamespace().getBytes(StandardCharsets.UTF_8);
+        int[] table = new int[NodeIdTable.tableSize(nodeCount)];
+        int mask = table.length - 1;
+        for (int i = 0; i < nodeCount; i++) {
+            int slot = NodeIdTable.mix(ids.idOf(i).hashCode()) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+        long size = HEADER_BYTES + 4L * (3L * (nodeCount + 1) + 2L * graph.edgeCount() + table.length) 
+                + idOffsets[nodeCount] + namespace.length;
+        if (size > Integer.MAX_VALUE) throw new IOException("The graph is too large for a snapshot (" + size + " bytes).");
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodeCount);
+            out.writeInt(graph.edgeCount());
+            out.writeInt(table.length);
+            out.writeLong(source.getSize());
+            out.writeLong(source.getModified());
+            out.writeLong(source.getChecksum());
+            out.writeInt(namespace.length);
+            out.write(new byte[HEADER_BYTES - out.size()]);
+            writeInts(out, graph.getOutOffsets());
+            writeInts(out, graph.getOutEdges());
+            writeInts(out, graph.getInOffsets());
+            writeInts(out, graph.getInEdges());
+            writeInts(out, idOffsets);
+            writeInts(out, table);
+            for (byte[] id : idBytes) {
+                out.write(id);
+            }
+            out.write(namespace);
+        }
+        if (snapshotFile.exists() && !snapshotFile.delete() || !tempFile.renameTo(snapshotFile)) {
+            System.err.println("Warning: unable to replace the graph snapshot " + snapshotFile + ", using " + tempFile);
+            return tempFile;
+        }
+        return snapshotFile;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(poolStart + offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    @Override
+    public int indexOf(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int mask = table.limit() - 1;
+        for (int slot = NodeIdTable.mix(id.hashCode()) & mask; table.get(slot) != 0; slot = (slot + 1) & mask) {
+            int node = table.get(slot) - 1;
+            if (idEquals(node, key)) return node;
+        }
+        return -1;
+    }
+
+    private boolean idEquals(int node, byte[] key) {
+        int start = idOffsets.get(node);
+        if (idOffsets.get(node + 1) - start != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(poolStart + start + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String idOf(int node) {
+        int start = idOffsets.get(node);
+        return readString(start, idOffsets.get(node + 1) - start);
+    }
+
+    @Override
+    public int outStart(int node) {
+        return outOffsets.get(node);
+    }
+
+    @Override
+    public int outEnd(int node) {
+        return outOffsets.get(node + 1);
+    }
+
+    @Override
+    public int outTarget(int position) {
+        return outEdges.get(position);
+    }
+
+    @Override
+    public int inStart(int node) {
+        return inOffsets.get(node);
+    }
+
+    @Override
+    public int inEnd(int node) {
+        return inOffsets.get(node + 1);
+    }
+
+    @Override
+    public int inSource(int position) {
+        return inEdges.get(position);
+    }
+
+    @Override
+    public String getNodeNamespace() {
+        return nodeNamespace;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.util.Arrays;
+
+/**
+ * GraphTracer walks a TraceGraph breadth-first from a start node, upstream along the incoming edges
+ * and downstream along the outgoing edges. The queue, visit marks and result are allocated once per
+ * tracer and reused, visits are reset by advancing a generation counter rather than clearing arrays.
+ * A tracer is not thread-safe; use one per thread over the same read-only graph.
+ * @version 0.1
+ */
+final class GraphTracer implements NodeTracer {
+    private final TraceGraph graph;
+    private final int[] queue;
+    private final int[] result;
+    private final int[] upMarks;
+    private final int[] downMarks;
+    private int generation = 0;
+    private int resultCount = 0;
+    private boolean isTruncated = false;
+
+    /**
+     * Constructor for GraphTracer
+     * @param graph TraceGraph to trace
+     */
+    public GraphTracer(TraceGraph graph) {
+        this.graph = graph;
+        int nodeCount = graph.nodeCount();
+        queue = new int[nodeCount];
+        result = new int[nodeCount];
+        upMarks = new int[nodeCount];
+        downMarks = new int[nodeCount];
+    }
+
+    @Override
+    public TraceGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * trace finds the nodes upstream and downstream of the start node within the limits, the walk
+     * stops as soon as the walk limit is reached
+     * @param start int index of the node to trace
+     * @param limits TraceLimits with the direction, depth and walk limit
+     * @return int number of nodes in the trace, read them with getNode
+     */
+    @Override
+    public int trace(int start, TraceLimits limits) {
+        if (++generation == 0) resetMarks();
+        resultCount = 0;
+        isTruncated = false;
+        result[resultCount++] = start;
+        int limit = limits.getWalkLimit();
+        if (limits.isUpstream()) walk(start, upMarks, true, limits.getMaxDepth(), limit);
+        if (limits.isDownstream() && !isTruncated) walk(start, downMarks, false, limits.getMaxDepth(), limit);
+        return resultCount;
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return isTruncated;
+    }
+
+    /**
+     * getNode returns a node of the last trace in breadth-first order, the start node first
+     * @param i int position in the trace
+     * @return int node index
+     */
+    @Override
+    public int getNode(int i) {
+        return result[i];
+    }
+
+    public int getNodeCount() {
+        return resultCount;
+    }
+
+    /* breadth-first walk one level at a time, nodes at maxDepth hops are reported but not expanded */
+    private void walk(int start, int[] marks, boolean isUpstream, int maxDepth, int limit) {
+        int head = 0;
+        int tail = 0;
+        int depth = 0;
+        marks[start] = generation;
+        queue[tail++] = start;
+        int levelEnd = tail;
+        while (head < tail) {
+            if (head == levelEnd) {
+                depth++;
+                levelEnd = tail;
+            }
+            if (maxDepth > 0 && depth >= maxDepth) return;
+            int node = queue[head++];
+            int end = isUpstream ? graph.inEnd(node) : graph.outEnd(node);
+            for (int e = isUpstream ? graph.inStart(node) : graph.outStart(node); e < end; e++) {
+                int next = isUpstream ? graph.inSource(e) : graph.outTarget(e);
+                if (marks[next] == generation) continue;
+                marks[next] = generation;
+                queue[tail++] = next;
+                // a node reached in both directions is only reported once
+                if (!isUpstream && upMarks[next] == generation) continue;
+                if (resultCount == limit) {
+                    isTruncated = true;
+                    return;
+                }
+                result[resultCount++] = next;
+            }
+        }
+    }
+
+    private void resetMarks() {
+        Arrays.fill(upMarks, 0);
+        Arrays.fill(downMarks, 0);
+        generation = 1;
+    }
+}
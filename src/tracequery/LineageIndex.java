@@ -0,0 +1,430 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * LineageIndex holds the precomputed upstream and downstream lineage of every variable node, so a
+ * trace is read from the index instead of walking the graph. Each lineage is a sorted set of node
+ * indexes stored as a varint count followed by varint deltas; identical sets, such as the shared
+ * upstream of the variables derived from the same sources, are stored once.
+ * The index is saved next to the GraphML file with the in and out adjacency hash of every node.
+ * When the graph changes only the lineages that pass through a node whose edges changed are
+ * computed again, the others are carried over. The lineages are computed in parallel.
+ * The index implements TraceGraph by delegating to the graph it was built from.
+ * @version 0.1
+ */
+final class LineageIndex implements TraceGraph {
+    public static final String FILE_EXTENSION = ".tql";
+    private static final int MAGIC = 0x54514C49;
+    private static final int VERSION = 1;
+    private static final int NOT_INDEXED = -1;
+    private static final int CHUNK_SIZE = 256;
+    private final TraceGraph graph;
+    private final int[] upOffsets;
+    private final int[] downOffsets;
+    private final long[] inHashes;
+    private final long[] outHashes;
+    private byte[] sets = new byte[0];
+    private int indexedCount = 0;
+    private int computedCount = 0;
+    private int sharedCount = 0;
+
+    private LineageIndex(TraceGraph graph) {
+        this.graph = graph;
+        int nodeCount = graph.nodeCount();
+        upOffsets = new int[nodeCount];
+        downOffsets = new int[nodeCount];
+        inHashes = new long[nodeCount];
+        outHashes = new long[nodeCount];
+        Arrays.fill(upOffsets, NOT_INDEXED);
+        Arrays.fill(downOffsets, NOT_INDEXED);
+    }
+
+    /**
+     * open loads the lineage index saved for the graph and brings it up to date, computing the
+     * lineages that changed with the graph and saving the index again if any were computed
+     * @param graphFile File with the L3 GraphML graph, the index is saved as graphFile.tql
+     * @param graph TraceGraph loaded from the file
+     * @param variablePrefix String prefix of the node ids that are indexed
+     * @return LineageIndex for every variable node in the graph
+     * @throws IOException if the index cannot be saved
+     */
+    public static LineageIndex open(File graphFile, TraceGraph graph, String variablePrefix) throws IOException {
+        LineageIndex index = new LineageIndex(graph);
+        IntStream.range(0, graph.nodeCount()).parallel().forEach(node -> {
+            index.inHashes[node] = graph.adjacencyHash(node, true);
+            index.outHashes[node] = graph.adjacencyHash(node, false);
+        });
+        File indexFile = new File(graphFile.getPath() + FILE_EXTENSION);
+        SavedIndex saved = SavedIndex.load(indexFile);
+        byte[][] upSets = new byte[graph.nodeCount()][];
+        byte[][] downSets = new byte[graph.nodeCount()][];
+        if (saved != null) index.carryOver(saved, upSets, downSets);
+        index.compute(variablePrefix, upSets, downSets);
+        index.pack(upSets, downSets);
+        if (index.computedCount > 0 || saved == null || saved.ids.length != graph.nodeCount()) index.save(indexFile);
+        return index;
+    }
+
+    /* a lineage can be reused if no node on it, nor the variable itself, had its edges in that direction changed */
+    private void carryOver(SavedIndex saved, byte[][] upSets, byte[][] downSets) {
+        int[] oldToNew = new int[saved.ids.length];
+        boolean[] inChanged = new boolean[saved.ids.length];
+        boolean[] outChanged = new boolean[saved.ids.length];
+        for (int old = 0; old < saved.ids.length; old++) {
+            int node = graph.indexOf(saved.ids[old]);
+            oldToNew[old] = node;
+            inChanged[old] = node < 0 || inHashes[node] != saved.inHashes[old];
+            outChanged[old] = node < 0 || outHashes[node] != saved.outHashes[old];
+        }
+        IntStream.range(0, saved.ids.length).parallel().forEach(old -> {
+            int node = oldToNew[old];
+            if (node < 0) return;
+            upSets[node] = remap(saved, saved.upOffsets[old], inChanged[old], inChanged, oldToNew);
+            downSets[node] = remap(saved, saved.downOffsets[old], outChanged[old], outChanged, oldToNew);
+        });
+    }
+
+    private static byte[] remap(SavedIndex saved, int offset, boolean isStartChanged, boolean[] changed, int[] oldToNew) {
+        if (offset == NOT_INDEXED || isStartChanged) return null;
+        int[] oldNodes = decode(saved.sets, offset, new int[16]);
+        int count = oldNodes[0];
+        int[] nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            int old = oldNodes[i + 1];
+            if (changed[old]) return null;
+            nodes[i] = oldToNew[old];
+        }
+        Arrays.sort(nodes);
+        return encode(nodes, count);
+    }
+
+    /* compute the missing lineages in parallel; a chunk of nodes takes a walker from the idle ones and returns it
+       when done, so there is at most one walker, with its two arrays of nodeCount ints, per worker thread */
+    private void compute(String variablePrefix, byte[][] upSets, byte[][] downSets) {
+        int nodeCount = graph.nodeCount();
+        int chunks = (nodeCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int[] computed = new int[chunks];
+        Queue<Walker> idleWalkers = new ConcurrentLinkedQueue<>();
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            Walker walker = null;
+            for (int node = chunk * CHUNK_SIZE; node < Math.min(nodeCount, (chunk + 1) * CHUNK_SIZE); node++) {
+                if (!graph.idOf(node).startsWith(variablePrefix)) {
+                    upSets[node] = null;
+                    downSets[node] = null;
+                    continue;
+                }
+                if (upSets[node] != null && downSets[node] != null) continue;
+                if (walker == null) walker = idleWalkers.poll();
+                if (walker == null) walker = new Walker(graph);
+                if (upSets[node] == null) upSets[node] = walker.lineage(node, true);
+                if (downSets[node] == null) downSets[node] = walker.lineage(node, false);
+                computed[chunk]++;
+            }
+            if (walker != null) idleWalkers.add(walker);
+        });
+        for (int count : computed) {
+            computedCount += count;
+        }
+    }
+
+    /* append every set to one array, identical sets share an offset */
+    private void pack(byte[][] upSets, byte[][] downSets) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        Map<ByteBuffer, Integer> offsets = new HashMap<>();
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (upSets[node] == null) continue;
+            upOffsets[node] = offsetOf(upSets[node], packed, offsets);
+            downOffsets[node] = offsetOf(downSets[node], packed, offsets);
+            indexedCount++;
+        }
+        sets = packed.toByteArray();
+    }
+
+    private int offsetOf(byte[] set, ByteArrayOutputStream packed, Map<ByteBuffer, Integer> offsets) {
+        ByteBuffer key = ByteBuffer.wrap(set);
+        Integer offset = offsets.get(key);
+        if (offset != null) {
+            sharedCount++;
+            return offset;
+        }
+        offset = packed.size();
+        packed.write(set, 0, set.length);
+        offsets.put(key, offset);
+        return offset;
+    }
+
+    /**
+     * isIndexed tests whether the lineage of a node is in the index
+     * @param node int node index
+     * @return boolean true for the variable nodes
+     */
+    public boolean isIndexed(int node) {
+        return upOffsets[node] != NOT_INDEXED;
+    }
+
+    /**
+     * upstream reads the sorted upstream lineage of a node
+     * @param node int node index of an indexed node
+     * @param buffer int array to reuse, a larger one is returned if needed
+     * @return int array with the count at 0 followed by the node indexes
+     */
+    public int[] upstream(int node, int[] buffer) {
+        return decode(sets, upOffsets[node], buffer);
+    }
+
+    /**
+     * downstream reads the sorted downstream lineage of a node
+     * @param node int node index of an indexed node
+     * @param buffer int array to reuse, a larger one is returned if needed
+     * @return int array with the count at 0 followed by the node indexes
+     */
+    public int[] downstream(int node, int[] buffer) {
+        return decode(sets, downOffsets[node], buffer);
+    }
+
+    public int getIndexedCount() {
+        return indexedCount;
+    }
+
+    public int getComputedCount() {
+        return computedCount;
+    }
+
+    public int getSharedCount() {
+        return sharedCount;
+    }
+
+    public int getSetBytes() {
+        return sets.length;
+    }
+
+    private static byte[] encode(int[] nodes, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count + 4);
+        writeVarint(out, count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarint(out, nodes[i] - previous);
+            previous = nodes[i];
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int[] decode(byte[] sets, int offset, int[] buffer) {
+        int[] position = {offset};
+        int count = readVarint(sets, position);
+        if (buffer.length < count + 1) buffer = new int[count + 1];
+        buffer[0] = count;
+        int value = 0;
+        for (int i = 1; i <= count; i++) {
+            value += readVarint(sets, position);
+            buffer[i] = value;
+        }
+        return buffer;
+    }
+
+    private static int readVarint(byte[] sets, int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = sets[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+            shift += 7;
+        }
+    }
+
+    /* written to a temporary file first so a concurrent reader never sees half an index */
+    private void save(File indexFile) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(graph.nodeCount());
+            for (int node = 0; node < graph.nodeCount(); node++) {
+                out.writeUTF(graph.idOf(node));
+                out.writeLong(inHashes[node]);
+                out.writeLong(outHashes[node]);
+                out.writeInt(upOffsets[node]);
+                out.writeInt(downOffsets[node]);
+            }
+            out.writeInt(sets.length);
+            out.write(sets);
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public int nodeCount() {
+        return graph.nodeCount();
+    }
+
+    @Override
+    public int indexOf(String id) {
+        return graph.indexOf(id);
+    }
+
+    @Override
+    public String idOf(int node) {
+        return graph.idOf(node);
+    }
+
+    @Override
+    public int edgeCount() {
+        return graph.edgeCount();
+    }
+
+    @Override
+    public int outStart(int node) {
+        return graph.outStart(node);
+    }
+
+    @Override
+    public int outEnd(int node) {
+        return graph.outEnd(node);
+    }
+
+    @Override
+    public int outTarget(int position) {
+        return graph.outTarget(position);
+    }
+
+    @Override
+    public int inStart(int node) {
+        return graph.inStart(node);
+    }
+
+    @Override
+    public int inEnd(int node) {
+        return graph.inEnd(node);
+    }
+
+    @Override
+    public int inSource(int position) {
+        return graph.inSource(position);
+    }
+
+    @Override
+    public String getNodeNamespace() {
+        return graph.getNodeNamespace();
+    }
+
+    @Override
+    public NodeRecords getNodeRecords() {
+        return graph.getNodeRecords();
+    }
+
+    /* the index as it was saved, with node indexes of the graph it was built from */
+    private static final class SavedIndex {
+        private String[] ids;
+        private long[] inHashes;
+        private long[] outHashes;
+        private int[] upOffsets;
+        private int[] downOffsets;
+        private byte[] sets;
+
+        private static SavedIndex load(File indexFile) {
+            if (!indexFile.isFile()) return null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+                SavedIndex saved = new SavedIndex();
+                int nodeCount = in.readInt();
+                saved.ids = new String[nodeCount];
+                saved.inHashes = new long[nodeCount];
+                saved.outHashes = new long[nodeCount];
+                saved.upOffsets = new int[nodeCount];
+                saved.downOffsets = new int[nodeCount];
+                for (int node = 0; node < nodeCount; node++) {
+                    saved.ids[node] = in.readUTF();
+                    saved.inHashes[node] = in.readLong();
+                    saved.outHashes[node] = in.readLong();
+                    saved.upOffsets[node] = in.readInt();
+                    saved.downOffsets[node] = in.readInt();
+                }
+                saved.sets = new byte[in.readInt()];
+                in.readFully(saved.sets);
+                return saved;
+            } catch (IOException ex) {
+                // a damaged index is built again from the graph
+                System.err.println("Rebuilding the lineage index " + indexFile + ". " + ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /* breadth-first walk in one direction with work arrays reused across the nodes and chunks it walks */
+    private static final class Walker {
+        private final TraceGraph graph;
+        private final int[] marks;
+        private final int[] queue;
+        private int generation = 0;
+
+        private Walker(TraceGraph graph) {
+            this.graph = graph;
+            marks = new int[graph.nodeCount()];
+            queue = new int[graph.nodeCount()];
+        }
+
+        private byte[] lineage(int start, boolean isUpstream) {
+            generation++;
+            int head = 0;
+            int tail = 0;
+            marks[start] = generation;
+            queue[tail++] = start;
+            while (head < tail) {
+                int node = queue[head++];
+                int end = isUpstream ? graph.inEnd(node) : graph.outEnd(node);
+                for (int e = isUpstream ? graph.inStart(node) : graph.outStart(node); e < end; e++) {
+                    int next = isUpstream ? graph.inSource(e) : graph.outTarget(e);
+                    if (marks[next] == generation) continue;
+                    marks[next] = generation;
+                    queue[tail++] = next;
+                }
+            }
+            // the start node is not part of its own lineage
+            int[] nodes = Arrays.copyOfRange(queue, 1, tail);
+            Arrays.sort(nodes);
+            return encode(nodes, nodes.length);
+        }
+    }
+}
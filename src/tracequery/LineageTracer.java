@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * LineageTracer answers traces from a LineageIndex, reading the upstream and downstream lineage
+ * of the start node instead of walking the graph. Nodes that are not in the index, such as Forms
+ * and ItemGroups, depth-limited traces, which need the hop counts, and paged traces, whose cursor
+ * counts positions in the breadth-first walk order, are traced by walking the graph.
+ * @version 0.1
+ */
+final class LineageTracer implements NodeTracer {
+    private final LineageIndex index;
+    private GraphTracer graphTracer;
+    private int[] upstream = new int[64];
+    private int[] downstream = new int[64];
+    private int[] result = new int[64];
+    private boolean isWalked = false;
+
+    /**
+     * Constructor for LineageTracer
+     * @param index LineageIndex shared by the tracers
+     */
+    public LineageTracer(LineageIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public TraceGraph getGraph() {
+        return index;
+    }
+
+    /**
+     * trace reads the lineage of the start node, the start node first, then the upstream nodes and
+     * then the downstream nodes that are not also upstream; a paged or depth-limited trace walks the
+     * graph so its nodes are in the same order as a GraphTracer trace
+     * @param start int index of the node to trace
+     * @param limits TraceLimits with the direction, depth and walk limit
+     * @return int number of nodes in the trace, read them with getNode
+     */
+    @Override
+    public int trace(int start, TraceLimits limits) {
+        if (!index.isIndexed(start) || limits.getMaxDepth() > 0 || limits.isPaged()) {
+            if (graphTracer == null) graphTracer = new GraphTracer(index);
+            isWalked = true;
+            return graphTracer.trace(start, limits);
+        }
+        isWalked = false;
+        int upCount = 0;
+        int downCount = 0;
+        if (limits.isUpstream()) {
+            upstream = index.upstream(start, upstream);
+            upCount = upstream[0];
+        }
+        if (limits.isDownstream()) {
+            downstream = index.downstream(start, downstream);
+            downCount = downstream[0];
+        }
+        if (result.length < upCount + downCount + 1) result = new int[upCount + downCount + 1];
+        int count = 0;
+        result[count++] = start;
+        System.arraycopy(upstream, 1, result, count, upCount);
+        count += upCount;
+        // both lineages are sorted so the nodes on a cycle are skipped in one merge pass
+        int u = 1;
+        for (int d = 1; d <= downCount; d++) {
+            int node = downstream[d];
+            while (u <= upCount && upstream[u] < node) u++;
+            if (u <= upCount && upstream[u] == node) continue;
+            result[count++] = node;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return isWalked && graphTracer.isTruncated();
+    }
+
+    @Override
+    public int getNode(int i) {
+        return isWalked ? graphTracer.getNode(i) : result[i];
+    }
+}
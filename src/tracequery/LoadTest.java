@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * LoadTest replays a workload of OIDs through the trace pipeline to measure throughput and latency
+ * under sustained load. In closed-loop mode a fixed number of workers trace back to back; in open-loop
+ * mode traces are started on a schedule, at a fixed rate or at the recorded timestamps of the workload,
+ * and the latency of a trace is measured from its scheduled start so a backlog counts against it.
+ * The report gives the latency percentiles, the GC pauses during the run and the latency of each stage.
+ * @version 0.1
+ */
+final class LoadTest {
+    public static final String MODE_OPEN = "open";
+    public static final String MODE_CLOSED = "closed";
+    private final SessionPool pool;
+    private final StageMetrics metrics;
+    private final Boolean isFilter;
+    private final TraceLimits limits;
+    private final Boolean isCached;
+    private final AtomicInteger failCount = new AtomicInteger();
+    private final AtomicLong maxPauseMillis = new AtomicLong();
+    private final NotificationListener gcListener = this::onGc;
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+
+    /**
+     * Constructor for LoadTest
+     * @param pool SessionPool with one session per worker thread
+     * @param metrics StageMetrics that keeps the stage records for the per-stage report
+     * @param isFilter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @param limits TraceLimits applied to every trace
+     * @param isCached Boolean true if the sessions answer repeated traces from the trace cache
+     */
+    public LoadTest(SessionPool pool, StageMetrics metrics, Boolean isFilter, TraceLimits limits, Boolean isCached) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.isFilter = isFilter;
+        this.limits = limits;
+        this.isCached = isCached;
+    }
+
+    /**
+     * Request is one trace of the workload with the offset it was recorded at
+     */
+    static final class Request {
+        private final String oid;
+        private final long offsetNanos;
+
+        Request(String oid, long offsetNanos) {
+            this.oid = oid;
+            this.offsetNanos = offsetNanos;
+        }
+
+        String getOid() {
+            return oid;
+        }
+
+        /* nanoseconds after the first request of the workload, -1 if the workload has no timestamps */
+        long getOffsetNanos() {
+            return offsetNanos;
+        }
+    }
+
+    /**
+     * readWorkload reads a workload file with one OID per line, optionally preceded by a timestamp
+     * and a comma or tab; timestamps are epoch milliseconds or ISO-8601 instants
+     * @param workloadFile File with the workload, blank lines and lines starting with # are skipped
+     * @return List of the requests in the order of the file
+     * @throws IOException if the file cannot be read or a timestamp cannot be parsed
+     */
+    public static List<Request> readWorkload(File workloadFile) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        long firstMillis = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(workloadFile), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null;) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int separator = line.indexOf('\t') >= 0 ? line.indexOf('\t') : line.indexOf(',');
+                if (separator < 0) {
+                    requests.add(new Request(line, -1));
+                    continue;
+                }
+                long millis = parseTimestamp(line.substring(0, separator).trim(), workloadFile);
+                if (firstMillis < 0) firstMillis = millis;
+                requests.add(new Request(line.substring(separator + 1).trim(), TimeUnit.MILLISECONDS.toNanos(millis - firstMillis)));
+            }
+        }
+        return requests;
+    }
+
+    private static long parseTimestamp(String timestamp, File workloadFile) throws IOException {
+        try {
+            return timestamp.matches("\\d+") ? Long.parseLong(timestamp) : Instant.parse(timestamp).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            throw new IOException("Unable to read the timestamp " + timestamp + " in " + workloadFile + ". " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * run replays the workload and prints the report
+     * @param requests List of the workload requests
+     * @param mode String open or closed
+     * @param rate double traces started per second in open-loop mode, 0 to use the recorded timestamps
+     * @param durationSeconds long seconds to keep replaying the workload from the start, 0 to replay it once
+     */
+    public void run(List<Request> requests, String mode, double rate, long durationSeconds) {
+        if (MODE_OPEN.equals(mode) && rate <= 0 && requests.get(0).getOffsetNanos() < 0) {
+            throw new IllegalArgumentException("The open-loop load test needs a rate or a workload with timestamps.");
+        }
+        List<NotificationEmitter> emitters = watchGc();
+        long[] gcStart = getGcTotals();
+        long deadline = durationSeconds > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+        long runStart = System.nanoTime();
+        if (MODE_OPEN.equals(mode)) {
+            runOpenLoop(requests, rate, durationSeconds > 0, deadline);
+        } else {
+            runClosedLoop(requests, durationSeconds > 0, deadline);
+        }
+        long elapsed = ParallelTrace.elapsedMillis(runStart);
+        long[] gcEnd = getGcTotals();
+        unwatchGc(emitters);
+        printReport(mode, rate, elapsed, gcEnd[0] - gcStart[0], gcEnd[1] - gcStart[1]);
+    }
+
+    /* workers trace back to back, the concurrency is the size of the session pool */
+    private void runClosedLoop(final List<Request> requests, final boolean isRepeat, final long deadline) {
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(pool.size());
+        for (int w = 0; w < pool.size(); w++) {
+            executor.submit(() -> {
+                for (int i = next.getAndIncrement(); isRepeat ? System.nanoTime() < deadline : i < requests.size(); 
+                        i = next.getAndIncrement()) {
+                    trace(requests.get(i % requests.size()).oid, System.nanoTime());
+                }
+                return null;
+            });
+        }
+        awaitTermination(executor);
+    }
+
+    /* traces are started on schedule whether or not the earlier traces have finished */
+    private void runOpenLoop(List<Request> requests, double rate, boolean isRepeat, long deadline) {
+        ExecutorService executor = Executors.newFixedThreadPool(pool.size());
+        long span = rate > 0 ? 0 : requests.get(requests.size() - 1).getOffsetNanos() + TimeUnit.SECONDS.toNanos(1);
+        long start = System.nanoTime();
+        for (int i = 0; isRepeat || i < requests.size(); i++) {
+            Request request = requests.get(i % requests.size());
+            long offset = rate > 0 ? (long) (i * 1e9 / rate) : request.getOffsetNanos() + i / requests.size() * span;
+            final long scheduled = start + offset;
+            if (scheduled >= deadline) break;
+            for (long wait = scheduled - System.nanoTime(); wait > 0; wait = scheduled - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            final String oid = request.oid;
+            executor.submit(() -> trace(oid, scheduled));
+        }
+        awaitTermination(executor);
+    }
+
+    /* trace one OID on a session borrowed from the pool, each worker thread writes its own output files */
+    private void trace(String oid, long startNanos) {
+        TraceSession session = null;
+        try {
+            session = pool.borrow();
+            session.runTrace(oid, isFilter, limits, "load-" + Thread.currentThread().getId() + "-", Boolean.FALSE);
+            addLatency(System.nanoTime() - startNanos);
+        } catch (TraceException ex) {
+            failCount.incrementAndGet();
+            System.err.println(oid + ": " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            failCount.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            // an unexpected failure is counted too, the executor would otherwise drop it unseen
+            failCount.incrementAndGet();
+            System.err.println(oid + ": " + ex);
+        } finally {
+            if (session != null) pool.release(session);
+        }
+    }
+
+    private synchronized void addLatency(long nanos) {
+        if (latencyCount == latencies.length) latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        latencies[latencyCount++] = nanos;
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for the load test traces to finish...");
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* listen for the end of each collection to find the longest pause */
+    private List<NotificationEmitter> watchGc() {
+        List<NotificationEmitter> emitters = new ArrayList<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+                emitters.add((NotificationEmitter) gc);
+            }
+        }
+        return emitters;
+    }
+
+    private void onGc(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        maxPauseMillis.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+    }
+
+    private void unwatchGc(List<NotificationEmitter> emitters) {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(gcListener);
+            } catch (ListenerNotFoundException ex) {
+                System.err.println("Unable to remove the GC listener. " + ex.getMessage());
+            }
+        }
+    }
+
+    /* total collections and collection milliseconds of every collector */
+    private static long[] getGcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private void printReport(String mode, double rate, long elapsedMillis, long gcCount, long gcMillis) {
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int traceCount = latencyCount + failCount.get();
+        String load = MODE_OPEN.equals(mode) ? (rate > 0 ? "open loop at " + rate + " traces/s" : "open loop at the recorded times") 
+                : "closed loop";
+        System.out.println("Load test: " + load + " on " + pool.size() + " threads, " + traceCount + " traces (" + failCount.get() 
+                + " failed) in " + elapsedMillis + " ms, " + String.format(Locale.ROOT, "%.1f", latencyCount * 1000.0 / Math.max(1, elapsedMillis)) 
+                + " traces/s, trace cache " + (isCached ? "on" : "off"));
+        System.out.println("Latency ms: " + formatPercentiles(sorted));
+        System.out.println("GC: " + gcCount + " collections, " + gcMillis + " ms total, " + maxPauseMillis.get() + " ms longest pause");
+        // the stages of a trace answered from the trace cache are not run, so they are not in the breakdown
+        Map<String, List<Long>> stages = new LinkedHashMap<>();
+        for (StageMetrics.Record record : metrics.getRecords()) {
+            List<Long> times = stages.get(record.getStage());
+            if (times == null) {
+                times = new ArrayList<>();
+                stages.put(record.getStage(), times);
+            }
+            times.add(record.getTotalNanos());
+        }
+        for (Map.Entry<String, List<Long>> stage : stages.entrySet()) {
+            long[] times = new long[stage.getValue().size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = stage.getValue().get(i);
+            }
+            Arrays.sort(times);
+            System.out.println("  " + stage.getKey() + " (" + times.length + "): " + formatPercentiles(times));
+        }
+    }
+
+    /* p50, p95, p99 and max of sorted nanosecond times, in milliseconds */
+    private static String formatPercentiles(long[] sorted) {
+        if (sorted.length == 0) return "no traces";
+        return String.format(Locale.ROOT, "p50 %.2f, p95 %.2f, p99 %.2f, max %.2f", millis(percentile(sorted, 0.50)), 
+                millis(percentile(sorted, 0.95)), millis(percentile(sorted, 0.99)), millis(sorted[sorted.length - 1]));
+    }
+
+    /* nearest-rank percentile */
+    static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
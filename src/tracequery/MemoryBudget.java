@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * MemoryBudget keeps the traces of the low-memory mode within a heap budget. Before a trace starts it
+ * reads the live heap left by the last garbage collection; while that is over the budget and other
+ * traces are running, the trace waits for one of them to finish, so the concurrency falls as the
+ * heap fills instead of the heap growing past the budget. One trace always runs, however large.
+ * It also reports the peak heap and the memory held outside the heap.
+ * @version 0.1
+ */
+final class MemoryBudget {
+    private static final long MB = 1L << 20;
+    private final long budgetBytes;
+    private int activeCount = 0;
+    private int waitCount = 0;
+
+    /**
+     * Constructor for MemoryBudget
+     * @param budgetBytes long bytes of live heap to stay within, 0 for the maximum heap
+     */
+    public MemoryBudget(long budgetBytes) {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        this.budgetBytes = budgetBytes <= 0 || budgetBytes > maxHeap ? maxHeap : budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * acquire waits until the live heap is within the budget or no other trace is running
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        boolean isWaiting = false;
+        while (activeCount > 0 && getLiveHeap() > budgetBytes) {
+            if (!isWaiting) waitCount++;
+            isWaiting = true;
+            wait(100);
+        }
+        activeCount++;
+    }
+
+    /**
+     * release ends a trace started with acquire
+     */
+    public synchronized void release() {
+        activeCount--;
+        notifyAll();
+    }
+
+    /* the heap in use after the last collection of each heap pool, the live data rather than the garbage */
+    static long getLiveHeap() {
+        long live = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            MemoryUsage usage = pool.getCollectionUsage();
+            live += usage == null ? pool.getUsage().getUsed() : usage.getUsed();
+        }
+        return live;
+    }
+
+    /* the sum of the peak of each heap pool, an upper bound of the peak heap */
+    static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * getReport summarizes the peak heap against the budget and the memory held outside the heap
+     * @return String with the memory report
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder("Peak heap ").append(getPeakHeap() / MB).append(" MB, budget ")
+                .append(budgetBytes / MB).append(" MB of ").append(Runtime.getRuntime().maxMemory() / MB).append(" MB maximum heap");
+        report.append(", string pool ").append(StringPool.getAllocatedBytes() / MB).append(" MB off-heap");
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            report.append(", ").append(pool.getName()).append(" buffers ").append(pool.getMemoryUsed() / MB).append(" MB");
+        }
+        if (waitCount > 0) report.append(", ").append(waitCount).append(" traces waited for the heap");
+        return report.toString();
+    }
+}
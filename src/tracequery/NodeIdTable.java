@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.util.Arrays;
+
+/**
+ * NodeIdTable interns node ids into dense int indexes using open addressing over primitive arrays.
+ * In the low-memory mode the ids are kept in an off-heap StringPool instead of as Strings on the heap.
+ * @version 0.1
+ */
+final class NodeIdTable {
+    private String[] ids;
+    private int[] slots;
+    private int size = 0;
+    private final StringPool pool;
+
+    /**
+     * Constructor for NodeIdTable
+     * @param expectedSize int number of ids expected, the table grows as needed
+     */
+    public NodeIdTable(int expectedSize) {
+        ids = new String[Math.max(16, expectedSize)];
+        slots = new int[tableSize(expectedSize)];
+        pool = null;
+    }
+
+    /**
+     * Constructor for NodeIdTable that keeps the ids in a string pool, the pool handles are the indexes
+     * @param pool StringPool that interns the ids
+     */
+    public NodeIdTable(StringPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * add interns an id
+     * @param id String to intern
+     * @return int index of the id, the existing index if it was already added
+     */
+    public int add(String id) {
+        if (pool != null) return pool.add(id);
+        int slot = findSlot(id);
+        if (slots[slot] != 0) return slots[slot] - 1;
+        if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+        ids[size] = id;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) rehash();
+        return size - 1;
+    }
+
+    /**
+     * indexOf looks up an id without adding it
+     * @param id String to look up
+     * @return int index of the id or -1 if it has not been added
+     */
+    public int indexOf(String id) {
+        if (pool != null) return pool.indexOf(id);
+        return slots[findSlot(id)] - 1;
+    }
+
+    public String idOf(int index) {
+        if (pool != null) return pool.get(index);
+        return ids[index];
+    }
+
+    public int size() {
+        if (pool != null) return pool.size();
+        return size;
+    }
+
+    /* linear probing, slots hold index + 1 so 0 marks an empty slot */
+    private int findSlot(String id) {
+        int mask = slots.length - 1;
+        int slot = mix(id.hashCode()) & mask;
+        while (slots[slot] != 0 && !ids[slots[slot] - 1].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        int mask = slots.length - 1;
+        for (int entry : old) {
+            if (entry == 0) continue;
+            int slot = mix(ids[entry - 1].hashCode()) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = entry;
+        }
+    }
+
+    static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    static int tableSize(int expectedSize) {
+        int tableSize = 32;
+        while (tableSize < expectedSize * 2) tableSize <<= 1;
+        return tableSize;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * NodeRecords keeps the data of each GraphML node so the records of the traced nodes can be handed to
+ * the OID query without reading the GraphML file again. The data keys and values, such as the labels
+ * and node types that repeat across the graph, are interned once in an off-heap StringPool; the heap
+ * holds two handles per data element and the key declarations of the graph.
+ * @version 0.1
+ */
+final class NodeRecords {
+    private final StringPool labels = new StringPool(1 << 10);
+    private final List<String> keys = new ArrayList<>();
+    private int[] starts = new int[1 << 16];
+    private int[] counts = new int[1 << 16];
+    private int[] dataKeys = new int[1 << 16];
+    private int[] dataValues = new int[1 << 16];
+    private int size = 0;
+
+    /**
+     * addKey adds a key declaration of the graph
+     * @param key String with the serialized key element
+     */
+    void addKey(String key) {
+        keys.add(key);
+    }
+
+    /**
+     * startNode starts the record of a node, the data that follows belongs to it
+     * @param node int node index
+     */
+    void startNode(int node) {
+        if (node >= starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(node + 1, starts.length * 2));
+            counts = Arrays.copyOf(counts, starts.length);
+        }
+        starts[node] = size;
+        counts[node] = 0;
+    }
+
+    /**
+     * addData adds a data element to the record of the node started last
+     * @param node int node index
+     * @param key String id of the data key
+     * @param value String text of the data element
+     */
+    void addData(int node, String key, String value) {
+        if (size == dataKeys.length) {
+            dataKeys = Arrays.copyOf(dataKeys, size * 2);
+            dataValues = Arrays.copyOf(dataValues, size * 2);
+        }
+        dataKeys[size] = labels.add(key);
+        dataValues[size] = labels.add(value);
+        size++;
+        counts[node]++;
+    }
+
+    /**
+     * toGraphMl builds a GraphML document with the key declarations and the records of some nodes
+     * @param graph TraceGraph the records were loaded with
+     * @param nodeIds List of the ids of the nodes to include, ids not in the graph are skipped
+     * @return String GraphML document in the namespace of the graph nodes
+     */
+    String toGraphMl(TraceGraph graph, List<String> nodeIds) {
+        StringBuilder xml = new StringBuilder("<graphml");
+        if (!graph.getNodeNamespace().isEmpty()) xml.append(" xmlns=\"").append(escape(graph.getNodeNamespace())).append('"');
+        xml.append('>');
+        for (String key : keys) {
+            xml.append(key);
+        }
+        xml.append("<graph edgedefault=\"directed\">");
+        for (String id : nodeIds) {
+            int node = graph.indexOf(id);
+            if (node < 0) continue;
+            xml.append("<node id=\"").append(escape(id)).append("\">");
+            int end = node < starts.length ? starts[node] + counts[node] : 0;
+            for (int i = node < starts.length ? starts[node] : 0; i < end; i++) {
+                xml.append("<data key=\"").append(escape(labels.get(dataKeys[i]))).append("\">")
+                        .append(escape(labels.get(dataValues[i]))).append("</data>");
+            }
+            xml.append("</node>");
+        }
+        return xml.append("</graph></graphml>").toString();
+    }
+
+    static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
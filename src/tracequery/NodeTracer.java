@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * NodeTracer finds the nodes upstream and downstream of a start node in a TraceGraph.
+ * A tracer keeps the result of its last trace and is used by one thread at a time.
+ * @version 0.1
+ */
+interface NodeTracer {
+
+    /**
+     * trace finds the nodes upstream and downstream of the start node within the limits
+     * @param start int index of the node to trace
+     * @param limits TraceLimits with the direction and depth to walk and the number of nodes to stop at
+     * @return int number of nodes in the trace, read them with getNode
+     */
+    int trace(int start, TraceLimits limits);
+
+    /**
+     * isTruncated tells if the last trace stopped at the walk limit with nodes left to walk
+     * @return boolean true if there are more nodes than were returned
+     */
+    boolean isTruncated();
+
+    /**
+     * getNode returns a node of the last trace, the start node first
+     * @param i int position in the trace
+     * @return int node index
+     */
+    int getNode(int i);
+
+    /**
+     * getGraph returns the graph the node indexes refer to
+     * @return TraceGraph that was traced
+     */
+    TraceGraph getGraph();
+}
@@ -0,0 +1,774 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * OidIndex maps the OID of each definition in the L1 ODM and Define-XML files (the children of
+ * MetaDataVersion with an OID attribute, such as FormDef, ItemGroupDef, ItemDef and MethodDef) to its
+ * file, element type, byte offset and length. The index is saved as oid-index.dat in the xml-path;
+ * when it is opened only the files whose fingerprint changed are scanned again.
+ * For a trace the index reads a subset of each L1 file with just the traced definitions, the
+ * definitions they reference in any L1 file, such as the MethodDef named by an ItemRef, the CodeList of
+ * an ItemDef or the ODM definition named by a Define-XML one, and the definitions that reference a traced
+ * OID, such as the ItemGroupDef holding the ItemRef of a traced ItemDef. The referencing definitions are
+ * copied whole without following their own references, so a query sees the container of a traced
+ * definition but only the contents the trace reached. Each subset keeps the root, Study and
+ * MetaDataVersion elements of its file and every child of MetaDataVersion without an OID, such as
+ * Protocol in ODM or def:SupplementalDoc in Define-XML, so the node OID query parses a few fragments
+ * instead of the whole documents.
+ * Offsets are byte offsets, so a file is only indexed when its declared encoding is ASCII compatible,
+ * such as UTF-8 or ISO-8859-1, and its text is decoded with that encoding. A file in another encoding,
+ * such as UTF-16, has no entries and is read whole.
+ * @version 0.1
+ */
+final class OidIndex {
+    public static final String FILE_NAME = "oid-index.dat";
+    public static final String SUBSET_DIR = "oid-subset";
+    private static final int MAGIC = 0x54514F49;
+    private static final int VERSION = 2;
+    private static final String CONTAINER = "MetaDataVersion";
+    private static final int PROLOG_LENGTH = 256;
+    private static final Pattern ENCODING = Pattern.compile("^<\\?xml[^>]*?\\sencoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)[\"']");
+    private final XmlFileList fileList;
+    private final File subsetDir;
+    private final List<IndexedFile> files = new ArrayList<>();
+    private final Map<String, List<Entry>> entries = new HashMap<>();
+    private final Map<String, List<Entry>> containers = new HashMap<>();
+    private int scannedCount = 0;
+
+    private OidIndex(XmlFileList fileList, File subsetDir) {
+        this.fileList = fileList;
+        this.subsetDir = subsetDir;
+    }
+
+    /**
+     * open loads the saved index for the L1 files in xml-files.xml, scans the files that are new or
+     * changed since it was saved and saves the index again if any file was scanned
+     * @param xmlPath String with the xml-path from the configuration file
+     * @return OidIndex for every file in xml-files.xml
+     * @throws IOException if an L1 file cannot be read or the index cannot be saved
+     */
+    public static OidIndex open(String xmlPath) throws IOException {
+        OidIndex index = new OidIndex(new XmlFileList(xmlPath), new File(xmlPath + SUBSET_DIR));
+        File indexFile = new File(xmlPath + FILE_NAME);
+        Map<String, IndexedFile> saved = load(indexFile);
+        boolean isChanged = saved.size() != index.fileList.getReferences().size();
+        for (String reference : index.fileList.getReferences()) {
+            File file = index.fileList.resolve(reference);
+            IndexedFile indexed = saved.get(reference);
+            if (indexed == null || !indexed.fingerprint.matches(file)) {
+                indexed = scan(reference, file);
+                index.scannedCount++;
+                isChanged = true;
+            } else if (indexed.fingerprint.getModified() != file.lastModified()) {
+                // touched but unchanged, save the new time so the checksum is not computed again
+                indexed.fingerprint = FileFingerprint.of(file.length(), file.lastModified(), indexed.fingerprint.getChecksum());
+                isChanged = true;
+            }
+            index.add(indexed);
+        }
+        if (isChanged) index.save(indexFile);
+        return index;
+    }
+
+    private void add(IndexedFile indexed) {
+        files.add(indexed);
+        for (Entry entry : indexed.entries) {
+            List<Entry> oidEntries = entries.get(entry.oid);
+            if (oidEntries == null) {
+                oidEntries = new ArrayList<>(1);
+                entries.put(entry.oid, oidEntries);
+            }
+            oidEntries.add(entry);
+            for (String reference : entry.references) {
+                List<Entry> referencing = containers.get(reference);
+                if (referencing == null) {
+                    referencing = new ArrayList<>(1);
+                    containers.put(reference, referencing);
+                }
+                referencing.add(entry);
+            }
+        }
+    }
+
+    /**
+     * lookup returns the definitions with an OID, one per L1 file that defines it
+     * @param oid String OID to find
+     * @return List of entries, empty if no L1 file defines the OID
+     */
+    public List<Entry> lookup(String oid) {
+        List<Entry> oidEntries = entries.get(oid);
+        return oidEntries == null ? Collections.<Entry>emptyList() : oidEntries;
+    }
+
+    /**
+     * readFragment reads the XML of one definition from its L1 file
+     * @param entry Entry from lookup
+     * @return String with the element, namespace prefixes are declared on the file's root element
+     * @throws IOException if the file cannot be read
+     */
+    public String readFragment(Entry entry) throws IOException {
+        byte[] fragment = new byte[entry.length];
+        try (RandomAccessFile in = new RandomAccessFile(entry.file.file, "r")) {
+            in.seek(entry.offset);
+            in.readFully(fragment);
+        }
+        return new String(fragment, entry.file.getCharset());
+    }
+
+    /**
+     * getOids returns the OIDs of one type of definition in an L1 file
+     * @param file File listed in xml-files.xml
+     * @param type String local name of the definition element, such as ItemDef
+     * @return List of the OIDs in document order, empty if the file is not indexed
+     * @throws IOException if the file path cannot be resolved
+     */
+    public List<String> getOids(File file, String type) throws IOException {
+        List<String> oids = new ArrayList<>();
+        File canonical = file.getCanonicalFile();
+        for (IndexedFile indexed : files) {
+            if (!indexed.file.getCanonicalFile().equals(canonical)) continue;
+            for (Entry entry : indexed.entries) {
+                if (entry.type.equals(type)) oids.add(entry.oid);
+            }
+        }
+        return oids;
+    }
+
+    public int getOidCount() {
+        return entries.size();
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    public int getScannedCount() {
+        return scannedCount;
+    }
+
+    /**
+     * readSubset reads the subset of each L1 file with definitions that keeps only the definitions of the
+     * given OIDs, in the order of xml-files.xml; a file in an encoding that is not indexed is read whole
+     * @param oids Collection of the OIDs in the trace
+     * @return List with the XML text of each subset
+     * @throws IOException if a file cannot be read
+     */
+    public List<String> readSubset(Collection<String> oids) throws IOException {
+        List<String> subsets = new ArrayList<>();
+        for (Map.Entry<IndexedFile, List<Entry>> fileEntry : getFileEntries(oids).entrySet()) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            copySubset(fileEntry.getKey(), fileEntry.getValue(), os);
+            subsets.add(new String(os.toByteArray(), fileEntry.getKey().getCharset()));
+        }
+        return subsets;
+    }
+
+    /**
+     * writeSubset writes a copy of each L1 file that keeps only the definitions of the given OIDs,
+     * and an xml-files.xml that lists the copies in place of the original files
+     * @param oids Collection of the OIDs in the trace
+     * @param prefix String prefix for the file names so concurrent traces do not share files
+     * @return List of the files written, the subset xml-files.xml first
+     * @throws IOException if a file cannot be read or written
+     */
+    public List<File> writeSubset(Collection<String> oids, String prefix) throws IOException {
+        if (!subsetDir.isDirectory() && !subsetDir.mkdirs()) {
+            throw new IOException("Unable to create the directory " + subsetDir);
+        }
+        List<File> written = new ArrayList<>();
+        Map<String, String> referenceMap = new HashMap<>();
+        for (Map.Entry<IndexedFile, List<Entry>> fileEntry : getFileEntries(oids).entrySet()) {
+            IndexedFile indexed = fileEntry.getKey();
+            // the queries read a file that is not indexed from its own path
+            if (!indexed.isIndexed()) continue;
+            File subset = new File(subsetDir, prefix + indexed.file.getName());
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(subset), 1 << 16)) {
+                copySubset(indexed, fileEntry.getValue(), os);
+            }
+            referenceMap.put(indexed.reference, subset.getAbsolutePath());
+            written.add(subset);
+        }
+        File listFile = new File(subsetDir, prefix + XmlFileList.FILE_NAME);
+        try (OutputStream os = new FileOutputStream(listFile)) {
+            os.write(fileList.toMappedXml(referenceMap).getBytes(StandardCharsets.UTF_8));
+        }
+        written.add(0, listFile);
+        return written;
+    }
+
+    /**
+     * getDefinitionOids returns the OIDs of the definitions a trace reads: the traced OIDs that are
+     * defined in an L1 file and the definitions they reference, the same set readSubset and writeSubset copy
+     * @param oids Collection of the OIDs in the trace
+     * @return Set of the OIDs of the definitions
+     */
+    public Set<String> getDefinitionOids(Collection<String> oids) {
+        Set<String> definitionOids = new HashSet<>();
+        for (Entry entry : getDefinitions(oids)) {
+            definitionOids.add(entry.oid);
+        }
+        return definitionOids;
+    }
+
+    /* the subset definitions of each file with definitions, a file without definitions is read whole by the queries as
+       before; a file in an encoding that is not indexed is listed with no definitions and copied whole */
+    private Map<IndexedFile, List<Entry>> getFileEntries(Collection<String> oids) {
+        Map<IndexedFile, List<Entry>> fileEntries = new LinkedHashMap<>();
+        for (IndexedFile indexed : files) {
+            if (!indexed.entries.isEmpty() || !indexed.isIndexed()) fileEntries.put(indexed, new ArrayList<Entry>());
+        }
+        for (Entry entry : getDefinitions(oids)) {
+            fileEntries.get(entry.file).add(entry);
+        }
+        return fileEntries;
+    }
+
+    /* the definitions of the OIDs and, following the OID references of each definition into every file, of the
+       OIDs they name; then the definitions that reference one of the OIDs, without following their references */
+    private Set<Entry> getDefinitions(Collection<String> oids) {
+        Set<Entry> included = new LinkedHashSet<>();
+        Deque<Entry> pending = new ArrayDeque<>();
+        for (String oid : oids) {
+            pending.addAll(lookup(oid));
+        }
+        while (!pending.isEmpty()) {
+            Entry entry = pending.pop();
+            if (!included.add(entry)) continue;
+            for (String reference : entry.references) {
+                pending.addAll(lookup(reference));
+            }
+        }
+        for (String oid : oids) {
+            List<Entry> referencing = containers.get(oid);
+            if (referencing != null) included.addAll(referencing);
+        }
+        return included;
+    }
+
+    /**
+     * checksumDefinitions reads an L1 file once and computes the CRC32 of each of its definitions and
+     * of the bytes outside them, so a change to the file can be narrowed to the definitions it touched
+     * @param reference String file reference from xml-files.xml
+     * @return Map from OID to checksum with the bytes outside the definitions under the empty OID, empty if the file is not indexed
+     * @throws IOException if the file cannot be read
+     */
+    public Map<String, Long> checksumDefinitions(String reference) throws IOException {
+        Map<String, Long> checksums = new HashMap<>();
+        IndexedFile indexed = null;
+        for (IndexedFile file : files) {
+            if (file.reference.equals(reference)) indexed = file;
+        }
+        if (indexed == null) return checksums;
+        List<Entry> sorted = new ArrayList<>(indexed.entries);
+        Collections.sort(sorted, Comparator.comparingLong(entry -> entry.offset));
+        CRC32 outside = new CRC32();
+        CRC32 definition = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(indexed.file), 1 << 16)) {
+            long position = 0;
+            for (Entry entry : sorted) {
+                position += copy(in, entry.offset - position, outside, buffer);
+                definition.reset();
+                position += copy(in, entry.length, definition, buffer);
+                // an OID defined twice in one file, such as an ItemDef and a ValueListDef, gets one combined checksum
+                Long previous = checksums.get(entry.oid);
+                checksums.put(entry.oid, previous == null ? definition.getValue() : previous * 31 + definition.getValue());
+            }
+            copy(in, Long.MAX_VALUE, outside, buffer);
+        }
+        checksums.put("", outside.getValue());
+        return checksums;
+    }
+
+    /* read count bytes, or to the end of the file, into the checksum and return the number read */
+    private static long copy(InputStream in, long count, CRC32 crc, byte[] buffer) throws IOException {
+        long read = 0;
+        while (read < count) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - read));
+            if (n < 0) break;
+            crc.update(buffer, 0, n);
+            read += n;
+        }
+        return read;
+    }
+
+    /* the bytes before the first and after the last child of MetaDataVersion keep the root, Study and MetaDataVersion
+       elements; the children without an OID are copied with the definitions in document order */
+    private static void copySubset(IndexedFile indexed, List<Entry> subsetEntries, OutputStream os) throws IOException {
+        List<Entry> copied = new ArrayList<>(subsetEntries);
+        copied.addAll(indexed.kept);
+        Collections.sort(copied, Comparator.comparingLong(entry -> entry.offset));
+        byte[] buffer = new byte[1 << 16];
+        try (RandomAccessFile in = new RandomAccessFile(indexed.file, "r")) {
+            if (!indexed.isIndexed()) {
+                transfer(in, 0, in.length(), os, buffer);
+                return;
+            }
+            transfer(in, 0, indexed.headerEnd, os, buffer);
+            for (Entry entry : copied) {
+                transfer(in, entry.offset, entry.length, os, buffer);
+                os.write('\n');
+            }
+            transfer(in, indexed.trailerStart, in.length() - indexed.trailerStart, os, buffer);
+        }
+    }
+
+    private static void transfer(RandomAccessFile in, long position, long count, OutputStream os, byte[] buffer) throws IOException {
+        in.seek(position);
+        while (count > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (n <= 0) throw new IOException("Unexpected end of file while copying an indexed definition.");
+            os.write(buffer, 0, n);
+            count -= n;
+        }
+    }
+
+    /* one pass over the bytes of the file; StAX reports character offsets, so the tags are scanned
+       directly to get the byte offsets used to seek to each definition */
+    private static IndexedFile scan(String reference, File file) throws IOException {
+        CRC32 crc = new CRC32();
+        IndexedFile indexed = new IndexedFile(reference, file);
+        indexed.setEncoding(readEncoding(file));
+        try (InputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), crc)) {
+            // the scan reads to the end of the file so the checksum covers all of it
+            if (indexed.isIndexed()) {
+                new TagScanner(in, indexed.getCharset()).scan(indexed);
+            } else {
+                System.err.println("The OID index reads " + file + " whole, its encoding " + indexed.encoding 
+                        + " does not keep the ASCII byte offsets of the tags.");
+                copy(in, Long.MAX_VALUE, new CRC32(), new byte[1 << 16]);
+            }
+        }
+        indexed.fingerprint = FileFingerprint.of(file.length(), file.lastModified(), crc.getValue());
+        return indexed;
+    }
+
+    /* the encoding from the byte order mark or the XML declaration, UTF-8 when neither gives one */
+    static String readEncoding(File file) throws IOException {
+        byte[] prolog = new byte[PROLOG_LENGTH];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; length < prolog.length && (n = in.read(prolog, length, prolog.length - length)) > 0;) {
+                length += n;
+            }
+        }
+        if (length >= 2) {
+            int first = prolog[0] & 0xFF;
+            int second = prolog[1] & 0xFF;
+            if ((first == 0xFE && second == 0xFF) || (first == 0xFF && second == 0xFE) || first == 0 || second == 0) {
+                return "UTF-16";
+            }
+        }
+        int start = length >= 3 && (prolog[0] & 0xFF) == 0xEF && (prolog[1] & 0xFF) == 0xBB && (prolog[2] & 0xFF) == 0xBF ? 3 : 0;
+        Matcher matcher = ENCODING.matcher(new String(prolog, start, length - start, StandardCharsets.ISO_8859_1));
+        return matcher.find() ? matcher.group(1) : "UTF-8";
+    }
+
+    /* the tags of an ASCII compatible encoding have the same bytes as in ASCII, so the scanner can find them */
+    static boolean isAsciiCompatible(String encoding) {
+        try {
+            if (!Charset.isSupported(encoding)) return false;
+        } catch (IllegalCharsetNameException ex) {
+            return false;
+        }
+        String markup = "<?xml version=\"1.0\"?><MetaDataVersion OID='MDV.1'/>";
+        return Arrays.equals(markup.getBytes(StandardCharsets.US_ASCII), markup.getBytes(Charset.forName(encoding)));
+    }
+
+    private static Map<String, IndexedFile> load(File indexFile) {
+        Map<String, IndexedFile> saved = new HashMap<>();
+        if (!indexFile.isFile()) return saved;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return saved;
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                IndexedFile indexed = new IndexedFile(in.readUTF(), new File(in.readUTF()));
+                indexed.fingerprint = FileFingerprint.parse(in.readUTF());
+                indexed.setEncoding(in.readUTF());
+                indexed.headerEnd = in.readLong();
+                indexed.trailerStart = in.readLong();
+                int entryCount = in.readInt();
+                for (int j = 0; j < entryCount; j++) {
+                    Entry entry = new Entry(indexed, in.readUTF(), in.readUTF(), in.readLong(), in.readInt());
+                    for (int k = in.readInt(); k > 0; k--) {
+                        entry.references.add(in.readUTF());
+                    }
+                    indexed.entries.add(entry);
+                }
+                for (int j = in.readInt(); j > 0; j--) {
+                    indexed.kept.add(new Entry(indexed, "", in.readUTF(), in.readLong(), in.readInt()));
+                }
+                if (indexed.fingerprint != null) saved.put(indexed.reference, indexed);
+            }
+        } catch (IOException ex) {
+            // a damaged index is rebuilt from the files
+            System.err.println("Rebuilding the OID index " + indexFile + ". " + ex.getMessage());
+            saved.clear();
+        }
+        return saved;
+    }
+
+    /* written to a temporary file first so a concurrent reader never sees half an index */
+    private void save(File indexFile) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (IndexedFile indexed : files) {
+                out.writeUTF(indexed.reference);
+                out.writeUTF(indexed.file.getPath());
+                out.writeUTF(indexed.fingerprint.toString());
+                out.writeUTF(indexed.encoding);
+                out.writeLong(indexed.headerEnd);
+                out.writeLong(indexed.trailerStart);
+                out.writeInt(indexed.entries.size());
+                for (Entry entry : indexed.entries) {
+                    out.writeUTF(entry.oid);
+                    out.writeUTF(entry.type);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                    out.writeInt(entry.references.size());
+                    for (String reference : entry.references) {
+                        out.writeUTF(reference);
+                    }
+                }
+                out.writeInt(indexed.kept.size());
+                for (Entry entry : indexed.kept) {
+                    out.writeUTF(entry.type);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Entry locates one definition in an L1 file
+     */
+    static final class Entry {
+        private final IndexedFile file;
+        private final String oid;
+        private final String type;
+        private final long offset;
+        private final int length;
+        private final List<String> references = new ArrayList<>(0);
+
+        private Entry(IndexedFile file, String oid, String type, long offset, int length) {
+            this.file = file;
+            this.oid = oid;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public File getFile() {
+            return file.file;
+        }
+
+        public String getOid() {
+            return oid;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /* OIDs named by the definition, such as ItemOID, MethodOID and CodeListOID attributes */
+        public List<String> getReferences() {
+            return references;
+        }
+    }
+
+    /* the definitions found in one L1 file, the other children of MetaDataVersion and the span they cover */
+    private static final class IndexedFile {
+        private final String reference;
+        private final File file;
+        private final List<Entry> entries = new ArrayList<>();
+        private final List<Entry> kept = new ArrayList<>();
+        private FileFingerprint fingerprint;
+        private String encoding = "UTF-8";
+        private boolean isIndexed = true;
+        private long headerEnd = -1;
+        private long trailerStart = -1;
+
+        private IndexedFile(String reference, File file) {
+            this.reference = reference;
+            this.file = file;
+        }
+
+        private void setEncoding(String encoding) {
+            this.encoding = encoding;
+            this.isIndexed = isAsciiCompatible(encoding);
+        }
+
+        private boolean isIndexed() {
+            return isIndexed;
+        }
+
+        /* a file that is not indexed may still be decoded whole, such as UTF-16 */
+        private Charset getCharset() {
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException ex) {
+                return StandardCharsets.UTF_8;
+            }
+        }
+    }
+
+    /* reads start and end tags with their byte offsets, skipping text, comments, CDATA and processing instructions */
+    private static final class TagScanner {
+        private final InputStream in;
+        private final Charset charset;
+        private final ByteArrayOutputStream token = new ByteArrayOutputStream(64);
+        private long position = 0;
+        private int pushedBack = -1;
+
+        private TagScanner(InputStream in, Charset charset) {
+            this.in = in;
+            this.charset = charset;
+        }
+
+        private int read() throws IOException {
+            int c;
+            if (pushedBack >= 0) {
+                c = pushedBack;
+                pushedBack = -1;
+            } else {
+                c = in.read();
+            }
+            if (c >= 0) position++;
+            return c;
+        }
+
+        private void unread(int c) {
+            if (c < 0) return;
+            pushedBack = c;
+            position--;
+        }
+
+        private void scan(IndexedFile indexed) throws IOException {
+            Deque<String> elements = new ArrayDeque<>();
+            String openOid = null;
+            String openType = null;
+            long openStart = -1;
+            int openDepth = -1;
+            List<String> openReferences = new ArrayList<>();
+            for (int c; (c = read()) >= 0;) {
+                if (c != '<') continue;
+                long start = position - 1;
+                c = read();
+                if (c == '!') {
+                    skipDeclaration();
+                } else if (c == '?') {
+                    skipPast("?>");
+                } else if (c == '/') {
+                    String name = readName();
+                    skipPast(">");
+                    if (openDepth >= 0 && elements.size() == openDepth) {
+                        if (openOid != null) {
+                            addEntry(indexed, openOid, openType, openStart, position, openReferences);
+                        } else {
+                            addKept(indexed, openType, openStart, position);
+                        }
+                        openOid = null;
+                        openDepth = -1;
+                        openReferences = new ArrayList<>();
+                    }
+                    if (!elements.isEmpty() && elements.peek().equals(name)) elements.pop();
+                } else if (c >= 0) {
+                    unread(c);
+                    String name = readName();
+                    Map<String, String> attributes = new HashMap<>();
+                    boolean isEmpty = readAttributes(attributes);
+                    String oid = attributes.get("OID");
+                    boolean isChild = openDepth < 0 && !elements.isEmpty() && CONTAINER.equals(localName(elements.peek()));
+                    boolean isDefinition = isChild && oid != null;
+                    if (isDefinition || openOid != null) addReferences(attributes, openReferences);
+                    if (isEmpty) {
+                        if (isDefinition) {
+                            addEntry(indexed, oid, localName(name), start, position, openReferences);
+                            openReferences = new ArrayList<>();
+                        } else if (isChild) {
+                            addKept(indexed, localName(name), start, position);
+                        }
+                    } else {
+                        elements.push(name);
+                        if (isChild) {
+                            openOid = oid;
+                            openType = localName(name);
+                            openStart = start;
+                            openDepth = elements.size();
+                        }
+                    }
+                }
+            }
+        }
+
+        private static void addEntry(IndexedFile indexed, String oid, String type, long start, long end, List<String> references) {
+            Entry entry = new Entry(indexed, oid, type, start, (int) (end - start));
+            entry.references.addAll(references);
+            indexed.entries.add(entry);
+            addSpan(indexed, start, end);
+        }
+
+        /* a child of MetaDataVersion without an OID, such as Protocol, is copied to every subset */
+        private static void addKept(IndexedFile indexed, String type, long start, long end) {
+            indexed.kept.add(new Entry(indexed, "", type, start, (int) (end - start)));
+            addSpan(indexed, start, end);
+        }
+
+        private static void addSpan(IndexedFile indexed, long start, long end) {
+            if (indexed.headerEnd < 0) indexed.headerEnd = start;
+            indexed.trailerStart = end;
+        }
+
+        /* attributes such as ItemOID and def:ValueListOID refer to other definitions */
+        private static void addReferences(Map<String, String> attributes, List<String> references) {
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                String name = localName(attribute.getKey());
+                if (name.endsWith("OID") && !name.equals("OID")) references.add(attribute.getValue());
+            }
+        }
+
+        private static String localName(String name) {
+            return name.substring(name.indexOf(':') + 1);
+        }
+
+        private String readName() throws IOException {
+            token.reset();
+            for (int c; (c = read()) >= 0;) {
+                if (c == '>' || c == '/' || c == '=' || Character.isWhitespace(c)) {
+                    unread(c);
+                    break;
+                }
+                token.write(c);
+            }
+            return new String(token.toByteArray(), charset);
+        }
+
+        /* reads the attributes up to the end of the start tag, returns true for an empty element tag */
+        private boolean readAttributes(Map<String, String> attributes) throws IOException {
+            for (int c; (c = read()) >= 0;) {
+                if (c == '>') return false;
+                if (c == '/') {
+                    skipPast(">");
+                    return true;
+                }
+                if (Character.isWhitespace(c)) continue;
+                unread(c);
+                String name = readName();
+                int quote = read();
+                while (quote >= 0 && quote != '"' && quote != '\'') {
+                    quote = read();
+                }
+                token.reset();
+                for (int v; (v = read()) >= 0 && v != quote;) {
+                    token.write(v);
+                }
+                attributes.put(name, unescape(new String(token.toByteArray(), charset)));
+            }
+            return false;
+        }
+
+        private static String unescape(String value) {
+            if (value.indexOf('&') < 0) return value;
+            return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                    .replace("&amp;", "&");
+        }
+
+        /* comments, CDATA sections and the DOCTYPE with its internal subset */
+        private void skipDeclaration() throws IOException {
+            int c = read();
+            if (c == '-') {
+                read();
+                skipPast("-->");
+            } else if (c == '[') {
+                skipPast("]]>");
+            } else {
+                int depth = 0;
+                for (; c >= 0; c = read()) {
+                    if (c == '[') depth++;
+                    if (c == ']') depth--;
+                    if (c == '>' && depth <= 0) return;
+                }
+            }
+        }
+
+        private void skipPast(String end) throws IOException {
+            int[] last = new int[end.length()];
+            int count = 0;
+            for (int c; (c = read()) >= 0;) {
+                last[count++ % last.length] = c;
+                if (count >= last.length && endsWith(last, count, end)) return;
+            }
+        }
+
+        /* compares the ring buffer of the last bytes read with the end marker */
+        private static boolean endsWith(int[] last, int count, String end) {
+            for (int i = 0; i < last.length; i++) {
+                if (last[(count + i) % last.length] != end.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * ParallelTrace traces a list of OIDs on a fixed pool of worker threads. Each worker borrows a
+ * TraceSession, so the query state is per task while the graph and databases are shared read-only,
+ * and each OID writes its own set of output files.
+ * @version 0.1
+ */
+class ParallelTrace {
+    private final SessionPool pool;
+    private final ExecutorService executor;
+    private final Boolean isQuiet;
+
+    /**
+     * Constructor for ParallelTrace
+     * @param pool SessionPool with one session per worker thread
+     */
+    public ParallelTrace(SessionPool pool) {
+        this(pool, null, Boolean.FALSE);
+    }
+
+    /**
+     * Constructor for ParallelTrace that runs every batch on the same worker threads
+     * @param pool SessionPool with one session per worker thread
+     * @param executor ExecutorService owned by the caller, or null for a thread pool per batch
+     * @param isQuiet Boolean true to leave out the per-OID and batch timing lines
+     */
+    public ParallelTrace(SessionPool pool, ExecutorService executor, Boolean isQuiet) {
+        this.pool = pool;
+        this.executor = executor;
+        this.isQuiet = isQuiet;
+    }
+
+    /**
+     * run traces every OID and reports the time for each OID and the total
+     * @param oids List of OIDs to trace
+     * @param isFilter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @param limits TraceLimits applied to the trace of every OID
+     * @return int number of OIDs that could not be traced
+     */
+    public int run(List<String> oids, final Boolean isFilter, final TraceLimits limits) {
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (final String oid : oids) {
+            tasks.add(() -> trace(oid, isFilter, limits, getOutputPrefix(oid)));
+        }
+        return runTasks(tasks);
+    }
+
+    /**
+     * refresh traces each recorded trace again with its filter option, writing to the output files it wrote before
+     * @param traces List of the stale traces from the ChangeTracker
+     * @return int number of OIDs that could not be traced
+     */
+    public int refresh(List<ChangeTracker.Trace> traces) {
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (final ChangeTracker.Trace trace : traces) {
+            tasks.add(() -> trace(trace.getOid(), trace.getFilter(), TraceLimits.NONE, trace.getPrefix()));
+        }
+        return runTasks(tasks);
+    }
+
+    /* run the trace tasks on the worker threads and report the total */
+    private int runTasks(List<Callable<Boolean>> tasks) {
+        long batchStart = System.nanoTime();
+        ExecutorService executor = this.executor != null ? this.executor : Executors.newFixedThreadPool(pool.size());
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (Callable<Boolean> task : tasks) {
+            results.add(executor.submit(task));
+        }
+        int failCount = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) failCount++;
+            } catch (InterruptedException | ExecutionException ex) {
+                failCount++;
+                System.err.println("Trace task failed. " + ex.getMessage());
+            }
+        }
+        if (executor != this.executor) executor.shutdown();
+        if (isQuiet) return failCount;
+        long elapsed = elapsedMillis(batchStart);
+        System.out.println("Traced " + (tasks.size() - failCount) + " of " + tasks.size() + " OIDs in " + elapsed 
+                + " ms on " + pool.size() + " threads (" + String.format("%.1f", tasks.size() * 1000.0 / Math.max(1, elapsed)) 
+                + " OIDs/s)");
+        return failCount;
+    }
+
+    /* trace one OID on a session borrowed from the pool */
+    private Boolean trace(String oid, Boolean isFilter, TraceLimits limits, String prefix) throws InterruptedException {
+        long oidStart = System.nanoTime();
+        TraceSession session = pool.borrow();
+        try {
+            session.runTrace(oid, isFilter, limits, prefix, Boolean.FALSE);
+            if (!isQuiet) System.out.println(oid + ": " + elapsedMillis(oidStart) + " ms");
+            return Boolean.TRUE;
+        } catch (TraceException ex) {
+            System.err.println(oid + ": " + ex.getMessage() + " (" + elapsedMillis(oidStart) + " ms)");
+            return Boolean.FALSE;
+        } finally {
+            pool.release(session);
+        }
+    }
+
+    /**
+     * getOutputPrefix returns the prefix added to the output files of an OID so each OID gets its own set of files;
+     * a hash of the OID is always added, so OIDs that differ only in the characters replaced to make a file name,
+     * or only in case on a file system that ignores case, get different prefixes
+     * @param oid String OID being traced
+     * @return String file name prefix
+     */
+    static String getOutputPrefix(String oid) {
+        String name = oid.replaceAll("[^A-Za-z0-9._-]", "_");
+        CRC32 crc = new CRC32();
+        crc.update(oid.getBytes(StandardCharsets.UTF_8));
+        return name + "-" + String.format("%08x", crc.getValue()) + "-";
+    }
+
+    static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * QueryCache keeps the XQuery source text and the compiled XSLT Templates for the lifetime of the JVM
+ * so batch, server and repeated runs read each query and compile each stylesheet only once.
+ * Entries are keyed by file path and reloaded when the file's modification time changes. BaseX
+ * compiles a query together with its variable bindings, so for XQuery the cached form is the text;
+ * Templates are thread-safe and each transformation takes its own Transformer from them.
+ * @version 0.1
+ */
+final class QueryCache {
+    private static final ConcurrentMap<String, Entry<String>> queries = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Entry<Templates>> templates = new ConcurrentHashMap<>();
+    private static final TransformerFactory factory = TransformerFactory.newInstance();
+
+    private QueryCache() {
+    }
+
+    /**
+     * getQuery returns the text of an XQuery file, line breaks included so (: :) comments stay intact
+     * @param fileName String with the XQuery path and file
+     * @return String with the query text
+     * @throws IOException if the file cannot be read
+     */
+    public static String getQuery(String fileName) throws IOException {
+        File file = new File(fileName);
+        Entry<String> entry = queries.get(fileName);
+        if (entry == null || entry.modified != file.lastModified()) {
+            long modified = file.lastModified();
+            String query = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            entry = new Entry<>(query, modified);
+            queries.put(fileName, entry);
+        }
+        return entry.value;
+    }
+
+    /**
+     * getTemplates returns the compiled form of an XSL stylesheet
+     * @param fileName String with the XSL path and file
+     * @return Templates shared by all threads
+     * @throws TransformerConfigurationException if the stylesheet cannot be compiled
+     */
+    public static Templates getTemplates(String fileName) throws TransformerConfigurationException {
+        File file = new File(fileName);
+        Entry<Templates> entry = templates.get(fileName);
+        if (entry == null || entry.modified != file.lastModified()) {
+            long modified = file.lastModified();
+            Templates compiled;
+            synchronized (factory) {
+                compiled = factory.newTemplates(new StreamSource(file));
+            }
+            entry = new Entry<>(compiled, modified);
+            templates.put(fileName, entry);
+        }
+        return entry.value;
+    }
+
+    /**
+     * newTransformerHandler returns a handler that transforms the SAX events it receives
+     * @param fileName String with the XSL path and file, or null for a handler that copies the events
+     * @return TransformerHandler for one transformation
+     * @throws TransformerConfigurationException if the stylesheet cannot be compiled
+     */
+    public static TransformerHandler newTransformerHandler(String fileName) throws TransformerConfigurationException {
+        Templates compiled = fileName == null ? null : getTemplates(fileName);
+        synchronized (factory) {
+            SAXTransformerFactory saxFactory = (SAXTransformerFactory) factory;
+            return compiled == null ? saxFactory.newTransformerHandler() : saxFactory.newTransformerHandler(compiled);
+        }
+    }
+
+    /* a cached value and the modification time of the file it came from */
+    private static final class Entry<T> {
+        private final T value;
+        private final long modified;
+
+        Entry(T value, long modified) {
+            this.value = value;
+            this.modified = modified;
+        }
+    }
+}
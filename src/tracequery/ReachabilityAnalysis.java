@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * ReachabilityAnalysis finds the untraceable variables of the whole graph in two passes instead of
+ * one trace per OID. A multi-source breadth-first search runs downstream from every data collection
+ * variable and another runs upstream from every analysis variable; each level of the search is
+ * expanded in parallel on the fork-join pool. Tabulation and analysis variables that no collection
+ * variable reaches have no source, and collection and tabulation variables that reach no analysis
+ * variable are not used in the analysis.
+ * @version 0.1
+ */
+final class ReachabilityAnalysis {
+    public static final String NO_SOURCE = "no-source";
+    public static final String NOT_ANALYZED = "not-analyzed";
+    public static final String NOT_IN_GRAPH = "not-in-graph";
+    public static final String COLLECTION_LAYER = "data-collection";
+    public static final String TABULATION_LAYER = "data-tabulation";
+    public static final String ANALYSIS_LAYER = "data-analysis";
+    private static final String VARIABLE_TYPE = "ItemDef";
+    private static final int SPLIT_SIZE = 1024;
+    private final TraceGraph graph;
+    private final List<Layer> layers = new ArrayList<>();
+    private final List<Variable> unreachable = new ArrayList<>();
+    private int variableCount = 0;
+
+    /**
+     * Constructor for ReachabilityAnalysis
+     * @param graph TraceGraph with every node of the L3 graph
+     */
+    public ReachabilityAnalysis(TraceGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * addLayer names the variables defined in one of the L1 files
+     * @param name String layer name: data-collection, data-tabulation or data-analysis
+     * @param fileName String with the L1 file name
+     * @param oidIndex OidIndex that lists the ItemDefs of the file
+     * @throws IOException if the file is not in the index
+     */
+    public void addLayer(String name, String fileName, OidIndex oidIndex) throws IOException {
+        List<String> oids = oidIndex.getOids(new File(ConfigReader.getXmlPath() + fileName), VARIABLE_TYPE);
+        if (oids.isEmpty()) throw new IOException("No ItemDefs found for " + fileName + ", check that it is listed in " 
+                + XmlFileList.FILE_NAME);
+        layers.add(new Layer(name, fileName, oids));
+    }
+
+    /**
+     * run marks the nodes reachable from the collection layer and the nodes that reach the analysis
+     * layer, then lists the variables that fail either test
+     * @return List of the unreachable variables in layer order
+     * @throws IllegalStateException if the data-collection or data-analysis layer was not added
+     */
+    public List<Variable> run() {
+        Layer collection = getLayer(COLLECTION_LAYER);
+        Layer analysis = getLayer(ANALYSIS_LAYER);
+        long[] fromSource = reach(indexesOf(collection), false);
+        long[] toAnalysis = reach(indexesOf(analysis), true);
+        unreachable.clear();
+        variableCount = 0;
+        for (Layer layer : layers) {
+            for (String oid : layer.oids) {
+                variableCount++;
+                int node = graph.indexOf(oid);
+                if (node < 0) {
+                    unreachable.add(new Variable(oid, layer, NOT_IN_GRAPH));
+                } else if (layer != collection && !isSet(fromSource, node)) {
+                    unreachable.add(new Variable(oid, layer, NO_SOURCE));
+                } else if (layer != analysis && !isSet(toAnalysis, node)) {
+                    unreachable.add(new Variable(oid, layer, NOT_ANALYZED));
+                }
+            }
+        }
+        return unreachable;
+    }
+
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    private Layer getLayer(String name) {
+        for (Layer layer : layers) {
+            if (layer.name.equals(name)) return layer;
+        }
+        throw new IllegalStateException("The " + name + " layer is needed to find the unreachable variables.");
+    }
+
+    private int[] indexesOf(Layer layer) {
+        int[] nodes = new int[layer.oids.size()];
+        int count = 0;
+        for (String oid : layer.oids) {
+            int node = graph.indexOf(oid);
+            if (node >= 0) nodes[count++] = node;
+        }
+        return Arrays.copyOf(nodes, count);
+    }
+
+    /* level-synchronous search, every level of the frontier is expanded in parallel */
+    private long[] reach(int[] sources, boolean isUpstream) {
+        AtomicLongArray visited = new AtomicLongArray((graph.nodeCount() + 63) >>> 6);
+        int[] frontier = new int[sources.length];
+        int count = 0;
+        for (int node : sources) {
+            if (mark(visited, node)) frontier[count++] = node;
+        }
+        frontier = Arrays.copyOf(frontier, count);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        while (frontier.length > 0) {
+            frontier = pool.invoke(new Expand(frontier, 0, frontier.length, visited, isUpstream));
+        }
+        long[] marks = new long[visited.length()];
+        for (int i = 0; i < marks.length; i++) {
+            marks[i] = visited.get(i);
+        }
+        return marks;
+    }
+
+    /* sets the visit bit of the node, returns false if another task visited it first */
+    private static boolean mark(AtomicLongArray visited, int node) {
+        int word = node >>> 6;
+        long bit = 1L << (node & 63);
+        while (true) {
+            long current = visited.get(word);
+            if ((current & bit) != 0) return false;
+            if (visited.compareAndSet(word, current, current | bit)) return true;
+        }
+    }
+
+    private static boolean isSet(long[] marks, int node) {
+        return (marks[node >>> 6] & (1L << (node & 63))) != 0;
+    }
+
+    /**
+     * writeXml writes the unreachable variables for the unreachable-xsl style sheet
+     * @param xmlFile File for the unreachable-xml output
+     * @throws IOException if the file cannot be written
+     */
+    public void writeXml(File xmlFile) throws IOException {
+        try (OutputStream os = new FileOutputStream(xmlFile)) {
+            XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+            w.writeStartDocument("UTF-8", "1.0");
+            w.writeStartElement("unreachable");
+            w.writeAttribute("graph", ConfigReader.getL3Graph());
+            w.writeAttribute("variables", String.valueOf(variableCount));
+            w.writeAttribute("count", String.valueOf(unreachable.size()));
+            for (Layer layer : layers) {
+                w.writeStartElement("layer");
+                w.writeAttribute("name", layer.name);
+                w.writeAttribute("file", layer.fileName);
+                w.writeAttribute("variables", String.valueOf(layer.oids.size()));
+                for (Variable variable : unreachable) {
+                    if (variable.layer != layer) continue;
+                    w.writeEmptyElement("variable");
+                    w.writeAttribute("oid", variable.oid);
+                    w.writeAttribute("reason", variable.reason);
+                }
+                w.writeEndElement();
+            }
+            w.writeEndElement();
+            w.writeEndDocument();
+            w.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to write " + xmlFile + ". " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * writeText writes one line per unreachable variable: OID, layer and reason separated by tabs
+     * @param textFile File for the unreachable-text output
+     * @throws IOException if the file cannot be written
+     */
+    public void writeText(File textFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(textFile), StandardCharsets.UTF_8))) {
+            for (Variable variable : unreachable) {
+                out.println(variable.oid + "\t" + variable.layer.name + "\t" + variable.reason);
+            }
+        }
+    }
+
+    /* the variables defined in one L1 file */
+    private static final class Layer {
+        private final String name;
+        private final String fileName;
+        private final List<String> oids;
+
+        private Layer(String name, String fileName, List<String> oids) {
+            this.name = name;
+            this.fileName = fileName;
+            this.oids = oids;
+        }
+    }
+
+    /**
+     * Variable is an unreachable variable with the reason it was reported
+     */
+    static final class Variable {
+        private final String oid;
+        private final Layer layer;
+        private final String reason;
+
+        private Variable(String oid, Layer layer, String reason) {
+            this.oid = oid;
+            this.layer = layer;
+            this.reason = reason;
+        }
+
+        public String getOid() {
+            return oid;
+        }
+
+        public String getLayer() {
+            return layer.name;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /* expands a range of the frontier, splitting it across the pool, and returns the next frontier */
+    private final class Expand extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+        private final int[] frontier;
+        private final int from;
+        private final int to;
+        private final AtomicLongArray visited;
+        private final boolean isUpstream;
+
+        private Expand(int[] frontier, int from, int to, AtomicLongArray visited, boolean isUpstream) {
+            this.frontier = frontier;
+            this.from = from;
+            this.to = to;
+            this.visited = visited;
+            this.isUpstream = isUpstream;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from > SPLIT_SIZE) {
+                int middle = (from + to) >>> 1;
+                Expand left = new Expand(frontier, from, middle, visited, isUpstream);
+                left.fork();
+                int[] right = new Expand(frontier, middle, to, visited, isUpstream).compute();
+                int[] leftNext = left.join();
+                int[] next = Arrays.copyOf(leftNext, leftNext.length + right.length);
+                System.arraycopy(right, 0, next, leftNext.length, right.length);
+                return next;
+            }
+            int[] next = new int[16];
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                int node = frontier[i];
+                int end = isUpstream ? graph.inEnd(node) : graph.outEnd(node);
+                for (int e = isUpstream ? graph.inStart(node) : graph.outStart(node); e < end; e++) {
+                    int neighbor = isUpstream ? graph.inSource(e) : graph.outTarget(e);
+                    if (!mark(visited, neighbor)) continue;
+                    if (count == next.length) next = Arrays.copyOf(next, count * 2);
+                    next[count++] = neighbor;
+                }
+            }
+            return Arrays.copyOf(next, count);
+        }
+    }
+}
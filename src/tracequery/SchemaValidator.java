@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * SchemaValidator checks the L1 files in xml-files.xml against the ODM and Define-XML schemas before
+ * they are traced, so a malformed file is reported by name instead of as an empty trace. Each schema
+ * is compiled once and the files are validated in parallel as StAX streams. A file is validated
+ * against the Define-XML schema when its root element declares a Define-XML namespace and against
+ * the ODM schema otherwise. The fingerprint of each valid file and of its schema, with the schema
+ * files it includes or imports, is saved in xml-validation.properties in the xml-path, so a file is
+ * only validated again after it or one of the schema files changes.
+ * @version 0.1
+ */
+final class SchemaValidator {
+    public static final String FILE_NAME = "xml-validation.properties";
+    private static final String DEFINE_NAMESPACE = "http://www.cdisc.org/ns/def/";
+    private static final int MAX_FILE_ERRORS = 10;
+    private static final String[] SCHEMA_REFERENCES = {"include", "import", "redefine", "override"};
+    private final XmlFileList fileList;
+    private final File cacheFile;
+    private final File odmSchemaFile;
+    private final File defineSchemaFile;
+    private final Properties validated = new Properties();
+    private final List<String> invalidReferences = new ArrayList<>();
+    private Schema odmSchema;
+    private Schema defineSchema;
+    private int validatedCount = 0;
+    private int skippedCount = 0;
+
+    /**
+     * Constructor for SchemaValidator
+     * @param xmlPath String with the xml-path from the configuration file
+     * @param odmSchemaFile File with the ODM schema, or null to skip the ODM files
+     * @param defineSchemaFile File with the Define-XML schema, or null to skip the Define-XML files
+     * @throws IOException if xml-files.xml cannot be read
+     */
+    public SchemaValidator(String xmlPath, File odmSchemaFile, File defineSchemaFile) throws IOException {
+        this.fileList = new XmlFileList(xmlPath);
+        this.cacheFile = new File(xmlPath + FILE_NAME);
+        this.odmSchemaFile = odmSchemaFile;
+        this.defineSchemaFile = defineSchemaFile;
+        if (cacheFile.isFile()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                validated.load(in);
+            }
+        }
+    }
+
+    /**
+     * getSchemaFile resolves a schema file name from the configuration file
+     * @param xmlPath String with the xml-path, relative names are looked up there first
+     * @param name String schema file name, may be empty
+     * @return File with the schema or null if no schema is configured
+     */
+    public static File getSchemaFile(String xmlPath, String name) {
+        if (name.isEmpty()) return null;
+        File file = new File(name);
+        if (!file.isAbsolute() && new File(xmlPath + name).isFile()) return new File(xmlPath + name);
+        return file;
+    }
+
+    /**
+     * validate validates the new and changed L1 files and saves the fingerprints of the valid files
+     * @param threadCount int number of files validated in parallel
+     * @return List of the validation errors, empty if every file is valid
+     * @throws IOException if a schema cannot be compiled or the fingerprints cannot be saved
+     */
+    public List<String> validate(int threadCount) throws IOException {
+        String odmFingerprint = getSchemaFingerprint(odmSchemaFile);
+        String defineFingerprint = getSchemaFingerprint(defineSchemaFile);
+        List<String> references = new ArrayList<>();
+        for (String reference : fileList.getReferences()) {
+            if (isCurrent(reference, odmFingerprint, defineFingerprint)) {
+                skippedCount++;
+            } else {
+                references.add(reference);
+            }
+        }
+        List<String> errors = new ArrayList<>();
+        if (!references.isEmpty()) {
+            compileSchemas();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, references.size())));
+            List<Future<FileResult>> results = new ArrayList<>();
+            for (final String reference : references) {
+                results.add(executor.submit(() -> validateFile(reference)));
+            }
+            for (int i = 0; i < references.size(); i++) {
+                try {
+                    FileResult result = results.get(i).get();
+                    errors.addAll(result.errors);
+                    if (!result.errors.isEmpty()) invalidReferences.add(references.get(i));
+                    if (result.errors.isEmpty() && result.fingerprint != null) {
+                        String schemaFingerprint = result.isDefineXml ? defineFingerprint : odmFingerprint;
+                        validated.setProperty(references.get(i), result.fingerprint + " " + schemaFingerprint);
+                        validatedCount++;
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    errors.add(references.get(i) + ": " + ex.getMessage());
+                    invalidReferences.add(references.get(i));
+                }
+            }
+            executor.shutdown();
+            save();
+        }
+        return errors;
+    }
+
+    public int getValidatedCount() {
+        return validatedCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    /* the references in xml-files.xml of the files the last validate found not valid */
+    public List<String> getInvalidReferences() {
+        return invalidReferences;
+    }
+
+    /* the fingerprint of a schema and of every local schema file it includes or imports, directly or through another */
+    private static String getSchemaFingerprint(File schemaFile) throws IOException {
+        if (schemaFile == null) return "";
+        Set<File> schemaFiles = new LinkedHashSet<>();
+        addSchemaFiles(schemaFile.getCanonicalFile(), schemaFiles);
+        CRC32 crc = new CRC32();
+        for (File file : schemaFiles) {
+            crc.update(FileFingerprint.of(file).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return FileFingerprint.of(schemaFile) + "+" + Long.toHexString(crc.getValue());
+    }
+
+    /* the schemaLocation of xs:include, xs:import, xs:redefine and xs:override, remote locations are not followed */
+    private static void addSchemaFiles(File schemaFile, Set<File> schemaFiles) throws IOException {
+        if (!schemaFile.isFile() || !schemaFiles.add(schemaFile)) return;
+        List<File> referenced = new ArrayList<>();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(schemaFile), 1 << 16)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                if (!XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(reader.getNamespaceURI())) continue;
+                String location = reader.getAttributeValue(null, "schemaLocation");
+                if (location == null || location.contains("://")) continue;
+                for (String name : SCHEMA_REFERENCES) {
+                    if (name.equals(reader.getLocalName())) referenced.add(new File(schemaFile.getParentFile(), location));
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to read the schema " + schemaFile + ". " + ex.getMessage(), ex);
+        }
+        for (File file : referenced) {
+            addSchemaFiles(file.getCanonicalFile(), schemaFiles);
+        }
+    }
+
+    /* true if the file and the schema it was validated with are unchanged since it was found valid */
+    private boolean isCurrent(String reference, String odmFingerprint, String defineFingerprint) throws IOException {
+        String value = validated.getProperty(reference);
+        if (value == null) return false;
+        int space = value.indexOf(' ');
+        if (space < 0) return false;
+        FileFingerprint fingerprint = FileFingerprint.parse(value.substring(0, space));
+        String schemaFingerprint = value.substring(space + 1);
+        if (!schemaFingerprint.equals(odmFingerprint) && !schemaFingerprint.equals(defineFingerprint)) return false;
+        return fingerprint != null && fingerprint.matches(fileList.resolve(reference));
+    }
+
+    private void compileSchemas() throws IOException {
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        try {
+            if (odmSchemaFile != null) odmSchema = factory.newSchema(odmSchemaFile);
+            if (defineSchemaFile != null) defineSchema = factory.newSchema(defineSchemaFile);
+        } catch (SAXException ex) {
+            throw new IOException("Unable to compile the schema. " + ex.getMessage(), ex);
+        }
+    }
+
+    /* validate one file against its schema as a stream, the checksum is computed from the same read */
+    private FileResult validateFile(String reference) throws IOException {
+        File file = fileList.resolve(reference);
+        FileResult result = new FileResult(isDefineXml(file));
+        List<String> errors = result.errors;
+        Schema schema = result.isDefineXml ? defineSchema : odmSchema;
+        if (schema == null) return result;
+        long size = file.length();
+        long modified = file.lastModified();
+        CRC32 crc = new CRC32();
+        Validator validator = schema.newValidator();
+        validator.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException ex) {
+            }
+
+            @Override
+            public void error(SAXParseException ex) throws SAXException {
+                String error = reference + " line " + ex.getLineNumber() + ": " + ex.getMessage();
+                // the StAX validator can report an error once per event at the same location
+                if (!errors.isEmpty() && errors.get(errors.size() - 1).equals(error)) return;
+                errors.add(error);
+                if (errors.size() == MAX_FILE_ERRORS) throw ex;
+            }
+
+            @Override
+            public void fatalError(SAXParseException ex) throws SAXException {
+                throw ex;
+            }
+        });
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        try (InputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), crc)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            validator.validate(new StAXSource(reader));
+            reader.close();
+            // a valid document is read to the end of the file, so the checksum covers all of it
+            result.fingerprint = FileFingerprint.of(size, modified, crc.getValue()).toString();
+        } catch (SAXParseException ex) {
+            if (errors.size() < MAX_FILE_ERRORS) errors.add(reference + " line " + ex.getLineNumber() + ": " + ex.getMessage());
+        } catch (SAXException | XMLStreamException ex) {
+            errors.add(reference + ": " + ex.getMessage());
+        }
+        return result;
+    }
+
+    /* a Define-XML file declares the def namespace on its ODM root element */
+    private static boolean isDefineXml(File file) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 13)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                    if (reader.getNamespaceURI(i).startsWith(DEFINE_NAMESPACE)) return true;
+                }
+                return false;
+            }
+            return false;
+        } catch (XMLStreamException ex) {
+            // the validator reports the parse error
+            return false;
+        }
+    }
+
+    private void save() throws IOException {
+        try (OutputStream out = new FileOutputStream(cacheFile)) {
+            validated.store(out, "L1 files found valid, size:modified:checksum of the file and of its schema");
+        }
+    }
+
+    /* the errors of one file and its fingerprint if it was validated */
+    private static final class FileResult {
+        private final boolean isDefineXml;
+        private final List<String> errors = new ArrayList<>();
+        private String fingerprint;
+
+        FileResult(boolean isDefineXml) {
+            this.isDefineXml = isDefineXml;
+        }
+    }
+}
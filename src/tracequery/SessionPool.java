@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.basex.core.Context;
+
+/**
+ * SessionPool hands out TraceSessions to worker threads and takes them back when the trace is done,
+ * creating at most size sessions so the per-session tracer arrays are only allocated once per worker.
+ * @version 0.1
+ */
+class SessionPool {
+    private final Context context;
+    private final String graphMlFileName;
+    private final String l1FileName;
+    private final TraceGraph graph;
+    private final Boolean isDebug;
+    private final TraceCache cache;
+    private final OidIndex oidIndex;
+    private final StageMetrics metrics;
+    private final ChangeTracker tracker;
+    private final MemoryBudget budget;
+    private final int size;
+    private final AtomicInteger created = new AtomicInteger();
+    private final BlockingQueue<TraceSession> idle = new LinkedBlockingQueue<>();
+
+    /**
+     * Constructor for SessionPool
+     * @param context Context shared by the sessions
+     * @param graphMlFileName String bound as the graph document, a file name or database path
+     * @param l1FileName String bound as xml-files.xml, a file name or database path
+     * @param graph TraceGraph for the java engine, a LineageIndex for the index engine, or null to run trace-node.xql
+     * @param isDebug Boolean true to write the result of every stage to its output file
+     * @param cache TraceCache shared by the sessions, or null to always run the trace
+     * @param oidIndex OidIndex shared by the sessions, or null to bind xml-files.xml
+     * @param metrics StageMetrics shared by the sessions
+     * @param tracker ChangeTracker shared by the sessions, or null to not track changes
+     * @param budget MemoryBudget that holds back new traces while the heap is full, or null for no budget
+     * @param size int maximum number of sessions
+     */
+    public SessionPool(Context context, String graphMlFileName, String l1FileName, TraceGraph graph, Boolean isDebug, 
+            TraceCache cache, OidIndex oidIndex, StageMetrics metrics, ChangeTracker tracker, MemoryBudget budget, 
+            int size) {
+        this.context = context;
+        this.graphMlFileName = graphMlFileName;
+        this.l1FileName = l1FileName;
+        this.graph = graph;
+        this.isDebug = isDebug;
+        this.cache = cache;
+        this.oidIndex = oidIndex;
+        this.metrics = metrics;
+        this.tracker = tracker;
+        this.budget = budget;
+        this.size = size;
+    }
+
+    /**
+     * borrow returns an idle session, creating one while fewer than size exist, otherwise waits for one;
+     * with a memory budget it first waits while the heap is over the budget
+     * @return TraceSession for the exclusive use of the caller until it is released
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public TraceSession borrow() throws InterruptedException {
+        if (budget == null) return take();
+        budget.acquire();
+        try {
+            return take();
+        } catch (InterruptedException ex) {
+            budget.release();
+            throw ex;
+        }
+    }
+
+    private TraceSession take() throws InterruptedException {
+        TraceSession session = idle.poll();
+        if (session != null) return session;
+        if (created.incrementAndGet() <= size) {
+            return new TraceSession(context, graphMlFileName, l1FileName, graph, isDebug, cache, oidIndex, metrics, tracker);
+        }
+        created.decrementAndGet();
+        return idle.take();
+    }
+
+    /**
+     * release returns a session to the pool
+     * @param session TraceSession from borrow
+     */
+    public void release(TraceSession session) {
+        idle.offer(session);
+        if (budget != null) budget.release();
+    }
+
+    public int size() {
+        return size;
+    }
+}
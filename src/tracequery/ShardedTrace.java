@@ -0,0 +1,463 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.basex.core.BaseXException;
+import org.basex.core.Context;
+import org.basex.core.MainOptions;
+import org.basex.core.cmd.CreateDB;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.basex.query.value.Value;
+
+/**
+ * ShardedTrace traces an OID across several study graphs, such as the studies pooled in an ISS or ISE.
+ * Each shard has its own graph, L1 files and OID index, loaded independently, and its GraphML is loaded
+ * once into a main-memory database that the node OID queries of every trace read, or in the low-memory
+ * mode kept as the node records of its graph. The trace walks every shard that holds the OID in parallel;
+ * a node reached upstream that is also in another shard is walked further upstream there, and likewise
+ * downstream, until no shard reaches a new shared OID. The node details of each shard are looked up in its
+ * own L1 files and merged into one node details document, which with the filter option is filtered by
+ * trace-node-filters.xql as a single trace is, and rendered to the trace outputs in the xml-path. A batch
+ * traces several OIDs at a time, each with its own set of tracers and sessions.
+ * @version 0.1
+ */
+final class ShardedTrace {
+    private static final String GRAPH_DB_PREFIX = "trace-graph-shard-";
+    private static final TraceLimits UPSTREAM = new TraceLimits(TraceLimits.UPSTREAM, 0, 0, 0);
+    private static final TraceLimits DOWNSTREAM = new TraceLimits(TraceLimits.DOWNSTREAM, 0, 0, 0);
+    private final List<Shard> shards;
+    private final Context context;
+    private final StageMetrics metrics;
+    private final Boolean isDebug;
+    private final ExecutorService executor;
+    private final int traceCount;
+    private BlockingQueue<List<ShardWalk>> walks;
+
+    /**
+     * Shard is one study graph with its L1 files and the main-memory database of its GraphML
+     */
+    static final class Shard {
+        private final String name;
+        private final TraceGraph graph;
+        private final Context dbContext;
+        private final String graphDbName;
+        private final String l1FileName;
+        private final OidIndex oidIndex;
+
+        Shard(String name, TraceGraph graph, Context dbContext, String graphDbName, String l1FileName, OidIndex oidIndex) {
+            this.name = name;
+            this.graph = graph;
+            this.dbContext = dbContext;
+            this.graphDbName = graphDbName;
+            this.l1FileName = l1FileName;
+            this.oidIndex = oidIndex;
+        }
+    }
+
+    /**
+     * ShardWalk is the state of one trace in one shard: its tracers, the session that looks up its node
+     * details and the nodes reached so far; a walk is used by one trace at a time
+     */
+    static final class ShardWalk {
+        private final Shard shard;
+        private final NodeTracer tracer;
+        private final TraceSession session;
+        /* the shared OIDs already walked in this shard, by direction */
+        private final Set<String> upstreamSeeds = new HashSet<>();
+        private final Set<String> downstreamSeeds = new HashSet<>();
+        private final Set<String> pendingUpstream = new LinkedHashSet<>();
+        private final Set<String> pendingDownstream = new LinkedHashSet<>();
+        private final Set<String> nodeIds = new LinkedHashSet<>();
+
+        ShardWalk(Shard shard, TraceSession session) {
+            this.shard = shard;
+            this.tracer = new GraphTracer(shard.graph);
+            this.session = session;
+        }
+
+        private void reset() {
+            upstreamSeeds.clear();
+            downstreamSeeds.clear();
+            pendingUpstream.clear();
+            pendingDownstream.clear();
+            nodeIds.clear();
+        }
+
+        /* queue a walk from a node of this shard that was reached in another shard */
+        private boolean seed(String id, boolean isUpstream) {
+            if (shard.graph.indexOf(id) < 0) return false;
+            if (isUpstream) {
+                return upstreamSeeds.add(id) && pendingUpstream.add(id);
+            }
+            return downstreamSeeds.add(id) && pendingDownstream.add(id);
+        }
+
+        /* the ids of the nodes reached in this shard by the last trace */
+        Set<String> getNodeIds() {
+            return nodeIds;
+        }
+
+        private boolean isPending() {
+            return !pendingUpstream.isEmpty() || !pendingDownstream.isEmpty();
+        }
+
+        /* walk the queued seeds, returns the nodes reached upstream and downstream for the other shards */
+        private List<List<String>> walk() {
+            List<String> upstream = new ArrayList<>();
+            List<String> downstream = new ArrayList<>();
+            for (String id : pendingUpstream) {
+                walk(id, UPSTREAM, upstream, upstreamSeeds);
+            }
+            for (String id : pendingDownstream) {
+                walk(id, DOWNSTREAM, downstream, downstreamSeeds);
+            }
+            pendingUpstream.clear();
+            pendingDownstream.clear();
+            List<List<String>> reached = new ArrayList<>();
+            reached.add(upstream);
+            reached.add(downstream);
+            return reached;
+        }
+
+        /* a node reached in one direction needs no walk of its own in that direction */
+        private void walk(String id, TraceLimits limits, List<String> reached, Set<String> seeds) {
+            int count = tracer.trace(shard.graph.indexOf(id), limits);
+            for (int i = 0; i < count; i++) {
+                String nodeId = shard.graph.idOf(tracer.getNode(i));
+                nodeIds.add(nodeId);
+                reached.add(nodeId);
+                seeds.add(nodeId);
+            }
+        }
+    }
+
+    /**
+     * Constructor for ShardedTrace
+     * @param context Context shared by the shard sessions
+     * @param shards List of the loaded shards
+     * @param isDebug Boolean true to write the merged node details to their output file
+     * @param metrics StageMetrics that records the cost of each stage
+     * @param threadCount int number of threads for the shards and of OIDs traced at the same time
+     */
+    ShardedTrace(Context context, List<Shard> shards, Boolean isDebug, StageMetrics metrics, int threadCount) {
+        this.context = context;
+        this.shards = shards;
+        this.isDebug = isDebug;
+        this.metrics = metrics;
+        this.traceCount = Math.max(1, threadCount);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+    }
+
+    /**
+     * open loads the graph, the main-memory graph database and the OID index of every shard in the
+     * configuration file, in parallel
+     * @param context Context shared by the shard sessions
+     * @param isDebug Boolean true to write the result of every stage to its output file
+     * @param metrics StageMetrics that records the cost of each stage
+     * @param threadCount int number of shards loaded, walked and looked up, and of OIDs traced, at the same time
+     * @return ShardedTrace over the shards
+     * @throws IOException if a graph or OID index cannot be loaded
+     */
+    public static ShardedTrace open(final Context context, final Boolean isDebug, final StageMetrics metrics, int threadCount) 
+            throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        ShardedTrace sharded = new ShardedTrace(context, shards, isDebug, metrics, threadCount);
+        List<Callable<Shard>> tasks = new ArrayList<>();
+        List<String> names = ConfigReader.getShards();
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final String graphDbName = GRAPH_DB_PREFIX + i;
+            tasks.add(() -> loadShard(context, name, graphDbName));
+        }
+        try {
+            for (Future<Shard> shard : sharded.executor.invokeAll(tasks)) {
+                shards.add(shard.get());
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            sharded.close();
+            Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+        sharded.walks = new ArrayBlockingQueue<>(sharded.traceCount);
+        for (int i = 0; i < sharded.traceCount; i++) {
+            List<ShardWalk> walk = new ArrayList<>();
+            for (Shard shard : shards) {
+                walk.add(new ShardWalk(shard, new TraceSession(context, shard.graphDbName, shard.l1FileName, shard.graph, isDebug, 
+                        null, shard.oidIndex, metrics, null)));
+            }
+            sharded.walks.add(walk);
+        }
+        return sharded;
+    }
+
+    /* the GraphML is parsed once into a main-memory database; each shard creates it in its own context so the
+       databases do not replace each other as the current database, the sessions open them by name; the
+       low-memory mode has no database, the sessions bind the node records of the graph instead */
+    private static Shard loadShard(Context context, String name, String graphDbName) throws IOException {
+        long start = System.nanoTime();
+        String xmlPath = ConfigReader.getShardXmlPath(name);
+        File graphFile = new File(xmlPath + ConfigReader.getShardL3Graph(name));
+        boolean isLowMemory = ConfigReader.getLowMemory();
+        TraceGraph graph = ConfigReader.getGraphSnapshot() && !isLowMemory ? GraphSnapshot.open(graphFile) 
+                : GraphMlLoader.load(graphFile);
+        OidIndex oidIndex = ConfigReader.getOidIndex() || isLowMemory ? OidIndex.open(xmlPath) : null;
+        if (isLowMemory) {
+            System.out.println("Loaded shard " + name + " with " + graph.nodeCount() + " nodes and " + graph.edgeCount() 
+                    + " edges in " + ParallelTrace.elapsedMillis(start) + " ms");
+            return new Shard(name, graph, null, graphFile.getPath(), xmlPath + XmlFileList.FILE_NAME, oidIndex);
+        }
+        Context dbContext = new Context(context);
+        try {
+            dbContext.options.set(MainOptions.MAINMEM, true);
+            new CreateDB(graphDbName, graphFile.getPath()).execute(dbContext);
+        } catch (BaseXException ex) {
+            dbContext.close();
+            throw new IOException("Unable to load the graph of shard " + name + ". " + ex.getMessage(), ex);
+        }
+        System.out.println("Loaded shard " + name + " with " + graph.nodeCount() + " nodes and " + graph.edgeCount() + " edges in " 
+                + ParallelTrace.elapsedMillis(start) + " ms");
+        return new Shard(name, graph, dbContext, graphDbName, xmlPath + XmlFileList.FILE_NAME, oidIndex);
+    }
+
+    /**
+     * getVariableOids returns the variable nodes of every shard, each shared OID once
+     * @param prefix String prefix of the variable node ids
+     * @return List of the variable OIDs
+     */
+    public List<String> getVariableOids(String prefix) {
+        Set<String> oids = new LinkedHashSet<>();
+        for (Shard shard : shards) {
+            for (int node = 0; node < shard.graph.nodeCount(); node++) {
+                String id = shard.graph.idOf(node);
+                if (id.startsWith(prefix)) oids.add(id);
+            }
+        }
+        return new ArrayList<>(oids);
+    }
+
+    /**
+     * run traces every OID across the shards, several OIDs at a time, and reports the time for each OID and the total
+     * @param oids List of OIDs to trace
+     * @param isFilter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @return int number of OIDs that could not be traced
+     */
+    public int run(List<String> oids, final Boolean isFilter) {
+        long batchStart = System.nanoTime();
+        ExecutorService batch = Executors.newFixedThreadPool(traceCount);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (final String oid : oids) {
+            results.add(batch.submit(() -> {
+                long oidStart = System.nanoTime();
+                try {
+                    trace(oid, isFilter, ParallelTrace.getOutputPrefix(oid));
+                    System.out.println(oid + ": " + ParallelTrace.elapsedMillis(oidStart) + " ms");
+                    return Boolean.TRUE;
+                } catch (TraceException ex) {
+                    System.err.println(oid + ": " + ex.getMessage() + " (" + ParallelTrace.elapsedMillis(oidStart) + " ms)");
+                    return Boolean.FALSE;
+                }
+            }));
+        }
+        int failCount = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) failCount++;
+            } catch (InterruptedException | ExecutionException ex) {
+                failCount++;
+                System.err.println("Trace task failed. " + ex.getMessage());
+            }
+        }
+        batch.shutdown();
+        System.out.println("Traced " + (oids.size() - failCount) + " of " + oids.size() + " OIDs across " + shards.size() 
+                + " shards in " + ParallelTrace.elapsedMillis(batchStart) + " ms on " + traceCount + " threads");
+        return failCount;
+    }
+
+    /**
+     * trace traces an OID across the shards and writes the trace outputs for the merged node details
+     * @param oid String OID of the variable to trace
+     * @param isFilter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @param prefix String prefix for the output files of this trace
+     * @throws TraceException if no shard has the OID or no node details are found
+     */
+    public void trace(String oid, Boolean isFilter, String prefix) throws TraceException {
+        List<ShardWalk> walk;
+        try {
+            walk = walks.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TraceException("Interrupted while waiting to trace oid = " + oid);
+        }
+        try {
+            List<ShardWalk> traced = walkShards(oid, walk);
+            if (traced.isEmpty()) throw new TraceException("No trace was found for oid = " + oid + " in any shard.");
+            List<StageResult> details = lookupDetails(oid, isFilter, prefix, traced);
+            if (details.isEmpty()) throw new TraceException("Unable to retrieve the node details for this trace for oid = " + oid);
+            mergeDetails(oid, isFilter, prefix, details, walk.get(0).session);
+        } finally {
+            for (ShardWalk shardWalk : walk) {
+                shardWalk.session.closeQueries();
+            }
+            walks.add(walk);
+        }
+    }
+
+    /* walk the shards in rounds until no shard reaches a shared OID it has not walked; returns the shards with nodes */
+    List<ShardWalk> walkShards(String oid, List<ShardWalk> walk) throws TraceException {
+        StageMetrics.Record record = metrics.start(oid, "shard-trace");
+        long startTime = System.nanoTime();
+        for (ShardWalk shardWalk : walk) {
+            shardWalk.reset();
+            shardWalk.seed(oid, true);
+            shardWalk.seed(oid, false);
+        }
+        List<ShardWalk> pending = getPending(walk);
+        while (!pending.isEmpty()) {
+            List<Callable<List<List<String>>>> tasks = new ArrayList<>();
+            for (final ShardWalk shardWalk : pending) {
+                tasks.add(shardWalk::walk);
+            }
+            List<List<List<String>>> reached = invokeAll(tasks);
+            for (int i = 0; i < pending.size(); i++) {
+                for (ShardWalk shardWalk : walk) {
+                    if (shardWalk == pending.get(i)) continue;
+                    for (String id : reached.get(i).get(0)) {
+                        shardWalk.seed(id, true);
+                    }
+                    for (String id : reached.get(i).get(1)) {
+                        shardWalk.seed(id, false);
+                    }
+                }
+            }
+            pending = getPending(walk);
+        }
+        List<ShardWalk> traced = new ArrayList<>();
+        for (ShardWalk shardWalk : walk) {
+            if (!shardWalk.nodeIds.isEmpty()) traced.add(shardWalk);
+            record.items += shardWalk.nodeIds.size();
+        }
+        record.evaluateNanos = System.nanoTime() - startTime;
+        metrics.finish(record);
+        return traced;
+    }
+
+    private static List<ShardWalk> getPending(List<ShardWalk> walk) {
+        List<ShardWalk> pending = new ArrayList<>();
+        for (ShardWalk shardWalk : walk) {
+            if (shardWalk.isPending()) pending.add(shardWalk);
+        }
+        return pending;
+    }
+
+    /* look up the node details of each shard in its own L1 files; a shard that only links to shared OIDs
+       defined in another study may have no details of its own */
+    private List<StageResult> lookupDetails(final String oid, final Boolean isFilter, final String prefix, List<ShardWalk> traced) 
+            throws TraceException {
+        List<Callable<StageResult>> tasks = new ArrayList<>();
+        for (final ShardWalk shardWalk : traced) {
+            tasks.add(() -> {
+                try {
+                    return shardWalk.session.runNodeDetails(oid, isFilter, new ArrayList<>(shardWalk.nodeIds), 
+                            prefix + shardWalk.shard.name + "-");
+                } catch (TraceException ex) {
+                    System.err.println(shardWalk.shard.name + ": " + ex.getMessage());
+                    return null;
+                }
+            });
+        }
+        List<StageResult> details = new ArrayList<>();
+        for (StageResult result : invokeAll(tasks)) {
+            if (result != null) details.add(result);
+        }
+        return details;
+    }
+
+    /* merge the node details of the shards under the root element of the first, a node shared by
+       shards with the same details is kept once; the filter needs the TraceItems of every shard, so it runs
+       on the merged details */
+    private void mergeDetails(String oid, Boolean isFilter, String prefix, List<StageResult> details, TraceSession session) 
+            throws TraceException {
+        StringBuilder query = new StringBuilder();
+        StringBuilder shardDocs = new StringBuilder();
+        for (int i = 0; i < details.size(); i++) {
+            query.append("declare variable $shard").append(i).append(" external; ");
+            shardDocs.append(i == 0 ? "" : ", ").append("$shard").append(i);
+        }
+        query.append("let $roots := for $doc in (").append(shardDocs).append(") return $doc/descendant-or-self::*[1] ")
+                .append("return element { node-name($roots[1]) } { $roots[1]/@*, ")
+                .append("for $node in $roots/* group by $key := serialize($node) return $node[1] }");
+        StageMetrics.Record record = metrics.start(oid, "merge-shards");
+        long startTime = System.nanoTime();
+        try (QueryProcessor proc = new QueryProcessor(query.toString(), context)) {
+            for (int i = 0; i < details.size(); i++) {
+                proc.bind("shard" + i, details.get(i).getValue());
+            }
+            Value merged = proc.value();
+            record.evaluateNanos = System.nanoTime() - startTime;
+            record.items = details.size();
+            metrics.finish(record);
+            String fileName = ConfigReader.getXmlPath() + prefix + ConfigReader.getTraceNodeDetails();
+            StageResult result = new StageResult(proc, merged, fileName, 1, null);
+            if (isDebug) result.write();
+            if (isFilter) {
+                session.begin(oid, isFilter, prefix);
+                result = session.runGetFilteredNodes(result);
+            }
+            session.renderTrace(oid, isFilter, result, prefix);
+        } catch (QueryException | IOException ex) {
+            throw new TraceException("Unable to merge the node details of the shards for oid = " + oid + ". " + ex.getMessage());
+        }
+    }
+
+    /* run the tasks on the shard threads, a task that fails fails the trace */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) throws TraceException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> result : executor.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+            throw new TraceException("Shard task failed. " + cause.getMessage());
+        }
+        return results;
+    }
+
+    /**
+     * close stops the shard threads and closes the graph databases of the shards
+     */
+    public void close() {
+        executor.shutdown();
+        for (Shard shard : shards) {
+            if (shard.dbContext != null) shard.dbContext.close();
+        }
+    }
+}
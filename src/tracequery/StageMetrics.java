@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * StageMetrics records the cost of each trace stage: the parse, compile, evaluate and serialize
+ * times of the stage query, the number of result items, the bytes written and the heap allocated
+ * by the thread running the stage. The records can be written as a JSON report for dashboards.
+ * A disabled instance hands out records without keeping them.
+ * @version 0.1
+ */
+final class StageMetrics {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean isEnabled;
+    private final long runStart = System.currentTimeMillis();
+    private final List<Record> records = new ArrayList<>();
+
+    /**
+     * Constructor for StageMetrics
+     * @param isEnabled boolean true to keep the records for the report
+     */
+    public StageMetrics(boolean isEnabled) {
+        this.isEnabled = isEnabled;
+    }
+
+    /**
+     * start begins measuring a stage on the current thread
+     * @param oid String OID being traced
+     * @param stage String name of the stage, the query file name for query stages
+     * @return Record to fill in and pass to finish
+     */
+    public Record start(String oid, String stage) {
+        return new Record(oid, stage, allocatedBytes());
+    }
+
+    /**
+     * finish completes the measurement of a stage started on the current thread
+     * @param record Record from start
+     */
+    public void finish(Record record) {
+        if (record.allocatedBytes >= 0) {
+            record.allocatedBytes = allocatedBytes() - record.allocatedBytes;
+        }
+        if (isEnabled) {
+            synchronized (records) {
+                records.add(record);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * getRecords returns a copy of the finished records
+     * @return List of the records in the order the stages finished
+     */
+    public List<Record> getRecords() {
+        synchronized (records) {
+            return new ArrayList<>(records);
+        }
+    }
+
+    /* heap allocated by the current thread, -1 if the JVM does not report it */
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * writeJson writes the records as a JSON report
+     * @param reportFile File to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(File reportFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"runStart\": " + runStart + ",");
+            out.println("  \"runMillis\": " + (System.currentTimeMillis() - runStart) + ",");
+            out.println("  \"stages\": [");
+            List<Record> finished = getRecords();
+            for (int i = 0; i < finished.size(); i++) {
+                out.print("    " + finished.get(i).toJson());
+                out.println(i < finished.size() - 1 ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * Record holds the measurements of one stage of one trace, times are in nanoseconds
+     */
+    static final class Record {
+        private final String oid;
+        private final String stage;
+        private long allocatedBytes;
+        long parseNanos = 0;
+        long compileNanos = 0;
+        long evaluateNanos = 0;
+        long serializeNanos = 0;
+        long items = 0;
+        long bytesWritten = 0;
+
+        private Record(String oid, String stage, long allocatedBytes) {
+            this.oid = oid;
+            this.stage = stage;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public String getOid() {
+            return oid;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public long getTotalNanos() {
+            return parseNanos + compileNanos + evaluateNanos + serializeNanos;
+        }
+
+        /* serialization can happen after the stage finished, when a later stage needs the output file */
+        synchronized void addSerialize(long nanos, long bytes) {
+            serializeNanos += nanos;
+            bytesWritten += bytes;
+        }
+
+        private String toJson() {
+            return "{\"oid\": " + quote(oid) + ", \"stage\": " + quote(stage)
+                    + ", \"parseMs\": " + millis(parseNanos) + ", \"compileMs\": " + millis(compileNanos)
+                    + ", \"evaluateMs\": " + millis(evaluateNanos) + ", \"serializeMs\": " + millis(serializeNanos)
+                    + ", \"items\": " + items + ", \"bytesWritten\": " + bytesWritten
+                    + ", \"allocatedBytes\": " + allocatedBytes + "}";
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import org.basex.api.dom.BXNode;
+import org.basex.io.serial.Serializer;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.basex.query.iter.Iter;
+import org.basex.query.value.Value;
+import org.basex.query.value.item.Item;
+import org.basex.query.value.node.ANode;
+import org.basex.query.value.type.NodeType;
+import org.basex.util.Token;
+
+/**
+ * StageResult holds the output of one trace query stage in memory so it can be bound into the next
+ * stage, and writes it to the stage output file when the file is needed.
+ * @version 0.1
+ */
+class StageResult {
+    private final QueryProcessor proc;
+    private final Value value;
+    private final String fileName;
+    private final int count;
+    private final StageMetrics.Record record;
+    private boolean isWritten = false;
+
+    /**
+     * Constructor for StageResult
+     * @param proc QueryProcessor that produced the result, used to serialize it
+     * @param value Value with the query result
+     * @param fileName String with the output file for this stage
+     * @param count int number of non-empty result items
+     * @param record StageMetrics.Record of the stage that is charged with the serialization, or null
+     */
+    public StageResult(QueryProcessor proc, Value value, String fileName, int count, StageMetrics.Record record) {
+        this.proc = proc;
+        this.value = value;
+        this.fileName = fileName;
+        this.count = count;
+        this.record = record;
+    }
+
+    QueryProcessor getProc() {
+        return proc;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * write serializes the result to the stage output file if it has not been written yet
+     * @return String with the output file name
+     * @throws IOException if the file cannot be written
+     * @throws QueryException if the result cannot be serialized
+     */
+    public String write() throws IOException, QueryException {
+        if (!isWritten) {
+            // batch runs write many output files so each stream is closed once serialized
+            try (OutputStream os = new FileOutputStream(fileName)) {
+                write(os);
+            }
+            isWritten = true;
+        }
+        return fileName;
+    }
+
+    /**
+     * write serializes the result to a stream
+     * @param os OutputStream that receives the serialized result, it is not closed
+     * @throws IOException if the stream cannot be written
+     * @throws QueryException if the result cannot be serialized
+     */
+    public void write(OutputStream os) throws IOException, QueryException {
+        long startTime = System.nanoTime();
+        CountingOutputStream counter = new CountingOutputStream(os);
+        Serializer ser = proc.getSerializer(counter);
+        Iter iter = value.iter();
+        for(Item item; (item = iter.next()) != null;) {
+            ser.serialize(item);
+        }
+        ser.close();
+        if (record != null) record.addSerialize(System.nanoTime() - startTime, counter.getCount());
+    }
+
+    /**
+     * isEmptyNodes tests for the empty nodes element a stage returns when nothing matched without
+     * serializing the item
+     * @param item Item from a stage result
+     * @return boolean true if the item is an element named nodes without attributes or children
+     */
+    static boolean isEmptyNodes(Item item) {
+        if (!(item instanceof ANode) || item.type != NodeType.ELM) return false;
+        ANode node = (ANode) item;
+        return "nodes".equalsIgnoreCase(Token.string(Token.local(node.name()))) && !node.hasChildren() && node.attributes().next() == null;
+    }
+
+    /**
+     * toSource provides the result as input for an XSLT transformation, reading the output file
+     * if one was written and otherwise wrapping the result node as a DOM without serializing it
+     * @param oid String OID of the trace, for the error message
+     * @return Source for the transformation
+     * @throws TraceException if the result is not a single element or document node
+     */
+    public Source toSource(String oid) throws TraceException {
+        if (isWritten) return new StreamSource(fileName);
+        if (value == null || value.size() != 1 || !(value.itemAt(0) instanceof ANode) 
+                || value.itemAt(0).type != NodeType.ELM && value.itemAt(0).type != NodeType.DOC) {
+            throw new TraceException("The node details for oid = " + oid + " are not a single XML element or document, " 
+                    + (value == null ? 0 : value.size()) + " items were returned.");
+        }
+        return new DOMSource(BXNode.get((ANode) value.itemAt(0)));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StringPool interns strings into direct buffers outside the heap and hands out dense int handles.
+ * Each string is kept once as UTF-8 bytes; the heap holds only the location, length and hash of each
+ * string and the open addressing table, instead of a String and its characters. get decodes a new
+ * String each time, so the pool suits ids that are looked up rarely compared to how many there are.
+ * The pool is not thread-safe for add; get, indexOf and size can be called concurrently once it is built.
+ * @version 0.1
+ */
+final class StringPool {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final AtomicLong allocated = new AtomicLong();
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long[] locations;
+    private int[] lengths;
+    private int[] hashes;
+    private int[] slots;
+    private int size = 0;
+    private ByteBuffer chunk;
+
+    /**
+     * Constructor for StringPool
+     * @param expectedSize int number of strings expected, the pool grows as needed
+     */
+    public StringPool(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        locations = new long[capacity];
+        lengths = new int[capacity];
+        hashes = new int[capacity];
+        slots = new int[NodeIdTable.tableSize(expectedSize)];
+    }
+
+    /**
+     * add interns a string
+     * @param value String to intern
+     * @return int handle of the string, the existing handle if it was already added
+     */
+    public int add(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = value.hashCode();
+        int slot = findSlot(bytes, hash);
+        if (slots[slot] != 0) return slots[slot] - 1;
+        if (size == locations.length) {
+            locations = Arrays.copyOf(locations, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        locations[size] = store(bytes);
+        lengths[size] = bytes.length;
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) rehash();
+        return size - 1;
+    }
+
+    /**
+     * indexOf looks up a string without adding it
+     * @param value String to look up
+     * @return int handle of the string or -1 if it has not been added
+     */
+    public int indexOf(String value) {
+        return slots[findSlot(value.getBytes(StandardCharsets.UTF_8), value.hashCode())] - 1;
+    }
+
+    /**
+     * get decodes the string with a handle
+     * @param handle int handle from add
+     * @return String with the interned value
+     */
+    public String get(int handle) {
+        byte[] bytes = new byte[lengths[handle]];
+        ByteBuffer buffer = chunks.get((int) (locations[handle] >>> 32)).duplicate();
+        buffer.position((int) locations[handle]);
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * getAllocatedBytes returns the direct buffer bytes held by every pool in the JVM, for the memory report
+     * @return long bytes allocated outside the heap
+     */
+    public static long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    /* copy the bytes into the current chunk, a string longer than a chunk gets a chunk of its own */
+    private long store(byte[] bytes) {
+        if (chunk == null || chunk.remaining() < bytes.length) {
+            chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, bytes.length));
+            chunks.add(chunk);
+            allocated.addAndGet(chunk.capacity());
+        }
+        long location = ((long) (chunks.size() - 1) << 32) | chunk.position();
+        chunk.put(bytes);
+        return location;
+    }
+
+    /* linear probing, slots hold handle + 1 so 0 marks an empty slot; the bytes are compared only when the hashes match */
+    private int findSlot(byte[] bytes, int hash) {
+        int mask = slots.length - 1;
+        int slot = NodeIdTable.mix(hash) & mask;
+        while (slots[slot] != 0 && !matches(slots[slot] - 1, bytes, hash)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(int handle, byte[] bytes, int hash) {
+        if (hashes[handle] != hash || lengths[handle] != bytes.length) return false;
+        ByteBuffer buffer = chunks.get((int) (locations[handle] >>> 32));
+        int position = (int) locations[handle];
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(position + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        int mask = slots.length - 1;
+        for (int entry : old) {
+            if (entry == 0) continue;
+            int slot = NodeIdTable.mix(hashes[entry - 1]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = entry;
+        }
+    }
+}
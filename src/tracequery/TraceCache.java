@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TraceCache keeps finished traces so repeated requests for the same OID skip every query stage.
+ * The first level is an in-memory LRU bounded by the total size of the cached outputs, the second
+ * level is a directory under the xml-path bounded by its total size, evicting the least recently
+ * used files. Entries are keyed by OID, the filter option, the output format (html, text or the
+ * node-details xml) and a fingerprint of the graph, the L1 files, the .xql and .xsl files and the
+ * settings that change the output, such as the trace engine, so
+ * a change to any of them makes the old entries unreachable.
+ * @version 0.1
+ */
+class TraceCache {
+    public static final String CACHE_DIR = "trace-cache";
+    private final String fingerprint;
+    private final long memoryLimit;
+    private final long diskLimit;
+    private final File cacheDir;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private long memorySize = 0;
+    private long diskSize = 0;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    /* a write, eviction or size read of one cache file holds the lock of its stripe */
+    private final Object[] fileLocks = new Object[64];
+
+    /**
+     * Constructor for TraceCache
+     * @param fingerprint String that identifies the version of every input to the trace
+     * @param memoryLimit long maximum bytes held in memory, 0 disables the memory level
+     * @param diskLimit long maximum bytes stored under the cache directory, 0 disables the disk level
+     * @param cacheDir File directory for the disk level
+     */
+    public TraceCache(String fingerprint, long memoryLimit, long diskLimit, File cacheDir) {
+        this.fingerprint = fingerprint;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        this.cacheDir = cacheDir;
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new Object();
+        }
+        if (diskLimit > 0) {
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                System.err.println("Warning: unable to create the trace cache directory " + cacheDir);
+            }
+            for (File file : listCacheFiles()) {
+                diskSize += file.length();
+            }
+            evictDisk();
+        }
+    }
+
+    /**
+     * get returns a cached trace output
+     * @param oid String OID of the trace
+     * @param isFilter Boolean filter option of the trace
+     * @param format String output format
+     * @return byte[] with the output or null if it is not cached
+     */
+    public byte[] get(String oid, Boolean isFilter, String format) {
+        String key = getKey(oid, isFilter, format);
+        synchronized (this) {
+            byte[] output = memory.get(key);
+            if (output != null) {
+                memoryHits.incrementAndGet();
+                return output;
+            }
+        }
+        if (diskLimit > 0) {
+            File file = getFile(key);
+            if (file.isFile()) {
+                try {
+                    byte[] output = Files.readAllBytes(file.toPath());
+                    // the modification time orders the disk entries for eviction
+                    file.setLastModified(System.currentTimeMillis());
+                    diskHits.incrementAndGet();
+                    putMemory(key, output);
+                    return output;
+                } catch (IOException ex) {
+                    System.err.println("Unable to read the cached trace " + file + ". " + ex.getMessage());
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * put adds a trace output to both cache levels
+     * @param oid String OID of the trace
+     * @param isFilter Boolean filter option of the trace
+     * @param format String output format
+     * @param output byte[] with the output
+     */
+    public void put(String oid, Boolean isFilter, String format, byte[] output) {
+        String key = getKey(oid, isFilter, format);
+        putMemory(key, output);
+        if (diskLimit > 0 && output.length <= diskLimit) {
+            File file = getFile(key);
+            synchronized (getLock(file)) {
+                long oldSize = file.isFile() ? file.length() : 0;
+                try {
+                    Files.write(file.toPath(), output);
+                } catch (IOException ex) {
+                    System.err.println("Unable to write the cached trace " + file + ". " + ex.getMessage());
+                }
+                addDiskSize((file.isFile() ? file.length() : 0) - oldSize);
+            }
+            evictDisk();
+        }
+    }
+
+    /**
+     * accepts tests whether an output of a size fits in either cache level
+     * @param size long size of the output in bytes
+     * @return boolean true if put would keep the output
+     */
+    public boolean accepts(long size) {
+        return size <= memoryLimit || size <= diskLimit;
+    }
+
+    private synchronized void putMemory(String key, byte[] output) {
+        if (output.length > memoryLimit) return;
+        byte[] old = memory.put(key, output);
+        memorySize += output.length - (old == null ? 0 : old.length);
+        for (Iterator<byte[]> it = memory.values().iterator(); memorySize > memoryLimit && it.hasNext();) {
+            memorySize -= it.next().length;
+            it.remove();
+            memoryEvictions.incrementAndGet();
+        }
+    }
+
+    private synchronized long addDiskSize(long change) {
+        diskSize += change;
+        return diskSize;
+    }
+
+    private Object getLock(File file) {
+        return fileLocks[(file.getName().hashCode() & 0x7fffffff) % fileLocks.length];
+    }
+
+    /* remove the least recently used files until the directory fits the disk limit; each file is measured
+       and deleted under its lock so a concurrent write of the same file cannot make the size drift */
+    private void evictDisk() {
+        if (addDiskSize(0) <= diskLimit) return;
+        List<File> files = listCacheFiles();
+        final long[] modified = new long[files.size()];
+        for (int i = 0; i < modified.length; i++) {
+            modified[i] = files.get(i).lastModified();
+        }
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        for (int i = 0; i < order.length && addDiskSize(0) > diskLimit; i++) {
+            File file = files.get(order[i]);
+            synchronized (getLock(file)) {
+                long length = file.length();
+                if (file.delete()) {
+                    addDiskSize(-length);
+                    diskEvictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private List<File> listCacheFiles() {
+        File[] files = cacheDir.listFiles();
+        return files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    private String getKey(String oid, Boolean isFilter, String format) {
+        return fingerprint + "|" + isFilter + "|" + format + "|" + oid;
+    }
+
+    private File getFile(String key) {
+        return new File(cacheDir, sha256(key) + ".trace");
+    }
+
+    /**
+     * getStats reports the hit, miss and eviction counters
+     * @return String with the counters
+     */
+    public String getStats() {
+        return "memory hits=" + memoryHits.get() + " disk hits=" + diskHits.get() + " misses=" + misses.get()
+                + " memory evictions=" + memoryEvictions.get() + " disk evictions=" + diskEvictions.get();
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return memoryEvictions.get() + diskEvictions.get();
+    }
+
+    /**
+     * fingerprint combines the path, size and modification time of every trace input and the settings
+     * that change the trace output into one key
+     * @param files List of the graph, L1, .xql and .xsl files
+     * @param settings List of name=value settings, such as the trace engine, that change the output
+     * @return String hex digest identifying this version of the inputs
+     */
+    static String fingerprint(List<File> files, List<String> settings) {
+        StringBuilder inputs = new StringBuilder();
+        for (File file : files) {
+            inputs.append(file.getAbsolutePath()).append('|').append(file.length()).append('|')
+                    .append(file.lastModified()).append('\n');
+        }
+        for (String setting : settings) {
+            inputs.append(setting).append('\n');
+        }
+        return sha256(inputs.toString());
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+    }
+}
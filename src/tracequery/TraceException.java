@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * TraceException reports that a step in the trace pipeline returned no content for an OID
+ * so that batch runs can record the failure and continue with the next OID.
+ * @version 0.1
+ */
+class TraceException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor for TraceException
+     * @param message String that describes the step that failed and the OID being traced
+     */
+    public TraceException(String message) {
+        super(message);
+    }
+}
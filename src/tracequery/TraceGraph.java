@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * TraceGraph is a read-only directed graph of the Trace-XML L3 nodes in compressed sparse row form.
+ * Nodes are addressed by int index and edges are read by position so traversals never allocate.
+ * @version 0.1
+ */
+interface TraceGraph {
+    /**
+     * nodeCount returns the number of nodes in the graph
+     * @return int number of nodes, node indexes run from 0 to nodeCount - 1
+     */
+    int nodeCount();
+
+    /**
+     * indexOf looks up a node by its GraphML id
+     * @param id String node id (the OID)
+     * @return int node index or -1 if the id is not in the graph
+     */
+    int indexOf(String id);
+
+    /**
+     * idOf returns the GraphML id of a node
+     * @param node int node index
+     * @return String node id
+     */
+    String idOf(int node);
+
+    /**
+     * edgeCount returns the number of directed edges in the graph
+     * @return int number of edges
+     */
+    int edgeCount();
+
+    /** first position of the outgoing (downstream) edges of node */
+    int outStart(int node);
+
+    /** position after the last outgoing edge of node */
+    int outEnd(int node);
+
+    /** target node of the outgoing edge at position */
+    int outTarget(int position);
+
+    /** first position of the incoming (upstream) edges of node */
+    int inStart(int node);
+
+    /** position after the last incoming edge of node */
+    int inEnd(int node);
+
+    /** source node of the incoming edge at position */
+    int inSource(int position);
+
+    /**
+     * getNodeNamespace returns the namespace of the GraphML node elements
+     * @return String namespace URI, empty if the nodes are not in a namespace
+     */
+    String getNodeNamespace();
+
+    /**
+     * getNodeRecords returns the data of the GraphML nodes when the graph was loaded with them
+     * @return NodeRecords of the graph, or null when only the ids and edges were loaded
+     */
+    default NodeRecords getNodeRecords() {
+        return null;
+    }
+
+    /**
+     * adjacencyHash hashes the ids of the nodes on the incoming or outgoing edges of a node; the hash does
+     * not depend on the order of the edges or on the node indexes, so it can be compared across loads of
+     * the graph to tell whether the edges of a node changed
+     * @param node int node index
+     * @param isIn boolean true for the incoming (upstream) edges, false for the outgoing edges
+     * @return long order independent hash of the neighbour ids and their count
+     */
+    default long adjacencyHash(int node, boolean isIn) {
+        long hash = 0;
+        int count = 0;
+        int end = isIn ? inEnd(node) : outEnd(node);
+        for (int e = isIn ? inStart(node) : outStart(node); e < end; e++) {
+            String id = idOf(isIn ? inSource(e) : outTarget(e));
+            // FNV-1a of the id, then the splitmix64 finalizer so the sum of the id hashes does not cancel out
+            long idHash = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                idHash = (idHash ^ id.charAt(i)) * 0x100000001b3L;
+            }
+            idHash = (idHash ^ (idHash >>> 30)) * 0xbf58476d1ce4e5b9L;
+            idHash = (idHash ^ (idHash >>> 27)) * 0x94d049bb133111ebL;
+            hash += idHash ^ (idHash >>> 31);
+            count++;
+        }
+        return hash ^ count;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * TraceLimits bounds a trace: the direction to walk, the maximum number of hops from the start node,
+ * and a page of at most maxNodes nodes starting at a cursor position in the walk order. The walk order
+ * is the breadth-first order of GraphTracer for both java engines, so a cursor from one engine pages
+ * the same trace in the other. The engines stop walking as soon as the page and the one node that shows
+ * there is a next page are found, so a bounded trace costs the same however connected the start node is.
+ * The filter option runs on the node details of the page, so a filtered page can hold fewer than
+ * maxNodes nodes and the cursor counts the positions before the filter.
+ * @version 0.1
+ */
+final class TraceLimits {
+    public static final String BOTH = "both";
+    public static final String UPSTREAM = "upstream";
+    public static final String DOWNSTREAM = "downstream";
+    /** no limits, the full trace in both directions */
+    public static final TraceLimits NONE = new TraceLimits(BOTH, 0, 0, 0);
+    private final String direction;
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int cursor;
+
+    /**
+     * Constructor for TraceLimits
+     * @param direction String upstream, downstream or both
+     * @param maxDepth int maximum number of hops from the start node, 0 for no limit
+     * @param maxNodes int maximum number of nodes in the page, 0 for no limit
+     * @param cursor int position in the walk order of the first node in the page
+     */
+    public TraceLimits(String direction, int maxDepth, int maxNodes, int cursor) {
+        if (!BOTH.equals(direction) && !UPSTREAM.equals(direction) && !DOWNSTREAM.equals(direction)) {
+            throw new IllegalArgumentException("Unknown direction " + direction + ", use upstream, downstream or both.");
+        }
+        if (maxDepth < 0 || maxNodes < 0 || cursor < 0) {
+            throw new IllegalArgumentException("The max-depth, max-nodes and cursor limits cannot be negative.");
+        }
+        this.direction = direction;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.cursor = cursor;
+    }
+
+    /**
+     * parse reads the limits from option values, a null value takes the default
+     * @param direction String upstream, downstream or both
+     * @param maxDepth String maximum number of hops
+     * @param maxNodes String maximum number of nodes in the page
+     * @param cursor String position of the first node in the page
+     * @return TraceLimits with the options
+     * @throws IllegalArgumentException if an option is not valid
+     */
+    public static TraceLimits parse(String direction, String maxDepth, String maxNodes, String cursor) {
+        if (direction == null && maxDepth == null && maxNodes == null && cursor == null) return NONE;
+        return new TraceLimits(direction == null ? BOTH : direction, parseInt(maxDepth), parseInt(maxNodes), parseInt(cursor));
+    }
+
+    private static int parseInt(String value) {
+        if (value == null || value.isEmpty()) return 0;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("The trace limit " + value + " is not a number.");
+        }
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public boolean isUpstream() {
+        return !DOWNSTREAM.equals(direction);
+    }
+
+    public boolean isDownstream() {
+        return !UPSTREAM.equals(direction);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    /* true if any limit is set, a bounded trace is not the full trace */
+    public boolean isBounded() {
+        return !BOTH.equals(direction) || maxDepth > 0 || maxNodes > 0 || cursor > 0;
+    }
+
+    /* position after the last node of the page in the walk order */
+    public int getPageEnd() {
+        return maxNodes == 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, (long) cursor + maxNodes);
+    }
+
+    /* true if the trace is cut to a page of the walk order */
+    public boolean isPaged() {
+        return maxNodes > 0 || cursor > 0;
+    }
+
+    /* number of nodes a tracer walks before it stops, one past the page to tell if there is a next page */
+    public int getWalkLimit() {
+        int end = getPageEnd();
+        return end == Integer.MAX_VALUE ? end : end + 1;
+    }
+}
@@ -16,162 +16,550 @@
 package tracequery;
 import java.io.*;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.basex.core.*;
-import org.basex.io.serial.*;
+import org.basex.core.cmd.CreateDB;
 import org.basex.query.*;
 import org.basex.query.iter.*;
 import org.basex.query.value.item.*;
+import org.basex.util.Token;
 
 /**
  * The TraceQuery prototype queries the Trace-XML graph using XQuery to produce a full life-cycle trace
- * for any given variable OID. It captures each step as a file because some are useful
- * and to make each step more transparent to ease understanding and evolving the application.
+ * for any given variable OID. Each step passes its result to the next in memory through the external
+ * $trace-doc variable the stage queries declare; the debug option captures each step as a file because
+ * some are useful and to make each step more transparent to ease understanding and evolving the application.
  * @version 0.1
 */
 public class TraceQuery {
+    private static final String ALL_OIDS = "*";
+    private static final String GRAPH_DB = "trace-graph";
+    private static final String ENGINE_XQUERY = "xquery";
+    private static final String ENGINE_JAVA = "java";
+    private static final String ENGINE_INDEX = "index";
     private static final Context context = new Context();
     private static String cfgFile;
     private static Boolean isQuiet = Boolean.FALSE;
     private static Boolean isFilter = Boolean.FALSE;
+    private static TraceLimits traceLimits = TraceLimits.NONE;
+    private static String direction;
+    private static String maxDepth;
+    private static String maxNodes;
+    private static String cursor;
+    private static Boolean isBuildDb = Boolean.FALSE;
+    private static Boolean isDebug = Boolean.FALSE;
+    private static Boolean isServe = Boolean.FALSE;
+    private static Boolean isUnreachable = Boolean.FALSE;
+    private static Boolean isBuildIndex = Boolean.FALSE;
+    private static Boolean isValidate = Boolean.FALSE;
+    private static Boolean isRefresh = Boolean.FALSE;
+    private static int serverPort = TraceServer.DEFAULT_PORT;
     private static String nodeOID = "";
+    private static String oidList = "";
     private static String graphMlFileName;
+    private static String l1FileName;
+    private static String engine = "";
+    private static int threadCount = Runtime.getRuntime().availableProcessors();
+    private static TraceGraph traceGraph;
+    private static TraceCache traceCache;
+    private static OidIndex oidIndex;
+    private static ChangeTracker changeTracker;
+    private static List<ChangeTracker.Trace> staleTraces = new ArrayList<>();
+    private static String metricsFileName = "";
+    private static String loadTestFileName = "";
+    private static String loadMode = "";
+    private static double loadRate = 0;
+    private static long loadSeconds = 0;
+    private static Boolean isLoadCache = Boolean.FALSE;
+    private static StageMetrics stageMetrics;
+    private static MemoryBudget memoryBudget;
     
     /**
      * The TraceQuery application takes the following command-line arguments:
      * @param args command-line arguments including:
      * "cfg=path" path to configuration file,
-     * "oid" identifies the variable on which the trace query will run,
+     * "oid" identifies the variable on which the trace query will run, or * to trace every variable node,
+     * "oids" file with one OID per line, or a comma-separated list of OIDs, to trace in a single run (batch mode),
+     * with shards listed in the configuration file the oid and oids traces cross every shard graph through shared OIDs
      * "quiet" tells TraceQuery not to load the trace into the browser (batch mode)
+     * "filter" leaves out Forms and IGs not referenced in the TraceItems, trace-node-filters.xql runs on the node details
+     * with every engine,
+     * "engine" selects the trace-node engine, xquery (default), java or index, overriding trace-engine in the configuration file,
+     * "direction" walks upstream, downstream or both (default) from the OID, with the java or index engine,
+     * "max-depth" the maximum number of hops from the OID,
+     * "max-nodes" the maximum number of nodes in a page of the trace, the walk stops when the page is full,
+     * with filter the page is filtered after the walk so it can hold fewer nodes,
+     * "cursor" the position of the first node of the page in the walk order, the same for the java and index engines,
+     * printed for the next page when there are more nodes,
+     * "debug" writes the result of each query stage to its output file and binds it as $trace-doc-name too,
+     * "serve" starts the trace server that answers GET /trace?oid=...&amp;filter=true&amp;format=html|xml|text,
+     * "port" the port for the trace server, 8080 by default,
+     * "threads" the number of OIDs traced in parallel by batch mode and the server, all cores by default,
+     * "metrics=file" writes the per-stage timings, item counts, bytes written and heap allocated to a JSON report,
+     * "load-test=file" replays the OIDs in the file, one per line with an optional timestamp, and reports the throughput,
+     * latency percentiles, GC pauses and per-stage latency; "threads" sets the concurrency,
+     * "load-mode" closed (default) or open loop, open loop is the default with a rate or timestamps,
+     * "rate" the traces started per second in open loop, "duration" the seconds to keep replaying the file,
+     * "load-cache" answers repeated load test traces from the trace cache, by default every trace runs its stages,
+     * "unreachable" reports the variables that cannot be traced to data collection or to analysis for the whole graph,
+     * "refresh" re-traces only the recorded traces whose graph nodes, definitions, queries or style sheets changed since
+     * they were written, in parallel; traces are recorded when change-tracking is set in the configuration file,
+     * "validate" validates the L1 files against odm-xsd-file and define-xsd-file and exits, only the new and changed files are validated again,
+     * "build-index" builds or updates the lineage index used by engine=index and exits,
+     * "build-db" (re)builds the indexed graph-db database named in the configuration file and exits,
      * "help" requests that the program display the application usage options 
     */
     public static void main(String[] args) {
         cfgFile = getConfigFileDir() + "trace-xml.cfg";        
         // process command line arguments
         setCommandLineOptions(args);
+        try {
+            traceLimits = TraceLimits.parse(direction, maxDepth, maxNodes, cursor);
+        } catch (IllegalArgumentException ex) {
+            noContentFound(ex.getMessage());
+        }
         
-        if (nodeOID.isEmpty()) noContentFound("No OID provided for this query.");
+        Boolean isLoadTest = !loadTestFileName.isEmpty();
+        Boolean isBatch = !oidList.isEmpty() || ALL_OIDS.equals(nodeOID) || isLoadTest;
+        if (nodeOID.isEmpty() && !isBatch && !isBuildDb && !isServe && !isUnreachable && !isBuildIndex && !isValidate 
+                && !isRefresh) {
+            noContentFound("No OID provided for this query.");
+        }
         loadConfiguration(cfgFile);
-        
-        // generate the graph node trace for the variable
-        String outputFileName = runNodeTrace();
-        // get the file and oid details for each node    
-        outputFileName = runGetNodeOIDs(outputFileName);
-        // get the medata for each node
-        outputFileName = runGetNodeDetails(outputFileName);
-        // filter out Forms and IGs not referenced in the TraceItems
-        if (isFilter) outputFileName = runGetFilteredNodes(outputFileName);
-        // run the xslt to transform the node details file into an html trace visualization
-        String xsltFileName = ConfigReader.getXmlPath() + ConfigReader.getTraceXsl();
-        String htmlFileName = ConfigReader.getXmlPath() + ConfigReader.getTraceHtml();
-        XsltTrace xslTrace = new XsltTrace(outputFileName, xsltFileName);
-        xslTrace.transformXMLFile(htmlFileName, !isQuiet);
+        if (ConfigReader.getLowMemory()) openMemoryBudget();
+        if (!ConfigReader.getShards().isEmpty()) {
+            runSharded(isBatch);
+            return;
+        }
+        if (isUnreachable) {
+            runUnreachable();
+            return;
+        }
+        if (isBuildIndex) {
+            loadTraceGraph();
+            openLineageIndex();
+            return;
+        }
+        if (isValidate) {
+            validateInputs();
+            return;
+        }
+
+        graphMlFileName = ConfigReader.getXmlPath() + ConfigReader.getL3Graph();
+        l1FileName = ConfigReader.getXmlPath() + XmlFileList.FILE_NAME;
+        if (isBuildDb) {
+            buildGraphDatabase();
+        } else if (!ConfigReader.getGraphDb().isEmpty()) {
+            openGraphDatabase();
+        } else if ((isBatch || isServe || isRefresh) && memoryBudget == null) {
+            graphMlFileName = loadGraphDatabase();
+        }
+
+        if (engine.isEmpty()) engine = ConfigReader.getTraceEngine();
+        // trace-node.xql reads the whole GraphML so the low-memory mode walks the graph with the java engine,
+        // whose node records give the OID stage the traced nodes without the GraphML file
+        if (memoryBudget != null && ENGINE_XQUERY.equals(engine)) engine = ENGINE_JAVA;
+        if ((ENGINE_JAVA.equals(engine) || ENGINE_INDEX.equals(engine)) && !isBuildDb) loadTraceGraph();
+        if (ENGINE_INDEX.equals(engine) && !isBuildDb) openLineageIndex();
+        // the index locates definitions in the L1 files, a graph-db has its own database indexes;
+        // the low-memory mode always streams the L1 files through the index instead of parsing them whole
+        boolean isOidIndex = ConfigReader.getOidIndex() || memoryBudget != null;
+        if (!isBuildDb && isOidIndex && ConfigReader.getGraphDb().isEmpty()) openOidIndex();
+        // the debug option needs every stage to run so it bypasses the trace cache, as does the load test unless load-cache is set
+        if (!isBuildDb && !isDebug && (!isLoadTest || isLoadCache)) traceCache = newTraceCache();
+        // the server runs until stopped so it does not keep stage records, the load test reports them by stage
+        stageMetrics = new StageMetrics(!metricsFileName.isEmpty() && !isServe || isLoadTest);
+        // the server and the load test do not write trace outputs to the xml-path so they are not tracked
+        if (isRefresh || ConfigReader.getChangeTracking() && !isBuildDb && !isServe && !isLoadTest) openChangeTracker();
+
+        if (isBuildDb) {
+            System.out.println("Built the " + ConfigReader.getGraphDb() + " database.");
+        } else if (isServe) {
+            // the server threads keep running and share the open context
+            startServer();
+            return;
+        } else if (isLoadTest) {
+            runLoadTest();
+        } else if (isRefresh) {
+            runRefresh();
+        } else if (isBatch) {
+            runBatch();
+        } else {
+            try {
+                TraceSession session = newSession();
+                session.runTrace(nodeOID, isFilter, traceLimits, "", !isQuiet);
+                if (session.getNextCursor() >= 0) {
+                    System.out.println("The trace has more nodes, use cursor=" + session.getNextCursor() + " for the next page.");
+                }
+            } catch (TraceException ex) {
+                noContentFound(ex.getMessage());
+            }
+        }
+        if (stageMetrics.isEnabled() && !metricsFileName.isEmpty()) writeMetrics();
+        if (changeTracker != null) saveChangeTracker();
+        if (memoryBudget != null) System.out.println(memoryBudget.getReport());
         context.close();
     }
 
-    /* get the origin for each node in the trace - used for reporting untraceables */
-    private static String runGetNodeDetails(String outputFileName) {
-        String detailOutputFileName = ConfigReader.getXmlPath() + ConfigReader.getTraceNodeDetails();
-        HashMap<String, String> qryParm = new HashMap<>();
-        qryParm.put("trace-doc-name", outputFileName);
-        Integer count = runQuery(detailOutputFileName, "trace-node-details.xql", qryParm);
-        if (count == 0) noContentFound("Unable to retrieve the node details for this trace for oid = " + nodeOID);
-        return detailOutputFileName;
+    private static TraceSession newSession() {
+        return new TraceSession(context, graphMlFileName, l1FileName, traceGraph, isDebug, traceCache, oidIndex, stageMetrics, 
+                changeTracker);
     }
-    
-    /* filter out Form and IG nodes not refrenced by the TraceItem for tabulation and data collection */
-    private static String runGetFilteredNodes(String nodeDetailsFileName) {
-        String filteredOutputFileName = ConfigReader.getXmlPath() + "filtered-" + ConfigReader.getTraceNodeDetails();
-        HashMap<String, String> qryParm = new HashMap<>();
-        qryParm.put("trace-doc-name", nodeDetailsFileName);
-        Integer count = runQuery(filteredOutputFileName, "trace-node-filters.xql", qryParm);
-        if (count == 0) noContentFound("Unable to retrieve the node OIDs for this trace for oid = " + nodeOID);
-        return filteredOutputFileName;
-    }
-
-    /* using the results of the GraphML trace look up the nodes in the appropriate XML file including the file name and path */
-    private static String runGetNodeOIDs(String nodeFileName) {
-        String oidOutputFileName = ConfigReader.getXmlPath() + ConfigReader.getTraceNodeOid();
-        String xmlFileName = ConfigReader.getXmlPath() + "xml-files.xml";
-        HashMap<String, String> qryParm = new HashMap<>();
-        qryParm.put("trace-doc-name", nodeFileName);
-        qryParm.put("graph-doc-name", graphMlFileName);
-        qryParm.put("l1-doc-name", xmlFileName);
-        Integer count = runQuery(oidOutputFileName, "trace-node-oid.xql", qryParm);
-        if (count == 0) noContentFound("Unable to retrieve the node OIDs for this trace for oid = " + nodeOID);
-        return oidOutputFileName;
-    }
- 
-    /* run the trace query on the GraphML file and return the nodes in the trace */
-    private static String runNodeTrace() {
-        String outputFileName = ConfigReader.getXmlPath() + ConfigReader.getTraceNode();
-        graphMlFileName = ConfigReader.getXmlPath() + ConfigReader.getL3Graph();
-        HashMap<String, String> qryParm = new HashMap<>();
-        qryParm.put("input", graphMlFileName);
-        qryParm.put("oid", nodeOID);
-        Integer count = runQuery(outputFileName, "trace-node.xql", qryParm);
-        if (count == 0) noContentFound("No trace was found for oid = " + nodeOID);
-        return outputFileName;
+
+    private static SessionPool newSessionPool() {
+        return new SessionPool(context, graphMlFileName, l1FileName, traceGraph, isDebug, traceCache, oidIndex, stageMetrics, 
+                changeTracker, memoryBudget, threadCount);
+    }
+
+    private static void startServer() {
+        try {
+            new TraceServer(serverPort, newSessionPool(), traceCache).start();
+        } catch (IOException ex) {
+            noContentFound("Unable to start the trace server on port " + serverPort + ". " + ex.getMessage());
+        }
+    }
+
+    /* trace each OID across the graph shards in the configuration file, the shards of each OID in parallel */
+    private static void runSharded(Boolean isBatch) {
+        if (isServe || isBuildDb || isUnreachable || isBuildIndex || isValidate || isRefresh || !loadTestFileName.isEmpty() 
+                || traceLimits.isBounded()) {
+            noContentFound("Only oid and oids traces without limits are supported with shards in the configuration file.");
+        }
+        stageMetrics = new StageMetrics(!metricsFileName.isEmpty());
+        ShardedTrace sharded = null;
+        try {
+            sharded = ShardedTrace.open(context, isDebug, stageMetrics, threadCount);
+        } catch (IOException ex) {
+            noContentFound("Unable to load the graph shards. " + ex.getMessage());
+        }
+        List<String> oids = new ArrayList<>();
+        if (isBatch) {
+            oids = ALL_OIDS.equals(nodeOID) ? sharded.getVariableOids(ConfigReader.getVariableOidPrefix()) : readOidList(oidList);
+            if (oids.isEmpty()) noContentFound("No OIDs found to trace in batch mode.");
+        }
+        if (isBatch) {
+            sharded.run(oids, isFilter);
+        } else {
+            try {
+                sharded.trace(nodeOID, isFilter, "");
+            } catch (TraceException ex) {
+                noContentFound(ex.getMessage());
+            }
+            if (!isQuiet) XsltTrace.showResult(ConfigReader.getXmlPath() + ConfigReader.getTraceHtml());
+        }
+        sharded.close();
+        if (stageMetrics.isEnabled()) writeMetrics();
+        if (memoryBudget != null) System.out.println(memoryBudget.getReport());
+        context.close();
+    }
+
+    /* trace each OID in the batch in parallel using one context and a graph that is parsed only once */
+    private static void runBatch() {
+        List<String> oids = ALL_OIDS.equals(nodeOID) ? getVariableOids() : readOidList(oidList);
+        if (oids.isEmpty()) noContentFound("No OIDs found to trace in batch mode.");
+        new ParallelTrace(newSessionPool()).run(oids, isFilter, traceLimits);
+        if (traceCache != null) System.out.println("Trace cache: " + traceCache.getStats());
     }
 
-    private static Integer runQuery(String outputFileName, String qryName, HashMap<String, String> qp) {
-        Integer count = 0;
-        String query = readFile(ConfigReader.getXqueryPath() + qryName);
+    /* replay the load test workload against the sessions of a pool sized by threads */
+    private static void runLoadTest() {
+        List<LoadTest.Request> requests = null;
+        try {
+            requests = LoadTest.readWorkload(new File(loadTestFileName));
+        } catch (IOException ex) {
+            noContentFound("Unable to read the load test workload " + loadTestFileName + ". " + ex.getMessage());
+        }
+        if (requests.isEmpty()) noContentFound("No OIDs found to trace in " + loadTestFileName + ".");
+        if (loadMode.isEmpty()) {
+            loadMode = loadRate > 0 || requests.get(0).getOffsetNanos() >= 0 ? LoadTest.MODE_OPEN : LoadTest.MODE_CLOSED;
+        }
+        try {
+            new LoadTest(newSessionPool(), stageMetrics, isFilter, traceLimits, traceCache != null)
+                    .run(requests, loadMode, loadRate, loadSeconds);
+        } catch (IllegalArgumentException ex) {
+            noContentFound(ex.getMessage());
+        }
+        if (traceCache != null) System.out.println("Trace cache: " + traceCache.getStats());
+    }
+
+    /* the low-memory mode starts traces only while the live heap is within heap-budget-mb */
+    private static void openMemoryBudget() {
+        long budgetBytes = ConfigReader.getHeapBudgetMb() << 20;
+        memoryBudget = new MemoryBudget(budgetBytes);
+        if (budgetBytes > memoryBudget.getBudgetBytes()) {
+            System.err.println("The heap-budget-mb is larger than the maximum heap, the budget is " 
+                    + (memoryBudget.getBudgetBytes() >> 20) + " MB.");
+        }
+    }
+
+    /* re-trace the recorded traces that the changes since the last run made stale, each to its own output files */
+    private static void runRefresh() {
+        if (staleTraces.isEmpty()) {
+            System.out.println("No recorded traces are stale.");
+            return;
+        }
+        new ParallelTrace(newSessionPool()).refresh(staleTraces);
+        if (traceCache != null) System.out.println("Trace cache: " + traceCache.getStats());
+    }
+
+    /* compare the inputs with the state saved by the last run and find the recorded traces that are now stale */
+    private static void openChangeTracker() {
+        long start = System.nanoTime();
+        File graphFile = new File(ConfigReader.getXmlPath() + ConfigReader.getL3Graph());
+        try {
+            changeTracker = ChangeTracker.open(ConfigReader.getXmlPath());
+            // the definition checksums are read from the OID index even when the traces bind the whole L1 files
+            OidIndex index = oidIndex == null ? OidIndex.open(ConfigReader.getXmlPath()) : oidIndex;
+            staleTraces = changeTracker.update(graphFile, traceGraph, index, getCodeFiles());
+            if (changeTracker.getTraceCount() > 0) {
+                System.out.println(staleTraces.size() + " of " + changeTracker.getTraceCount() 
+                        + " recorded traces are stale, checked in " + ParallelTrace.elapsedMillis(start) + " ms");
+            }
+        } catch (IOException ex) {
+            noContentFound("Unable to check the inputs for changes. " + ex.getMessage());
+        }
+    }
+
+    private static void saveChangeTracker() {
+        try {
+            changeTracker.save();
+        } catch (IOException ex) {
+            System.err.println("Unable to save the recorded traces to " + ChangeTracker.FILE_NAME + ". " + ex.getMessage());
+        }
+    }
+
+    /* validate the L1 files that changed since they were last found valid */
+    private static void validateInputs() {
+        String xmlPath = ConfigReader.getXmlPath();
+        File odmSchema = SchemaValidator.getSchemaFile(xmlPath, ConfigReader.getOdmXsdFile());
+        File defineSchema = SchemaValidator.getSchemaFile(xmlPath, ConfigReader.getDefineXsdFile());
+        if (odmSchema == null && defineSchema == null) {
+            noContentFound("No odm-xsd-file or define-xsd-file is set in the configuration file.");
+        }
+        long start = System.nanoTime();
+        try {
+            SchemaValidator validator = new SchemaValidator(xmlPath, odmSchema, defineSchema);
+            List<String> errors = validator.validate(threadCount);
+            System.out.println("Validated " + validator.getValidatedCount() + " L1 files, " + validator.getSkippedCount() 
+                    + " unchanged, in " + ParallelTrace.elapsedMillis(start) + " ms");
+            if (!errors.isEmpty()) {
+                for (String error : errors) {
+                    System.err.println(error);
+                }
+                noContentFound("The L1 files " + String.join(", ", validator.getInvalidReferences()) + " in " 
+                        + XmlFileList.FILE_NAME + " are not valid.");
+            }
+        } catch (IOException ex) {
+            noContentFound("Unable to validate the L1 files. " + ex.getMessage());
+        }
+    }
+
+    private static void writeMetrics() {
+        try {
+            stageMetrics.writeJson(new File(metricsFileName));
+        } catch (IOException ex) {
+            System.err.println("Unable to write the metrics report to " + metricsFileName + ". " + ex.getMessage());
+        }
+    }
+
+    /* find the unreachable variables of the whole graph and write the unreachable xml, html and text reports */
+    private static void runUnreachable() {
+        if (ConfigReader.getUnreachableXml().isEmpty()) noContentFound("No unreachable-xml file is set in the configuration file.");
+        if (ConfigReader.getDataCollection().isEmpty() || ConfigReader.getDataAnalysis().isEmpty()) {
+            noContentFound("The data-collection and data-analysis files must be set in the configuration file to find the unreachable variables.");
+        }
+        long start = System.nanoTime();
+        loadTraceGraph();
+        openOidIndex();
+        ReachabilityAnalysis analysis = new ReachabilityAnalysis(traceGraph);
+        String[][] layers = {{ReachabilityAnalysis.COLLECTION_LAYER, ConfigReader.getDataCollection()}, 
+            {ReachabilityAnalysis.TABULATION_LAYER, ConfigReader.getDataTabulation()}, 
+            {ReachabilityAnalysis.ANALYSIS_LAYER, ConfigReader.getDataAnalysis()}};
+        try {
+            for (String[] layer : layers) {
+                if (!layer[1].isEmpty()) analysis.addLayer(layer[0], layer[1], oidIndex);
+            }
+            List<ReachabilityAnalysis.Variable> unreachable = analysis.run();
+            System.out.println("Found " + unreachable.size() + " unreachable of " + analysis.getVariableCount() + " variables in " 
+                    + ParallelTrace.elapsedMillis(start) + " ms");
+            String xmlFileName = ConfigReader.getXmlPath() + ConfigReader.getUnreachableXml();
+            analysis.writeXml(new File(xmlFileName));
+            if (!ConfigReader.getUnreachableText().isEmpty()) {
+                analysis.writeText(new File(ConfigReader.getXmlPath() + ConfigReader.getUnreachableText()));
+            }
+            if (!ConfigReader.getUnreachableXsl().isEmpty() && !ConfigReader.getUnreachableHtml().isEmpty()) {
+                XsltTrace xslTrace = new XsltTrace(xmlFileName, ConfigReader.getXmlPath() + ConfigReader.getUnreachableXsl());
+                xslTrace.transformXMLFile(ConfigReader.getXmlPath() + ConfigReader.getUnreachableHtml(), !isQuiet);
+            }
+        } catch (IOException ex) {
+            noContentFound("Unable to report the unreachable variables. " + ex.getMessage());
+        }
+    }
+
+    /* the trace cache is keyed by a fingerprint of the graph, the L1 files, the .xql and .xsl files and the settings
+       that change the output: the engine decides the order of the traced nodes */
+    private static TraceCache newTraceCache() {
+        List<File> inputs = new ArrayList<>();
+        inputs.add(new File(ConfigReader.getXmlPath() + ConfigReader.getL3Graph()));
+        try {
+            XmlFileList l1Files = new XmlFileList(ConfigReader.getXmlPath());
+            inputs.add(l1Files.getListFile());
+            inputs.addAll(l1Files.getFiles());
+        } catch (IOException ex) {
+            System.err.println("Unable to read " + XmlFileList.FILE_NAME + " for the trace cache. " + ex.getMessage());
+            return null;
+        }
+        inputs.addAll(getCodeFiles());
+        // the low-memory mode keeps finished traces on disk only
+        long memoryBytes = memoryBudget == null ? ConfigReader.getTraceCacheMemoryMb() << 20 : 0;
+        List<String> settings = new ArrayList<>();
+        settings.add("engine=" + engine);
+        return new TraceCache(TraceCache.fingerprint(inputs, settings), memoryBytes, 
+                ConfigReader.getTraceCacheDiskMb() << 20, new File(ConfigReader.getXmlPath() + TraceCache.CACHE_DIR));
+    }
+
+    /* the .xql files and the trace style sheets, a change to any of them can change every trace */
+    private static List<File> getCodeFiles() {
+        List<File> files = new ArrayList<>();
+        File[] queries = new File(ConfigReader.getXqueryPath()).listFiles((dir, name) -> name.endsWith(".xql"));
+        if (queries != null) {
+            Arrays.sort(queries);
+            files.addAll(Arrays.asList(queries));
+        }
+        files.add(new File(ConfigReader.getXmlPath() + ConfigReader.getTraceXsl()));
+        files.add(new File(ConfigReader.getXmlPath() + ConfigReader.getTextTraceXsl()));
+        return files;
+    }
+
+    /* open the persistent graph-db database, rebuilding it when a source file has changed */
+    private static void openGraphDatabase() {
+        long start = System.nanoTime();
+        GraphDatabase graphDb = getGraphDatabase();
+        try {
+            if (graphDb.open()) System.out.println("Rebuilt the " + ConfigReader.getGraphDb() + " database in " 
+                    + ParallelTrace.elapsedMillis(start) + " ms");
+        } catch (IOException ex) {
+            noContentFound("Unable to open the " + ConfigReader.getGraphDb() + " database. " + ex.getMessage());
+        }
+        graphMlFileName = graphDb.getGraphPath();
+        l1FileName = graphDb.getL1ListPath();
+    }
+
+    private static void buildGraphDatabase() {
+        if (ConfigReader.getGraphDb().isEmpty()) noContentFound("No graph-db database name in the configuration file.");
+        try {
+            getGraphDatabase().build();
+        } catch (IOException ex) {
+            noContentFound("Unable to build the " + ConfigReader.getGraphDb() + " database. " + ex.getMessage());
+        }
+    }
+
+    private static GraphDatabase getGraphDatabase() {
+        return new GraphDatabase(context, ConfigReader.getGraphDb(), ConfigReader.getXmlPath(), ConfigReader.getL3Graph());
+    }
+
+    private static void openOidIndex() {
+        long start = System.nanoTime();
+        try {
+            oidIndex = OidIndex.open(ConfigReader.getXmlPath());
+            if (oidIndex.getScannedCount() > 0) {
+                System.out.println("Indexed " + oidIndex.getScannedCount() + " of " + oidIndex.getFileCount() + " L1 files in " 
+                        + ParallelTrace.elapsedMillis(start) + " ms");
+            }
+        } catch (IOException ex) {
+            noContentFound("Unable to build the OID index for the files in " + XmlFileList.FILE_NAME + ". " + ex.getMessage());
+        }
+    }
+
+    /* the lineage index is saved next to the graph and only the lineages that changed are computed */
+    private static void openLineageIndex() {
+        long start = System.nanoTime();
+        File graphFile = new File(ConfigReader.getXmlPath() + ConfigReader.getL3Graph());
+        try {
+            LineageIndex index = LineageIndex.open(graphFile, traceGraph, ConfigReader.getVariableOidPrefix());
+            traceGraph = index;
+            System.out.println("Lineage index has " + index.getIndexedCount() + " variables, computed " + index.getComputedCount() 
+                    + " (" + index.getSetBytes() + " bytes, " + index.getSharedCount() + " shared sets) in " 
+                    + ParallelTrace.elapsedMillis(start) + " ms");
+        } catch (IOException ex) {
+            noContentFound("Unable to build the lineage index for " + ConfigReader.getL3Graph() + ". " + ex.getMessage());
+        }
+    }
+
+    /* load the GraphML file, or its mapped snapshot, into the compressed graph used by the java trace engine */
+    private static void loadTraceGraph() {
+        long start = System.nanoTime();
+        File graphFile = new File(ConfigReader.getXmlPath() + ConfigReader.getL3Graph());
+        try {
+            // a snapshot has no node records, which the low-memory mode binds in place of the GraphML file
+            boolean isSnapshot = ConfigReader.getGraphSnapshot() && !ConfigReader.getLowMemory();
+            TraceGraph graph = isSnapshot ? GraphSnapshot.open(graphFile) : GraphMlLoader.load(graphFile);
+            traceGraph = graph;
+            System.out.println("Loaded " + graph.nodeCount() + " nodes and " + graph.edgeCount() + " edges in " 
+                    + ParallelTrace.elapsedMillis(start) + " ms");
+        } catch (IOException ex) {
+            noContentFound("Unable to load the Trace-XML graph " + ConfigReader.getL3Graph() + ". " + ex.getMessage());
+        }
+    }
+
+    /* parse the GraphML file once into a main-memory database that doc() resolves by name */
+    private static String loadGraphDatabase() {
+        try {
+            context.options.set(MainOptions.MAINMEM, true);
+            new CreateDB(GRAPH_DB, ConfigReader.getXmlPath() + ConfigReader.getL3Graph()).execute(context);
+        } catch (BaseXException ex) {
+            noContentFound("Unable to load the Trace-XML graph " + ConfigReader.getL3Graph() + ". " + ex.getMessage());
+        }
+        return GRAPH_DB;
+    }
+
+    /* return the id of every graph node that is a variable for oid=* */
+    private static List<String> getVariableOids() {
+        List<String> oids = new ArrayList<>();
+        String query = "declare variable $input external; declare variable $prefix external; "
+                + "for $id in distinct-values(doc($input)//*:node/@id) where starts-with($id, $prefix) return $id";
         try {
             QueryProcessor proc = new QueryProcessor(query, context);
-            // Store the pointer to the result in an iterator:
-            for (String parmName : qp.keySet()) {
-                proc.bind(parmName, qp.get(parmName));
-            }            
-            // Store the pointer to the result in an iterator
+            proc.bind("input", graphMlFileName);
+            proc.bind("prefix", ConfigReader.getVariableOidPrefix());
             Iter iter = proc.iter();
-            OutputStream os = new FileOutputStream(outputFileName);
-            // Create a serializer instance
-            Serializer ser = proc.getSerializer(os);
-            // Iterate through all items and serialize contents
             for(Item item; (item = iter.next()) != null;) {
-                ser.serialize(item);
-                if (!"<nodes/>".equalsIgnoreCase(item.toString())) count++;
-              }
-        } catch (FileNotFoundException ex) {
-            System.err.println("Unable to locate or read the trace-node.xql. " + ex.getMessage());
-            System.exit(0);
-        } catch (IOException ex) {
-            System.err.println("Unable to read the " + qryName + " or write the ouput to " + outputFileName + ". " + ex.getMessage());
+                oids.add(Token.string(item.string(null)));
+            }
+            proc.close();
         } catch (QueryException ex) {
-            System.err.println("Error reading results from the " + qryName + " XQuery. " + ex.getMessage());
-        }
-        return count;
-    }
-
-  private static String readFile(String file) {
-    BufferedReader f = null;
-    Boolean ioException = Boolean.FALSE;
-    StringBuilder xml = new StringBuilder();
-      try {
-          f = new BufferedReader(new FileReader(file));
-          String line;
-          while((line = f.readLine()) != null)
-              xml.append(line);
-      } catch (FileNotFoundException ex) {
-          System.out.println("Unable to locate the XQuery file " + file + ". " + ex.getMessage());
-          ioException = Boolean.TRUE;
-      } catch (IOException ex) {
-          System.out.println("Unable to read the XQuery file " + file + ". " + ex.getMessage());
-          ioException = Boolean.TRUE;
-      } finally {
-          try {
-              if (f != null) f.close();
-          } catch (IOException ex) {
-              System.err.println("Unable to close the XQuery file " + file + ". " + ex.getMessage());
-          } finally {
-              if (ioException) System.exit(0);
-          }
-      }
-      return xml.toString();
-    }
-  
+            System.err.println("Error retrieving the variable OIDs from the graph. " + ex.getMessage());
+        }
+        return oids;
+    }
+
+    /* the oids argument is either a file with one OID per line or a comma-separated list of OIDs;
+       an OID listed twice is traced once so two workers never write the same output files */
+    static List<String> readOidList(String oids) {
+        Set<String> oidArray = new LinkedHashSet<>();
+        if (new File(oids).isFile()) {
+            try (BufferedReader f = new BufferedReader(new FileReader(oids))) {
+                String line;
+                while ((line = f.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) oidArray.add(line);
+                }
+            } catch (IOException ex) {
+                noContentFound("Unable to read the OID list file " + oids + ". " + ex.getMessage());
+            }
+        } else {
+            for (String oid : oids.split(",")) {
+                if (!oid.trim().isEmpty()) oidArray.add(oid.trim());
+            }
+        }
+        return new ArrayList<>(oidArray);
+    }
+
     private static void loadConfiguration(String cfgFile) {
         if (cfgFile.isEmpty()) noContentFound("Missing config file. The query was not executed.");
         ConfigReader.loadConfigProperties(cfgFile);
@@ -184,6 +572,13 @@ public class TraceQuery {
         if (ConfigReader.getXmlPath() == null || ConfigReader.getXmlPath().isEmpty()) {
             System.out.println("Error: No XML path in the configuration file.");
             isFail = Boolean.TRUE;
+        } else if (!ConfigReader.getShards().isEmpty()) {
+            // each shard has its own graph, the xml-path holds the style sheets and the trace outputs
+            isFail = Boolean.FALSE;
+            for (String shard : ConfigReader.getShards()) {
+                isFail |= checkMetadataFileNotFound(ConfigReader.getShardXmlPath(shard) + ConfigReader.getShardL3Graph(shard), 
+                        "Error: Missing graph file for shard " + shard + " in the configuration file or the file listed is not found.");
+            }
         } else {
             isFail = checkMetadataFileNotFound(ConfigReader.getXmlPath() + ConfigReader.getL3Graph(), 
                     "Error: Missing Trace-XML graph file in configuration file or the file listed is not found.");
@@ -233,10 +628,55 @@ public class TraceQuery {
                 cfgFile = argument.substring(argument.indexOf("=")+1);
             } else if (argument.startsWith("oid=")) {
                 nodeOID = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("engine=")) {
+                engine = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("oids=")) {
+                oidList = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("metrics=")) {
+                metricsFileName = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("load-test=")) {
+                loadTestFileName = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("load-mode=")) {
+                loadMode = argument.substring(argument.indexOf("=")+1);
+                if (!LoadTest.MODE_OPEN.equals(loadMode) && !LoadTest.MODE_CLOSED.equals(loadMode)) {
+                    noContentFound("Unknown load-mode " + loadMode + ", use open or closed.");
+                }
+            } else if (argument.startsWith("rate=")) {
+                loadRate = getRateArgument(argument);
+            } else if (argument.startsWith("duration=")) {
+                loadSeconds = getNumberArgument(argument, 0, Integer.MAX_VALUE);
+            } else if (argument.equals("load-cache")) {
+                isLoadCache = Boolean.TRUE;
+            } else if (argument.startsWith("direction=")) {
+                direction = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("max-depth=")) {
+                maxDepth = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("max-nodes=")) {
+                maxNodes = argument.substring(argument.indexOf("=")+1);
+            } else if (argument.startsWith("cursor=")) {
+                cursor = argument.substring(argument.indexOf("=")+1);
             } else if (argument.contains("quiet")) {
                 isQuiet = Boolean.TRUE;
             } else if (argument.contains("filter")) {
                 isFilter = Boolean.TRUE;
+            } else if (argument.equals("serve")) {
+                isServe = Boolean.TRUE;
+            } else if (argument.startsWith("threads=")) {
+                threadCount = (int) getNumberArgument(argument, 1, 4096);
+            } else if (argument.startsWith("port=")) {
+                serverPort = (int) getNumberArgument(argument, 0, 65535);
+            } else if (argument.equals("debug")) {
+                isDebug = Boolean.TRUE;
+            } else if (argument.equals("unreachable")) {
+                isUnreachable = Boolean.TRUE;
+            } else if (argument.equals("refresh")) {
+                isRefresh = Boolean.TRUE;
+            } else if (argument.equals("validate")) {
+                isValidate = Boolean.TRUE;
+            } else if (argument.equals("build-index")) {
+                isBuildIndex = Boolean.TRUE;
+            } else if (argument.equals("build-db")) {
+                isBuildDb = Boolean.TRUE;
             } else if (argument.equals("help")) {
                 usage();
                 System.exit(0);                
@@ -248,8 +688,41 @@ public class TraceQuery {
         }                        
     }
     
+    /* the traces per second after the = of the rate argument, a value that is not a positive number ends the run with the usage */
+    private static double getRateArgument(String argument) {
+        String value = argument.substring(argument.indexOf("=")+1).trim();
+        try {
+            double rate = Double.parseDouble(value);
+            if (rate > 0 && rate <= 1000000) return rate;
+        } catch (NumberFormatException ex) {
+            // reported with the range below
+        }
+        System.err.println("The value of " + argument + " must be a number of traces per second above 0 and up to 1000000.");
+        usage();
+        System.exit(0);
+        return 0;
+    }
+
+    /* the whole number after the = of an argument, a value that is not a number in the range ends the run with the usage */
+    private static long getNumberArgument(String argument, long min, long max) {
+        String value = argument.substring(argument.indexOf("=")+1).trim();
+        try {
+            long number = Long.parseLong(value);
+            if (number >= min && number <= max) return number;
+        } catch (NumberFormatException ex) {
+            // reported with the range below
+        }
+        System.err.println("The value of " + argument + " must be a whole number from " + min + " to " + max + ".");
+        usage();
+        System.exit(0);
+        return min;
+    }
+
     /* print the usage directions that include the command-line arguments */
     private static void usage() {
-        System.err.println("Usage: java -jar TraceQuery.jar cfg=<config file> oid=<variable oid> [quiet] [filter] [help]");        
+        System.err.println("Usage: java -jar TraceQuery.jar cfg=<config file> oid=<variable oid | *> [oids=<oid file | oid,oid,...>] "
+                + "[engine=xquery|java|index] [direction=upstream|downstream|both] [max-depth=<hops>] [max-nodes=<n>] [cursor=<n>] "
+                + "[metrics=<json file>] [load-test=<oid file> [load-mode=open|closed] [rate=<traces/s>] [duration=<seconds>] [load-cache]] [quiet] [filter] [debug] [unreachable] [refresh] [validate] [build-index] [build-db] "
+                + "[serve [port=<port>]] [threads=<n>] [help]");        
     }
 }
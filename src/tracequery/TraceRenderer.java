@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * TraceRenderer renders one trace document into several outputs in a single pass. The document is
+ * read once as a stream of SAX events that are sent to a TransformerHandler per output, one for
+ * each style sheet (html, text) and an identity handler for raw XML, so the document is neither
+ * serialized nor parsed again for each format.
+ * @version 0.1
+ */
+final class TraceRenderer {
+    private final List<TransformerHandler> handlers = new ArrayList<>();
+
+    /**
+     * addOutput adds an output rendered from the trace document
+     * @param xslFileName String with the XSL path and file, or null to copy the XML unchanged
+     * @param os OutputStream that receives the output, it is not closed
+     * @throws TransformerException if the style sheet cannot be compiled
+     */
+    public void addOutput(String xslFileName, OutputStream os) throws TransformerException {
+        TransformerHandler handler = QueryCache.newTransformerHandler(xslFileName);
+        handler.setResult(new StreamResult(os));
+        handlers.add(handler);
+    }
+
+    /**
+     * render sends the trace document to every output
+     * @param source Source with the trace document, a DOMSource over the query result is walked
+     * in place and a StreamSource is parsed as a stream
+     * @throws TransformerException if the document cannot be read or an output cannot be rendered
+     */
+    public void render(Source source) throws TransformerException {
+        Tee tee = new Tee(handlers);
+        SAXResult result = new SAXResult(tee);
+        result.setLexicalHandler(tee);
+        TransformerFactory.newInstance().newTransformer().transform(source, result);
+    }
+
+    /* forwards every SAX event to each handler in turn */
+    private static final class Tee implements ContentHandler, LexicalHandler {
+        private final TransformerHandler[] handlers;
+
+        private Tee(List<TransformerHandler> handlers) {
+            this.handlers = handlers.toArray(new TransformerHandler[handlers.size()]);
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            for (TransformerHandler handler : handlers) {
+                handler.setDocumentLocator(locator);
+            }
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.startDocument();
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.endDocument();
+            }
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.startPrefixMapping(prefix, uri);
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.endPrefixMapping(prefix);
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.startElement(uri, localName, qName, atts);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.endElement(uri, localName, qName);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.ignorableWhitespace(ch, start, length);
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.processingInstruction(target, data);
+            }
+        }
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.skippedEntity(name);
+            }
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.startDTD(name, publicId, systemId);
+            }
+        }
+
+        @Override
+        public void endDTD() throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.endDTD();
+            }
+        }
+
+        @Override
+        public void startEntity(String name) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.startEntity(name);
+            }
+        }
+
+        @Override
+        public void endEntity(String name) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.endEntity(name);
+            }
+        }
+
+        @Override
+        public void startCDATA() throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.startCDATA();
+            }
+        }
+
+        @Override
+        public void endCDATA() throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.endCDATA();
+            }
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            for (TransformerHandler handler : handlers) {
+                handler.comment(ch, start, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TraceServer answers trace requests over HTTP from a long-running JVM that has already loaded the
+ * configuration, the graph and the queries, so a request does not pay for JVM start-up and warm-up.
+ * GET /trace?oid=...&amp;filter=true&amp;format=html|xml|text returns the trace in the response body
+ * and GET /stats returns the trace cache counters. A trace can be bounded with the direction,
+ * max-depth, max-nodes and cursor parameters; when there are more nodes the X-Trace-Next-Cursor
+ * response header gives the cursor of the next page.
+ * Requests are handled on virtual threads when the JVM provides them (Java 21 and later) and on a
+ * cached thread pool otherwise; each request borrows its own TraceSession so traces run concurrently.
+ * @version 0.1
+ */
+class TraceServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final String FORMAT_HTML = "html";
+    public static final String FORMAT_XML = "xml";
+    public static final String FORMAT_TEXT = "text";
+    public static final String NEXT_CURSOR_HEADER = "X-Trace-Next-Cursor";
+    private final int port;
+    private final SessionPool pool;
+    private final TraceCache cache;
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Constructor for TraceServer
+     * @param port int port the server listens on
+     * @param pool SessionPool that provides a trace session to each request
+     * @param cache TraceCache used by the sessions, or null; its counters are reported by GET /stats
+     */
+    public TraceServer(int port, SessionPool pool, TraceCache cache) {
+        this.port = port;
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * start binds the port and starts handling requests on the server's executor
+     * @throws IOException if the port cannot be bound
+     */
+    public void start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/trace", new TraceHandler());
+        server.createContext("/stats", exchange -> {
+            try {
+                send(exchange, 200, "text/plain", cache == null ? "Trace cache disabled." : cache.getStats());
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(newExecutor());
+        server.start();
+        System.out.println("Trace server listening on port " + port);
+    }
+
+    /* virtual-thread-per-task executor looked up reflectively since the build targets Java 8 */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private class TraceHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, "text/plain", "Only GET is supported.");
+                    return;
+                }
+                Map<String, String> parms = parseQuery(exchange.getRequestURI().getRawQuery());
+                String oid = parms.get("oid");
+                String format = parms.containsKey("format") ? parms.get("format") : FORMAT_HTML;
+                if (oid == null || oid.isEmpty()) {
+                    send(exchange, 400, "text/plain", "No OID provided for this query.");
+                } else if (!FORMAT_HTML.equals(format) && !FORMAT_XML.equals(format) && !FORMAT_TEXT.equals(format)) {
+                    send(exchange, 400, "text/plain", "Unknown format " + format + ", use html, xml or text.");
+                } else {
+                    TraceLimits limits = TraceLimits.parse(parms.get("direction"), parms.get("max-depth"), parms.get("max-nodes"), 
+                            parms.get("cursor"));
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    String requestPrefix = "request-" + requestCount.incrementAndGet() + "-";
+                    TraceSession session = pool.borrow();
+                    int nextCursor;
+                    try {
+                        session.writeTrace(oid, Boolean.valueOf(parms.get("filter")), limits, format, requestPrefix, body);
+                        nextCursor = session.getNextCursor();
+                    } finally {
+                        pool.release(session);
+                    }
+                    if (nextCursor >= 0) exchange.getResponseHeaders().set(NEXT_CURSOR_HEADER, String.valueOf(nextCursor));
+                    send(exchange, 200, getContentType(format), body.toByteArray());
+                }
+            } catch (IllegalArgumentException ex) {
+                send(exchange, 400, "text/plain", ex.getMessage());
+            } catch (TraceSetupException ex) {
+                System.err.println("Error handling trace request " + exchange.getRequestURI() + ". " + ex.getMessage());
+                send(exchange, 500, "text/plain", ex.getMessage());
+            } catch (TraceException ex) {
+                send(exchange, 404, "text/plain", ex.getMessage());
+            } catch (Exception ex) {
+                System.err.println("Error handling trace request " + exchange.getRequestURI() + ". " + ex.getMessage());
+                send(exchange, 500, "text/plain", "Error running the trace. " + ex.getMessage());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static String getContentType(String format) {
+        if (FORMAT_XML.equals(format)) return "application/xml";
+        if (FORMAT_TEXT.equals(format)) return "text/plain";
+        return "text/html";
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String message) throws IOException {
+        send(exchange, status, contentType, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parms = new HashMap<>();
+        if (query == null) return parms;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            parms.put(name, value);
+        }
+        return parms;
+    }
+}
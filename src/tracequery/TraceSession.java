@@ -0,0 +1,681 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.xml.transform.TransformerException;
+import org.basex.core.Context;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.basex.query.iter.Iter;
+import org.basex.query.value.Value;
+import org.basex.query.value.item.Item;
+import org.basex.query.value.type.NodeType;
+import org.basex.util.Token;
+
+/**
+ * TraceSession runs the trace pipeline for one OID at a time with its own query state, BaseX context
+ * and graph tracer, so several sessions can trace concurrently against the same read-only graph.
+ * The graph, database and configuration are shared; the OID, filter option, output prefix and the
+ * open stage queries belong to the session. A session is used by one thread at a time.
+ * @version 0.1
+ */
+class TraceSession {
+    /** external document-node variable that receives the previous stage result without a file */
+    public static final String TRACE_DOC = "trace-doc";
+    private static final String TRACE_DOC_ITEMS = "trace-doc-items";
+    private static final Pattern TRACE_DOC_EXTERNAL = 
+            Pattern.compile("declare\\s+variable\\s+\\$" + TRACE_DOC + "(\\s+as\\s+[^;]+?)?\\s+external\\s*;");
+    private static final String TRACE_DOC_QUERY = "declare variable $" + TRACE_DOC_ITEMS + " external; "
+            + "document { $" + TRACE_DOC_ITEMS + " }";
+    private static final Set<String> fileBoundQueries = ConcurrentHashMap.newKeySet();
+    /** external variable that receives the L1 subset documents of the trace without writing subset files */
+    public static final String L1_DOCS = "l1-docs";
+    private static final String L1_TEXTS = "l1-texts";
+    private static final Pattern L1_DOCS_EXTERNAL = 
+            Pattern.compile("declare\\s+variable\\s+\\$" + L1_DOCS + "(\\s+as\\s+[^;]+?)?\\s+external\\s*;");
+    private static final String L1_DOCS_QUERY = "declare variable $" + L1_TEXTS + " external; "
+            + "for $text in $" + L1_TEXTS + " return parse-xml($text)";
+    /** external variable that receives the GraphML records of the traced nodes without reading the graph file */
+    public static final String GRAPH_DOC = "graph-doc";
+    private static final String GRAPH_TEXT = "graph-text";
+    private static final Pattern GRAPH_DOC_EXTERNAL = 
+            Pattern.compile("declare\\s+variable\\s+\\$" + GRAPH_DOC + "(\\s+as\\s+[^;]+?)?\\s+external\\s*;");
+    private static final String GRAPH_DOC_QUERY = "declare variable $" + GRAPH_TEXT + " external; parse-xml($" + GRAPH_TEXT + ")";
+    private static final String NODE_TRACE_QUERY = "declare variable $ids external; declare variable $ns external; "
+            + "<nodes>{ for $id in tokenize($ids, '&#10;') return element { QName($ns, 'node') } { attribute id { $id } } }</nodes>";
+    private static final String NODE_IDS_QUERY = "declare variable $nodes external; "
+            + "for $node in $nodes/descendant-or-self::*:node return string($node/@id)";
+    private final Context context;
+    private final String graphMlFileName;
+    private final String l1FileName;
+    private final NodeTracer nodeTracer;
+    private final Boolean isDebug;
+    private final TraceCache cache;
+    private final OidIndex oidIndex;
+    private final StageMetrics metrics;
+    private final ChangeTracker tracker;
+    private final List<QueryProcessor> openQueries = new ArrayList<>();
+    private final List<File> subsetFiles = new ArrayList<>();
+    private String nodeOID = "";
+    private String outputPrefix = "";
+    private Boolean isFilter = Boolean.FALSE;
+    private TraceLimits traceLimits = TraceLimits.NONE;
+    private int nextCursor = -1;
+    private List<String> tracedNodeIds;
+
+    /**
+     * Constructor for TraceSession
+     * @param sharedContext Context with the databases opened for the run, the session queries use a context derived from it
+     * @param graphMlFileName String bound as the graph document, a file name or database path
+     * @param l1FileName String bound as xml-files.xml, a file name or database path
+     * @param graph TraceGraph for the java engine, a LineageIndex for the index engine, or null to run trace-node.xql
+     * @param isDebug Boolean true to write the result of every stage to its output file
+     * @param cache TraceCache with finished traces, or null to always run the trace
+     * @param oidIndex OidIndex used to bind subsets of the L1 files, or null to bind xml-files.xml
+     * @param metrics StageMetrics that records the cost of each stage
+     * @param tracker ChangeTracker that records the nodes behind each output file, or null to not track changes
+     */
+    public TraceSession(Context sharedContext, String graphMlFileName, String l1FileName, TraceGraph graph, Boolean isDebug, 
+            TraceCache cache, OidIndex oidIndex, StageMetrics metrics, ChangeTracker tracker) {
+        this.context = new Context(sharedContext);
+        this.graphMlFileName = graphMlFileName;
+        this.l1FileName = l1FileName;
+        if (graph == null) {
+            this.nodeTracer = null;
+        } else {
+            this.nodeTracer = graph instanceof LineageIndex ? new LineageTracer((LineageIndex) graph) : new GraphTracer(graph);
+        }
+        this.isDebug = isDebug;
+        this.cache = cache;
+        this.oidIndex = oidIndex;
+        this.metrics = metrics;
+        this.tracker = tracker;
+    }
+
+    /**
+     * runTrace traces an OID and writes the html trace visualization to the xml-path, along with the
+     * text trace and node details XML when trace-text and trace-xml are set in the configuration
+     * @param oid String OID of the variable to trace
+     * @param filter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @param prefix String prefix for the output files of this trace
+     * @param isShowResult Boolean true to load the html trace into the browser
+     * @throws TraceException if a stage returns no content for the OID
+     */
+    public void runTrace(String oid, Boolean filter, String prefix, Boolean isShowResult) throws TraceException {
+        runTrace(oid, filter, TraceLimits.NONE, prefix, isShowResult);
+    }
+
+    /**
+     * runTrace traces one page of an OID within the limits and writes the trace outputs to the xml-path
+     * @param oid String OID of the variable to trace
+     * @param filter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @param limits TraceLimits with the direction, depth and page of the trace
+     * @param prefix String prefix for the output files of this trace
+     * @param isShowResult Boolean true to load the html trace into the browser
+     * @throws TraceException if a stage returns no content for the OID
+     */
+    public void runTrace(String oid, Boolean filter, TraceLimits limits, String prefix, Boolean isShowResult) throws TraceException {
+        Map<String, String> outputs = getOutputFiles(prefix);
+        nextCursor = -1;
+        // a repeated trace is written from the cache and skips every query stage, bounded traces are not cached;
+        // with change tracking a trace is only taken from the cache once its nodes are recorded for these outputs
+        boolean isTracked = tracker != null && !limits.isBounded();
+        boolean isCached = cache != null && !limits.isBounded() && (!isTracked || tracker.isRecorded(oid, filter, prefix));
+        if (!isCached || !writeCachedOutputs(oid, filter, outputs)) {
+            try {
+                StageResult result = runStages(oid, filter, limits, prefix);
+                renderOutputs(oid, filter, result, outputs);
+                if (isTracked) tracker.record(oid, filter, prefix, tracedNodeIds);
+            } finally {
+                closeQueries();
+            }
+        }
+        if (isShowResult) XsltTrace.showResult(outputs.get(TraceServer.FORMAT_HTML));
+    }
+
+    /* the output file for each configured format, html first */
+    private static Map<String, String> getOutputFiles(String prefix) {
+        Map<String, String> outputs = new LinkedHashMap<>();
+        String outputPath = ConfigReader.getXmlPath() + prefix;
+        outputs.put(TraceServer.FORMAT_HTML, outputPath + ConfigReader.getTraceHtml());
+        if (!ConfigReader.getTraceText().isEmpty() && !ConfigReader.getTextTraceXsl().isEmpty()) {
+            outputs.put(TraceServer.FORMAT_TEXT, outputPath + ConfigReader.getTraceText());
+        }
+        if (!ConfigReader.getTraceXml().isEmpty()) outputs.put(TraceServer.FORMAT_XML, outputPath + ConfigReader.getTraceXml());
+        return outputs;
+    }
+
+    private static String getStyleSheet(String format) {
+        if (TraceServer.FORMAT_XML.equals(format)) return null;
+        String xsl = TraceServer.FORMAT_TEXT.equals(format) ? ConfigReader.getTextTraceXsl() : ConfigReader.getTraceXsl();
+        return ConfigReader.getXmlPath() + xsl;
+    }
+
+    /* write every output from the cache, returns false if any format is not cached */
+    private boolean writeCachedOutputs(String oid, Boolean filter, Map<String, String> outputs) throws TraceException {
+        Map<String, byte[]> cached = new HashMap<>();
+        for (String format : outputs.keySet()) {
+            byte[] output = cache.get(oid, filter, format);
+            if (output == null) return false;
+            cached.put(format, output);
+        }
+        for (Map.Entry<String, String> output : outputs.entrySet()) {
+            try {
+                Files.write(Paths.get(output.getValue()), cached.get(output.getKey()));
+            } catch (IOException ex) {
+                deleteOutputs(outputs);
+                throw new TraceException("Unable to write the trace to " + output.getValue() + ". " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /* close every output stream, the first failure is thrown after all are closed */
+    private static void closeOutputs(List<OutputStream> streams) throws IOException {
+        IOException failure = null;
+        for (OutputStream os : streams) {
+            try {
+                os.close();
+            } catch (IOException ex) {
+                if (failure == null) failure = ex;
+            }
+        }
+        streams.clear();
+        if (failure != null) throw failure;
+    }
+
+    /* remove the output files of a trace that failed part way so no truncated output is left behind */
+    private static void deleteOutputs(Map<String, String> outputs) {
+        for (String fileName : outputs.values()) {
+            new File(fileName).delete();
+        }
+    }
+
+    /* render every output in one pass over the node details; if any output fails every output file is
+       removed and nothing is cached, so the failed trace is not taken for a finished one */
+    private void renderOutputs(String oid, Boolean filter, StageResult result, Map<String, String> outputs) 
+            throws TraceException {
+        StageMetrics.Record record = metrics.start(oid, "render");
+        long startTime = System.nanoTime();
+        List<OutputStream> streams = new ArrayList<>();
+        boolean isRendered = false;
+        try {
+            TraceRenderer renderer = new TraceRenderer();
+            for (Map.Entry<String, String> output : outputs.entrySet()) {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(output.getValue()), 1 << 16);
+                streams.add(os);
+                renderer.addOutput(getStyleSheet(output.getKey()), os);
+            }
+            renderer.render(result.toSource(oid));
+            closeOutputs(streams);
+            isRendered = true;
+        } catch (IOException | TransformerException ex) {
+            throw new TraceException("Error rendering the trace for oid = " + oid + ". " + ex.getMessage());
+        } finally {
+            if (!isRendered) {
+                try {
+                    closeOutputs(streams);
+                } catch (IOException ex) {
+                    // the files are deleted and the rendering error is reported
+                }
+                deleteOutputs(outputs);
+                metrics.finish(record);
+            }
+        }
+        record.evaluateNanos = System.nanoTime() - startTime;
+        for (Map.Entry<String, String> output : outputs.entrySet()) {
+            File file = new File(output.getValue());
+            record.bytesWritten += file.length();
+            if (cache == null || traceLimits.isBounded() || !cache.accepts(file.length())) continue;
+            try {
+                cache.put(oid, filter, output.getKey(), Files.readAllBytes(file.toPath()));
+            } catch (IOException ex) {
+                System.out.println("Unable to cache the trace " + output.getValue() + ". " + ex.getMessage());
+            }
+        }
+        metrics.finish(record);
+    }
+
+    /**
+     * writeTrace traces an OID and writes the result to a stream instead of a file
+     * @param oid String OID of the variable to trace
+     * @param filter Boolean true to filter out Forms and IGs not referenced in the TraceItems
+     * @param limits TraceLimits with the direction, depth and page of the trace
+     * @param format String output format: html, text or xml
+     * @param prefix String prefix for any files written for this trace
+     * @param os OutputStream that receives the rendered trace
+     * @throws TraceException if a stage returns no content for the OID
+     * @throws IOException if the output cannot be written
+     * @throws QueryException if the node details cannot be serialized
+     * @throws TransformerException if the trace cannot be rendered
+     */
+    public void writeTrace(String oid, Boolean filter, TraceLimits limits, String format, String prefix, OutputStream os) 
+            throws TraceException, IOException, QueryException, TransformerException {
+        nextCursor = -1;
+        byte[] cached = cache == null || limits.isBounded() ? null : cache.get(oid, filter, format);
+        if (cached != null) {
+            os.write(cached);
+            return;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            StageResult result = runStages(oid, filter, limits, prefix);
+            if (TraceServer.FORMAT_XML.equals(format)) {
+                result.write(output);
+            } else {
+                String xsl = TraceServer.FORMAT_TEXT.equals(format) ? ConfigReader.getTextTraceXsl() : ConfigReader.getTraceXsl();
+                StageMetrics.Record record = metrics.start(oid, xsl);
+                long startTime = System.nanoTime();
+                new XsltTrace(result.toSource(oid), ConfigReader.getXmlPath() + xsl).transform(output);
+                record.evaluateNanos = System.nanoTime() - startTime;
+                record.bytesWritten = output.size();
+                metrics.finish(record);
+            }
+        } finally {
+            closeQueries();
+        }
+        if (cache != null && !limits.isBounded()) cache.put(oid, filter, format, output.toByteArray());
+        output.writeTo(os);
+    }
+
+    /* run the query stages for the OID and return the node details for the trace */
+    private StageResult runStages(String oid, Boolean filter, TraceLimits limits, String prefix) throws TraceException {
+        begin(oid, filter, limits, prefix);
+        // generate the graph node trace for the variable
+        StageResult result = runNodeTrace();
+        if (tracker != null && nodeTracer == null) tracedNodeIds = getTracedNodeIds(result);
+        // get the file and oid details for each node    
+        result = runGetNodeOIDs(result);
+        // get the medata for each node
+        result = runGetNodeDetails(result);
+        // filter out Forms and IGs not referenced in the TraceItems
+        if (isFilter) result = runGetFilteredNodes(result);
+        return result;
+    }
+
+    /* set the OID and options used by the stages of the next trace */
+    void begin(String oid, Boolean filter, String prefix) {
+        begin(oid, filter, TraceLimits.NONE, prefix);
+    }
+
+    void begin(String oid, Boolean filter, TraceLimits limits, String prefix) {
+        nodeOID = oid;
+        isFilter = filter;
+        traceLimits = limits;
+        outputPrefix = prefix;
+    }
+
+    /**
+     * getNextCursor returns the cursor of the next page of the last trace
+     * @return int cursor to pass in the limits of the next trace, or -1 if the last trace had no more nodes
+     */
+    public int getNextCursor() {
+        return nextCursor;
+    }
+
+    /* get the origin for each node in the trace - used for reporting untraceables */
+    StageResult runGetNodeDetails(StageResult nodeOids) throws TraceException {
+        String detailOutputFileName = ConfigReader.getXmlPath() + outputPrefix + ConfigReader.getTraceNodeDetails();
+        HashMap<String, String> qryParm = new HashMap<>();
+        StageResult result = runQuery(detailOutputFileName, "trace-node-details.xql", qryParm, nodeOids);
+        if (result.getCount() == 0) throw new TraceException("Unable to retrieve the node details for this trace for oid = " + nodeOID);
+        return result;
+    }
+    
+    /* filter out Form and IG nodes not refrenced by the TraceItem for tabulation and data collection */
+    StageResult runGetFilteredNodes(StageResult nodeDetails) throws TraceException {
+        String filteredOutputFileName = ConfigReader.getXmlPath() + outputPrefix + "filtered-" + ConfigReader.getTraceNodeDetails();
+        HashMap<String, String> qryParm = new HashMap<>();
+        StageResult result = runQuery(filteredOutputFileName, "trace-node-filters.xql", qryParm, nodeDetails);
+        if (result.getCount() == 0) throw new TraceException("Unable to retrieve the node OIDs for this trace for oid = " + nodeOID);
+        return result;
+    }
+
+    /* using the results of the GraphML trace look up the nodes in the appropriate XML file including the file name and path;
+       with the OID index a query that declares the external $l1-docs variable gets the L1 subsets as documents in
+       memory, in the order of xml-files.xml, and l1-doc-name stays the full xml-files.xml; any other query reads
+       subset files listed in a subset xml-files.xml; when the graph was loaded with its node records, as in the
+       low-memory mode, the GraphML of the traced nodes is bound the same way, as $graph-doc or a graph subset
+       file, so the graph file is never parsed by the query */
+    StageResult runGetNodeOIDs(StageResult nodeTrace) throws TraceException {
+        String oidOutputFileName = ConfigReader.getXmlPath() + outputPrefix + ConfigReader.getTraceNodeOid();
+        String qryName = "trace-node-oid.xql";
+        String query = readFile(ConfigReader.getXqueryPath() + qryName);
+        HashMap<String, String> qryParm = new HashMap<>();
+        qryParm.put("graph-doc-name", graphMlFileName);
+        Map<String, Value> values = new HashMap<>();
+        NodeRecords records = nodeTracer == null ? null : nodeTracer.getGraph().getNodeRecords();
+        if (records != null) {
+            String graphMl = records.toGraphMl(nodeTracer.getGraph(), getTracedNodeIds(nodeTrace));
+            if (GRAPH_DOC_EXTERNAL.matcher(query).find()) {
+                values.put(GRAPH_DOC, readGraphRecords(graphMl));
+            } else {
+                if (fileBoundQueries.add(qryName + "$" + GRAPH_DOC)) {
+                    System.err.println(qryName + " does not declare $" + GRAPH_DOC + " as an external variable, "
+                            + "the records of the traced nodes are written to a graph file for it.");
+                }
+                qryParm.put("graph-doc-name", writeGraphRecords(graphMl));
+            }
+        }
+        if (oidIndex == null) {
+            qryParm.put("l1-doc-name", l1FileName);
+        } else if (L1_DOCS_EXTERNAL.matcher(query).find()) {
+            qryParm.put("l1-doc-name", l1FileName);
+            values.put(L1_DOCS, readL1Subset(nodeTrace));
+        } else {
+            if (fileBoundQueries.add(qryName + "$" + L1_DOCS)) {
+                System.err.println(qryName + " does not declare $" + L1_DOCS + " as an external variable, "
+                        + "the L1 subsets are written to files for it.");
+            }
+            qryParm.put("l1-doc-name", writeL1Subset(nodeTrace));
+        }
+        StageResult result = runQueryText(oidOutputFileName, qryName, query, qryParm, values, nodeTrace);
+        if (result.getCount() == 0) throw new TraceException("Unable to retrieve the node OIDs for this trace for oid = " + nodeOID);
+        return result;
+    }
+
+    /* parse the L1 file subsets holding the definitions of the traced nodes into documents in memory */
+    private Value readL1Subset(StageResult nodeTrace) throws TraceException {
+        StageMetrics.Record record = metrics.start(nodeOID, OidIndex.SUBSET_DIR);
+        long startTime = System.nanoTime();
+        try {
+            List<String> nodeIds = getNodeIds(nodeTrace);
+            List<String> subsets = oidIndex.readSubset(nodeIds);
+            record.items = nodeIds.size();
+            QueryProcessor proc = new QueryProcessor(L1_DOCS_QUERY, context);
+            // the documents belong to this query so it stays open with the stage queries
+            openQueries.add(proc);
+            proc.bind(L1_TEXTS, subsets.toArray(new String[subsets.size()]));
+            return proc.value();
+        } catch (IOException | QueryException ex) {
+            throw new TraceException("Unable to read the L1 subset for oid = " + nodeOID + ". " + ex.getMessage());
+        } finally {
+            record.evaluateNanos = System.nanoTime() - startTime;
+            metrics.finish(record);
+        }
+    }
+
+    /* parse the GraphML records of the traced nodes into a document in memory */
+    private Value readGraphRecords(String graphMl) throws TraceException {
+        try {
+            QueryProcessor proc = new QueryProcessor(GRAPH_DOC_QUERY, context);
+            openQueries.add(proc);
+            proc.bind(GRAPH_TEXT, graphMl);
+            return proc.value();
+        } catch (QueryException ex) {
+            throw new TraceException("Unable to read the graph records for oid = " + nodeOID + ". " + ex.getMessage());
+        }
+    }
+
+    /* write the GraphML records of the traced nodes next to the stage outputs, returns the file name */
+    private String writeGraphRecords(String graphMl) throws TraceException {
+        File file = new File(ConfigReader.getXmlPath() + outputPrefix + "trace-graph-records.xml");
+        try {
+            Files.write(file.toPath(), graphMl.getBytes(StandardCharsets.UTF_8));
+            subsetFiles.add(file);
+            return file.getPath();
+        } catch (IOException ex) {
+            throw new TraceException("Unable to write the graph records for oid = " + nodeOID + ". " + ex.getMessage());
+        }
+    }
+
+    /* write the L1 file subsets holding the definitions of the traced nodes, returns the subset xml-files.xml */
+    private String writeL1Subset(StageResult nodeTrace) throws TraceException {
+        StageMetrics.Record record = metrics.start(nodeOID, OidIndex.SUBSET_DIR);
+        long startTime = System.nanoTime();
+        try {
+            List<String> nodeIds = getNodeIds(nodeTrace);
+            List<File> written = oidIndex.writeSubset(nodeIds, outputPrefix);
+            subsetFiles.addAll(written);
+            record.items = nodeIds.size();
+            for (File file : written) {
+                record.bytesWritten += file.length();
+            }
+            return written.get(0).getPath();
+        } catch (IOException | QueryException ex) {
+            throw new TraceException("Unable to write the L1 subset for oid = " + nodeOID + ". " + ex.getMessage());
+        } finally {
+            record.evaluateNanos = System.nanoTime() - startTime;
+            metrics.finish(record);
+        }
+    }
+
+    private List<String> getTracedNodeIds(StageResult nodeTrace) throws TraceException {
+        try {
+            return getNodeIds(nodeTrace);
+        } catch (QueryException ex) {
+            throw new TraceException("Unable to read the node trace for oid = " + nodeOID + ". " + ex.getMessage());
+        }
+    }
+
+    /* the ids of the node elements in the trace-node result */
+    private List<String> getNodeIds(StageResult nodeTrace) throws QueryException {
+        List<String> nodeIds = new ArrayList<>();
+        try (QueryProcessor proc = new QueryProcessor(NODE_IDS_QUERY, context)) {
+            proc.bind("nodes", nodeTrace.getValue());
+            Iter iter = proc.iter();
+            for(Item item; (item = iter.next()) != null;) {
+                nodeIds.add(Token.string(item.string(null)));
+            }
+        }
+        return nodeIds;
+    }
+ 
+    /* run the trace query on the GraphML file and return the nodes in the trace */
+    StageResult runNodeTrace() throws TraceException {
+        String outputFileName = ConfigReader.getXmlPath() + outputPrefix + ConfigReader.getTraceNode();
+        if (nodeTracer != null) return runJavaNodeTrace(outputFileName);
+        if (traceLimits.isBounded()) throw new TraceException("The direction, max-depth, max-nodes and cursor limits need the java or index engine.");
+        HashMap<String, String> qryParm = new HashMap<>();
+        qryParm.put("input", graphMlFileName);
+        qryParm.put("oid", nodeOID);
+        StageResult result = runQuery(outputFileName, "trace-node.xql", qryParm, null);
+        if (result.getCount() == 0) throw new TraceException("No trace was found for oid = " + nodeOID);
+        return result;
+    }
+
+    /* walk the graph with the java engine and build the trace-node result from the node ids of the page */
+    private StageResult runJavaNodeTrace(String outputFileName) throws TraceException {
+        TraceGraph graph = nodeTracer.getGraph();
+        int start = graph.indexOf(nodeOID);
+        if (start < 0) throw new TraceException("No trace was found for oid = " + nodeOID);
+        StageMetrics.Record record = metrics.start(nodeOID, "graph-trace");
+        long startTime = System.nanoTime();
+        int count = nodeTracer.trace(start, traceLimits);
+        record.evaluateNanos = System.nanoTime() - startTime;
+        record.items = count;
+        metrics.finish(record);
+        int pageEnd = traceLimits.getPageEnd();
+        int first = traceLimits.getCursor();
+        if (first >= count) throw new TraceException("No nodes were found at cursor " + first + " for oid = " + nodeOID);
+        nextCursor = count > pageEnd || nodeTracer.isTruncated() ? pageEnd : -1;
+        StringBuilder ids = new StringBuilder();
+        tracedNodeIds = new ArrayList<>();
+        for (int i = first; i < Math.min(count, pageEnd); i++) {
+            if (i > first) ids.append('\n');
+            String id = graph.idOf(nodeTracer.getNode(i));
+            ids.append(id);
+            tracedNodeIds.add(id);
+        }
+        return runNodeIdsQuery(outputFileName, ids.toString(), graph.getNodeNamespace());
+    }
+
+    /* build the trace-node result from node ids, one id per line */
+    private StageResult runNodeIdsQuery(String outputFileName, String ids, String namespace) throws TraceException {
+        HashMap<String, String> qryParm = new HashMap<>();
+        qryParm.put("ids", ids);
+        qryParm.put("ns", namespace);
+        return runQueryText(outputFileName, "trace-node", NODE_TRACE_QUERY, qryParm, null);
+    }
+
+    /**
+     * runNodeDetails looks up the details of nodes traced outside the session, such as the nodes one shard
+     * contributes to a trace that crosses graphs; the result stays open until closeQueries is called
+     * @param oid String OID of the variable traced
+     * @param filter Boolean filter option of the trace, the merged details are filtered by the caller
+     * @param nodeIds List of the ids of the traced nodes in the graph of this session
+     * @param prefix String prefix for the stage output files
+     * @return StageResult with the node details
+     * @throws TraceException if the nodes are not found in the L1 files
+     */
+    StageResult runNodeDetails(String oid, Boolean filter, List<String> nodeIds, String prefix) throws TraceException {
+        begin(oid, filter, prefix);
+        String outputFileName = ConfigReader.getXmlPath() + outputPrefix + ConfigReader.getTraceNode();
+        StageResult result = runNodeIdsQuery(outputFileName, String.join("\n", nodeIds), nodeTracer.getGraph().getNodeNamespace());
+        result = runGetNodeOIDs(result);
+        return runGetNodeDetails(result);
+    }
+
+    /**
+     * renderTrace writes the trace outputs for node details built outside the session, such as the
+     * merged details of the shards of a trace
+     * @param oid String OID of the variable traced
+     * @param filter Boolean filter option of the trace
+     * @param result StageResult with the node details
+     * @param prefix String prefix for the output files
+     */
+    void renderTrace(String oid, Boolean filter, StageResult result, String prefix) throws TraceException {
+        renderOutputs(oid, filter, result, getOutputFiles(prefix));
+    }
+
+    private StageResult runQuery(String outputFileName, String qryName, HashMap<String, String> qp, StageResult traceDoc) 
+            throws TraceException {
+        return runQueryText(outputFileName, qryName, readFile(ConfigReader.getXqueryPath() + qryName), qp, traceDoc);
+    }
+
+    /* run a stage query; the previous stage result is bound in memory to the external $trace-doc variable the
+       stage queries declare, a query without it only runs in debug mode, which writes every stage result to its
+       file and binds the file name as $trace-doc-name */
+    private StageResult runQueryText(String outputFileName, String qryName, String query, HashMap<String, String> qp, 
+            StageResult traceDoc) throws TraceException {
+        return runQueryText(outputFileName, qryName, query, qp, new HashMap<String, Value>(), traceDoc);
+    }
+
+    /* run a stage query that also binds values held in memory, such as the L1 subset documents */
+    private StageResult runQueryText(String outputFileName, String qryName, String query, HashMap<String, String> qp, 
+            Map<String, Value> values, StageResult traceDoc) throws TraceException {
+        int count = 0;
+        StageMetrics.Record record = metrics.start(nodeOID, qryName);
+        try {
+            boolean isTraceDoc = traceDoc != null && TRACE_DOC_EXTERNAL.matcher(query).find();
+            if (traceDoc != null && !isTraceDoc && !isDebug) {
+                throw new TraceSetupException(qryName + " does not declare the external variable $" + TRACE_DOC 
+                        + " that receives the previous stage result. Add declare variable $" + TRACE_DOC 
+                        + " external; to the query, or run with debug to read the stage files with doc($trace-doc-name).");
+            }
+            // debug mode writes every stage result to its file, a query may read it from there
+            if (traceDoc != null) qp.put("trace-doc-name", isDebug ? traceDoc.write() : traceDoc.getFileName());
+            QueryProcessor proc = new QueryProcessor(query, context);
+            // results may point into documents opened by the query so it is closed when the trace is done
+            openQueries.add(proc);
+            for (String parmName : qp.keySet()) {
+                proc.bind(parmName, qp.get(parmName));
+            }
+            for (Map.Entry<String, Value> value : values.entrySet()) {
+                proc.bind(value.getKey(), value.getValue());
+            }
+            if (isTraceDoc) proc.bind(TRACE_DOC, toDocument(traceDoc.getValue()));
+            // parse and compile separately so each phase is timed, value() reuses the compiled query
+            long startTime = System.nanoTime();
+            proc.parse();
+            record.parseNanos = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            proc.compile();
+            record.compileNanos = System.nanoTime() - startTime;
+            // keep the result in memory for the next stage
+            startTime = System.nanoTime();
+            Value value = proc.value();
+            record.evaluateNanos = System.nanoTime() - startTime;
+            Iter iter = value.iter();
+            for(Item item; (item = iter.next()) != null;) {
+                if (!StageResult.isEmptyNodes(item)) count++;
+            }
+            record.items = count;
+            StageResult result = new StageResult(proc, value, outputFileName, count, record);
+            // intermediate files are only written in debug mode
+            if (isDebug) result.write();
+            return result;
+        } catch (IOException ex) {
+            System.err.println("Unable to write the ouput to " + outputFileName + ". " + ex.getMessage());
+        } catch (QueryException ex) {
+            System.err.println("Error reading results from the " + qryName + " XQuery. " + ex.getMessage());
+        } finally {
+            // a result written later by the next stage still adds its serialization to this record
+            metrics.finish(record);
+        }
+        return new StageResult(null, null, outputFileName, 0, null);
+    }
+
+    /* the previous stage result as a document node, a result that is already one document is bound as it is */
+    private Value toDocument(Value items) throws QueryException {
+        if (items.size() == 1 && items.itemAt(0).type == NodeType.DOC) return items;
+        QueryProcessor proc = new QueryProcessor(TRACE_DOC_QUERY, context);
+        openQueries.add(proc);
+        proc.bind(TRACE_DOC_ITEMS, items);
+        return proc.value();
+    }
+
+    /* release the query of one stage result, for callers that run the stages one at a time */
+    void closeStage(StageResult result) {
+        if (openQueries.remove(result.getProc())) result.getProc().close();
+    }
+
+    /* release the stage queries and the in-memory results of the last trace */
+    void closeQueries() {
+        for (QueryProcessor proc : openQueries) {
+            proc.close();
+        }
+        openQueries.clear();
+        // the subsets are kept with the other stage outputs in debug mode
+        if (!isDebug) {
+            for (File file : subsetFiles) {
+                file.delete();
+            }
+        }
+        subsetFiles.clear();
+    }
+
+    /* read the XQuery through the query cache so each file is only read once per JVM; a session runs on
+       batch and server threads, so a missing query fails the trace instead of ending the run */
+    private static String readFile(String file) throws TraceSetupException {
+        try {
+            return QueryCache.getQuery(file);
+        } catch (FileNotFoundException | NoSuchFileException ex) {
+            throw new TraceSetupException("Unable to locate the XQuery file " + file + ". " + ex.getMessage());
+        } catch (IOException ex) {
+            throw new TraceSetupException("Unable to read the XQuery file " + file + ". " + ex.getMessage());
+        }
+    }
+}
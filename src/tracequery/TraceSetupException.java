@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+/**
+ * TraceSetupException reports that a trace could not run because of the installation rather than the
+ * OID, such as an XQuery file that is missing, unreadable or lacks an external variable the pipeline
+ * binds. Batch runs count it as a failed OID like any TraceException; the server answers it with a 500.
+ * @version 0.1
+ */
+class TraceSetupException extends TraceException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor for TraceSetupException
+     * @param message String that describes the file or setting that is not usable
+     */
+    public TraceSetupException(String message) {
+        super(message);
+    }
+}
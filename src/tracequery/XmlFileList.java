@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * XmlFileList reads xml-files.xml, the list of L1 ODM and Define-XML files used by the trace queries.
+ * Any attribute value or element text ending in .xml is treated as a reference to an L1 file,
+ * relative references are resolved against the xml-path.
+ * @version 0.1
+ */
+class XmlFileList {
+    public static final String FILE_NAME = "xml-files.xml";
+    private final String xmlPath;
+    private final File listFile;
+    private final Set<String> references = new LinkedHashSet<>();
+
+    /**
+     * Constructor for XmlFileList reads the file references from xml-files.xml
+     * @param xmlPath String with the xml-path from the configuration file
+     * @throws IOException if xml-files.xml cannot be read or parsed
+     */
+    public XmlFileList(String xmlPath) throws IOException {
+        this.xmlPath = xmlPath;
+        this.listFile = new File(xmlPath + FILE_NAME);
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        try (InputStream in = new FileInputStream(listFile)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        addReference(reader.getAttributeValue(i));
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS) {
+                    addReference(reader.getText());
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to parse " + listFile + ". " + ex.getMessage(), ex);
+        }
+    }
+
+    private void addReference(String value) {
+        String ref = value.trim();
+        if (isFileReference(ref)) references.add(ref);
+    }
+
+    private static boolean isFileReference(String value) {
+        return value.toLowerCase().endsWith(".xml");
+    }
+
+    public File getListFile() {
+        return listFile;
+    }
+
+    /**
+     * getReferences returns the L1 file references as they are written in xml-files.xml
+     * @return List of the file references in document order
+     */
+    public List<String> getReferences() {
+        return new ArrayList<>(references);
+    }
+
+    /**
+     * resolve converts a reference from xml-files.xml into a file
+     * @param reference String file reference from getReferences
+     * @return File for the reference, relative references are resolved against the xml-path
+     */
+    public File resolve(String reference) {
+        File file = new File(reference);
+        return file.isAbsolute() ? file : new File(xmlPath + reference);
+    }
+
+    /**
+     * getFiles resolves every L1 file reference
+     * @return List of the L1 files
+     */
+    public List<File> getFiles() {
+        List<File> files = new ArrayList<>();
+        for (String reference : references) {
+            files.add(resolve(reference));
+        }
+        return files;
+    }
+
+    /**
+     * toMappedXml copies xml-files.xml replacing each file reference found in the map
+     * @param referenceMap Map from the original file reference to its replacement
+     * @return String with the rewritten xml-files.xml document
+     * @throws IOException if xml-files.xml cannot be read or parsed
+     */
+    public String toMappedXml(Map<String, String> referenceMap) throws IOException {
+        XMLInputFactory inFactory = XMLInputFactory.newInstance();
+        inFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+        StringWriter xml = new StringWriter();
+        try (InputStream in = new FileInputStream(listFile)) {
+            XMLEventReader reader = inFactory.createXMLEventReader(in);
+            XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(xml);
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    List<Attribute> attributes = new ArrayList<>();
+                    for (Iterator<?> it = start.getAttributes(); it.hasNext();) {
+                        Attribute attribute = (Attribute) it.next();
+                        String mapped = referenceMap.get(attribute.getValue().trim());
+                        attributes.add(mapped == null ? attribute : eventFactory.createAttribute(attribute.getName(), mapped));
+                    }
+                    event = eventFactory.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+                } else if (event.isCharacters()) {
+                    Characters text = event.asCharacters();
+                    String mapped = referenceMap.get(text.getData().trim());
+                    if (mapped != null) event = eventFactory.createCharacters(mapped);
+                }
+                writer.add(event);
+            }
+            writer.close();
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to copy " + listFile + ". " + ex.getMessage(), ex);
+        }
+        return xml.toString();
+    }
+}
@@ -17,18 +17,19 @@ package tracequery;
 
 import java.awt.Desktop;
 import java.io.File;
+import java.io.OutputStream;
 import java.net.URI;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 /**
  * XsltTrace runs style sheets to transform XML output into html and other formats.
  * @version 0.1
  */
 class XsltTrace {
-    private final String xmlFileNameIn;
+    private final Source xmlIn;
     private final String xslFileNameIn;
     private String fileNameOut;
     
@@ -38,10 +39,28 @@ class XsltTrace {
      * @param xslFileName String that contains the XSL path and file to perform the transformation
      */
     public XsltTrace(String xmlFileName, String xslFileName) {
-        this.xmlFileNameIn = xmlFileName;
+        this(new StreamSource(xmlFileName), xslFileName);
+    }
+
+    /**
+     * Constructor for XsltTrace that transforms XML already held in memory
+     * @param xmlSource Source that contains the XML to be transformed, such as a DOMSource
+     * @param xslFileName String that contains the XSL path and file to perform the transformation
+     */
+    public XsltTrace(Source xmlSource, String xslFileName) {
+        this.xmlIn = xmlSource;
         this.xslFileNameIn = xslFileName;
     }
 
+    /**
+     * transform executes the XSL transformation writing the output to a stream
+     * @param os OutputStream that receives the transformed output, it is not closed
+     * @throws TransformerException if the stylesheet cannot be compiled or the transformation fails
+     */
+    public void transform(OutputStream os) throws TransformerException {
+        QueryCache.getTemplates(xslFileNameIn).newTransformer().transform(xmlIn, new StreamResult(os));
+    }
+
     /**
      * transformXMLFile executes the XSL transformation on the XML file 
      * @param fileNameOutput String that contains the path and file for the transformed output
@@ -49,27 +68,30 @@ class XsltTrace {
      */    
     public void transformXMLFile(String fileNameOutput, Boolean isShowResult) {
         fileNameOut = fileNameOutput;
-        TransformerFactory factory = TransformerFactory.newInstance();
-        StreamSource xslStream = new StreamSource(xslFileNameIn);
-        StreamSource xmlIn = new StreamSource(xmlFileNameIn);
         StreamResult fileOut = new StreamResult(fileNameOut);
         try {
-            Transformer transformer = factory.newTransformer(xslStream);
+            // the stylesheet is compiled once and shared, each transformation gets its own Transformer
+            Transformer transformer = QueryCache.getTemplates(xslFileNameIn).newTransformer();
             transformer.transform(xmlIn, fileOut);
         } catch (TransformerException e) {
             System.out.println("Error transforming XML file to " + fileNameOutput + ". " + e.getMessage());
         }               
-        if (isShowResult) {
-            try {
-                File sFileOut = new File(fileNameOut);
-                URI fileUri = sFileOut.toURI();
-                Desktop desktop = Desktop.getDesktop();
-                desktop.browse(fileUri);
-            }
-            catch (Exception e) {
-                System.out.println("Unable to load HTML file in browser: " + e.getMessage());
-            }
+        if (isShowResult) showResult(fileNameOut);
+    }
 
+    /**
+     * showResult loads an html output file into the browser
+     * @param fileName String that contains the path and file to show
+     */
+    static void showResult(String fileName) {
+        try {
+            File sFileOut = new File(fileName);
+            URI fileUri = sFileOut.toURI();
+            Desktop desktop = Desktop.getDesktop();
+            desktop.browse(fileUri);
+        }
+        catch (Exception e) {
+            System.out.println("Unable to load HTML file in browser: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * ChangeTrackerTest checks which recorded traces an input change makes stale: a changed edge marks
+ * the traces through its nodes, a changed definition the traces that read it, a changed query every
+ * trace, and that the stale marks and recorded traces are kept in the saved state.
+ * @version 0.1
+ */
+public class ChangeTrackerTest {
+    private static final String ODM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\"><Study OID=\"S.1\"><MetaDataVersion OID=\"MDV.1\" Name=\"m\">\n"
+            + "<ItemDef OID=\"IT.AGE\" Name=\"AGE\" DataType=\"integer\"/>\n"
+            + "<ItemDef OID=\"IT.SEX\" Name=\"SEX\" DataType=\"text\"><CodeListRef CodeListOID=\"CL.SEX\"/></ItemDef>\n"
+            + "<CodeList OID=\"CL.SEX\" Name=\"Sex\" DataType=\"text\"><CodeListItem CodedValue=\"F\"/></CodeList>\n"
+            + "</MetaDataVersion></Study></ODM>\n";
+    private static final String GRAPH = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\"><graph edgedefault=\"directed\">"
+            + "<edge source=\"IT.AGE\" target=\"IT.ADSL.AGE\"/><edge source=\"IT.SEX\" target=\"IT.ADSL.SEX\"/>"
+            + "</graph></graphml>";
+
+    @Test
+    public void marksNoTraceWhenNothingChanged() throws IOException {
+        File directory = study();
+        ChangeTracker tracker = recorded(directory);
+        assertTrue(update(tracker, directory).isEmpty());
+        tracker = ChangeTracker.open(xmlPath(directory));
+        assertEquals(2, tracker.getTraceCount());
+        assertTrue(update(tracker, directory).isEmpty());
+        assertTrue(tracker.isRecorded("IT.ADSL.AGE", Boolean.FALSE, "age-"));
+        assertFalse(tracker.isRecorded("IT.ADSL.AGE", Boolean.TRUE, "age-"));
+        assertFalse(tracker.isRecorded("IT.ADSL.SEX", Boolean.FALSE, "age-"));
+    }
+
+    @Test
+    public void marksTheTracesThroughANodeWithANewEdge() throws IOException {
+        File directory = study();
+        ChangeTracker tracker = recorded(directory);
+        write(directory, "graph.graphml", GRAPH.replace("</graph>", "<edge source=\"IT.AGE\" target=\"IT.ADSL.AGEGR1\"/></graph>"));
+        assertEquals(Collections.singletonList("age-"), prefixes(update(tracker, directory)));
+        assertFalse(tracker.isRecorded("IT.ADSL.AGE", Boolean.FALSE, "age-"));
+        assertTrue(tracker.isRecorded("IT.ADSL.SEX", Boolean.FALSE, "sex-"));
+    }
+
+    @Test
+    public void marksTheTracesThatReadAChangedDefinition() throws IOException {
+        File directory = study();
+        ChangeTracker tracker = recorded(directory);
+        // the CodeList is not a node of the trace, it is referenced by the traced ItemDef
+        write(directory, "odm.xml", ODM.replace("<CodeListItem CodedValue=\"F\"/>", "<CodeListItem CodedValue=\"F\"/><CodeListItem CodedValue=\"M\"/>"));
+        assertEquals(Collections.singletonList("sex-"), prefixes(update(tracker, directory)));
+    }
+
+    @Test
+    public void marksEveryTraceWhenAQueryChanges() throws IOException {
+        File directory = study();
+        ChangeTracker tracker = recorded(directory);
+        write(directory, "trace.xql", "declare variable $oid external; $oid, $oid");
+        assertEquals(Arrays.asList("age-", "sex-"), prefixes(update(tracker, directory)));
+    }
+
+    @Test
+    public void keepsTheStaleMarksUntilTheTraceIsRecordedAgain() throws IOException {
+        File directory = study();
+        ChangeTracker tracker = recorded(directory);
+        write(directory, "graph.graphml", GRAPH.replace("</graph>", "<edge source=\"IT.AGE\" target=\"IT.ADSL.AGEGR1\"/></graph>"));
+        update(tracker, directory);
+        tracker.save();
+        tracker = ChangeTracker.open(xmlPath(directory));
+        assertEquals(Collections.singletonList("age-"), prefixes(update(tracker, directory)));
+        tracker.record("IT.ADSL.AGE", Boolean.FALSE, "age-", Arrays.asList("IT.AGE", "IT.ADSL.AGE", "IT.ADSL.AGEGR1"));
+        assertTrue(tracker.isRecorded("IT.ADSL.AGE", Boolean.FALSE, "age-"));
+        assertTrue(update(tracker, directory).isEmpty());
+    }
+
+    @Test
+    public void ignoresAStateFileInAnotherFormat() throws IOException {
+        File directory = study();
+        File stateFile = new File(directory, ChangeTracker.FILE_NAME);
+        stateFile.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(stateFile))) {
+            out.writeInt(0x54514354);
+            out.writeInt(1);
+            out.writeInt(1);
+        }
+        assertEquals(0, ChangeTracker.open(xmlPath(directory)).getTraceCount());
+    }
+
+    /* a tracker that has seen the study and recorded a trace of each ADaM variable */
+    private static ChangeTracker recorded(File directory) throws IOException {
+        ChangeTracker tracker = ChangeTracker.open(xmlPath(directory));
+        assertTrue(update(tracker, directory).isEmpty());
+        tracker.record("IT.ADSL.AGE", Boolean.FALSE, "age-", Arrays.asList("IT.AGE", "IT.ADSL.AGE"));
+        tracker.record("IT.ADSL.SEX", Boolean.FALSE, "sex-", Arrays.asList("IT.SEX", "IT.ADSL.SEX"));
+        tracker.save();
+        return tracker;
+    }
+
+    private static List<ChangeTracker.Trace> update(ChangeTracker tracker, File directory) throws IOException {
+        return tracker.update(new File(directory, "graph.graphml"), null, OidIndex.open(xmlPath(directory)), 
+                Collections.singletonList(new File(directory, "trace.xql")));
+    }
+
+    private static List<String> prefixes(List<ChangeTracker.Trace> traces) {
+        List<String> prefixes = new ArrayList<>();
+        for (ChangeTracker.Trace trace : traces) {
+            prefixes.add(trace.getPrefix());
+        }
+        return prefixes;
+    }
+
+    private static File study() throws IOException {
+        File directory = TestConfig.directory();
+        write(directory, XmlFileList.FILE_NAME, "<files><file href=\"odm.xml\"/></files>");
+        write(directory, "odm.xml", ODM);
+        write(directory, "graph.graphml", GRAPH);
+        write(directory, "trace.xql", "declare variable $oid external; $oid");
+        return directory;
+    }
+
+    private static String xmlPath(File directory) {
+        return directory.getPath() + File.separator;
+    }
+
+    private static void write(File directory, String name, String content) throws IOException {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * FileFingerprintTest checks that a fingerprint tells a changed source file from a file that was
+ * only touched, and that it survives being saved as text.
+ * @version 0.1
+ */
+public class FileFingerprintTest {
+
+    @Test
+    public void matchesATouchedFileWithTheSameContent() throws IOException {
+        File file = write("define.xml", "<ODM/>");
+        FileFingerprint fingerprint = FileFingerprint.of(file);
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        assertTrue(fingerprint.matches(file));
+    }
+
+    @Test
+    public void detectsAChangeThatKeepsTheSize() throws IOException {
+        File file = write("define.xml", "<ODM a='1'/>");
+        FileFingerprint fingerprint = FileFingerprint.of(file);
+        Files.write(file.toPath(), "<ODM a='2'/>".getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(fingerprint.getModified() + 60000));
+        assertFalse(fingerprint.matches(file));
+        assertTrue(file.delete());
+        assertFalse(fingerprint.matches(file));
+    }
+
+    @Test
+    public void parsesItsOwnText() throws IOException {
+        FileFingerprint fingerprint = FileFingerprint.of(write("define.xml", "<ODM/>"));
+        FileFingerprint parsed = FileFingerprint.parse(fingerprint.toString());
+        assertEquals(fingerprint.getSize(), parsed.getSize());
+        assertEquals(fingerprint.getModified(), parsed.getModified());
+        assertEquals(fingerprint.getChecksum(), parsed.getChecksum());
+        assertNull(FileFingerprint.parse("12:x:3"));
+        assertNull(FileFingerprint.parse(null));
+    }
+
+    private static File write(String name, String content) throws IOException {
+        File file = new File(TestConfig.directory(), name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
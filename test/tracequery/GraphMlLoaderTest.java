@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * GraphMlLoaderTest checks that a GraphML file is read into a CsrGraph with its node ids, node
+ * namespace and the edges in both directions.
+ * @version 0.1
+ */
+public class GraphMlLoaderTest {
+    private static final String GRAPHML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\"><graph edgedefault=\"directed\">"
+            + "<node id=\"IG.DM\"/><node id=\"IT.DM.AGE\"/><node id=\"IT.ADSL.AGE\"/>"
+            + "<edge source=\"IG.DM\" target=\"IT.DM.AGE\"/><edge source=\"IT.DM.AGE\" target=\"IT.ADSL.AGE\"/>"
+            + "<edge source=\"IT.DM.AGE\" target=\"IT.ADSL.AGEGR1\"/></graph></graphml>";
+
+    @Test
+    public void readsTheNodesAndTheirNamespace() throws IOException {
+        CsrGraph graph = load(GRAPHML);
+        // a node only named by an edge is added as well
+        assertEquals(4, graph.nodeCount());
+        assertEquals(3, graph.edgeCount());
+        assertEquals("IT.ADSL.AGEGR1", graph.idOf(graph.indexOf("IT.ADSL.AGEGR1")));
+        assertEquals(-1, graph.indexOf("IT.DM.SEX"));
+        assertEquals("http://graphml.graphdrawing.org/xmlns", graph.getNodeNamespace());
+    }
+
+    @Test
+    public void keepsTheEdgesInBothDirections() throws IOException {
+        CsrGraph graph = load(GRAPHML);
+        int age = graph.indexOf("IT.DM.AGE");
+        assertEquals(Arrays.asList("IT.ADSL.AGE", "IT.ADSL.AGEGR1"), targets(graph, age));
+        assertEquals(Arrays.asList("IG.DM"), sources(graph, age));
+        assertEquals(Arrays.asList("IT.DM.AGE"), sources(graph, graph.indexOf("IT.ADSL.AGEGR1")));
+        assertEquals(0, targets(graph, graph.indexOf("IT.ADSL.AGE")).size());
+    }
+
+    private static CsrGraph load(String graphMl) throws IOException {
+        TestConfig.load("xml-path=/data");
+        File file = TestGraphs.graphFile();
+        Files.write(file.toPath(), graphMl.getBytes(StandardCharsets.UTF_8));
+        return GraphMlLoader.load(file);
+    }
+
+    private static List<String> targets(TraceGraph graph, int node) {
+        List<String> ids = new ArrayList<>();
+        for (int e = graph.outStart(node); e < graph.outEnd(node); e++) {
+            ids.add(graph.idOf(graph.outTarget(e)));
+        }
+        return ids;
+    }
+
+    private static List<String> sources(TraceGraph graph, int node) {
+        List<String> ids = new ArrayList<>();
+        for (int e = graph.inStart(node); e < graph.inEnd(node); e++) {
+            ids.add(graph.idOf(graph.inSource(e)));
+        }
+        return ids;
+    }
+}
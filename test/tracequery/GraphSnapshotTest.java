@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * GraphSnapshotTest checks that a snapshot maps the same graph as the GraphML it was compiled from,
+ * and that it is compiled again when the GraphML changes or the snapshot is in an older format.
+ * @version 0.1
+ */
+public class GraphSnapshotTest {
+    private static final String GRAPHML = "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\"><graph>"
+            + "<node id=\"IG.DM\"/><node id=\"IT.DM.AGE\"/><node id=\"IT.ADSL.AGE\"/>"
+            + "<edge source=\"IG.DM\" target=\"IT.DM.AGE\"/><edge source=\"IT.DM.AGE\" target=\"IT.ADSL.AGE\"/>";
+
+    @Test
+    public void mapsTheGraphItWasCompiledFrom() throws IOException {
+        File graphFile = write(GRAPHML + "</graph></graphml>");
+        CsrGraph graph = GraphMlLoader.load(graphFile);
+        GraphSnapshot snapshot = GraphSnapshot.open(graphFile);
+        assertTrue(new File(graphFile.getPath() + GraphSnapshot.SUFFIX).isFile());
+        assertEquals(graph.nodeCount(), snapshot.nodeCount());
+        assertEquals(graph.edgeCount(), snapshot.edgeCount());
+        assertEquals(graph.getNodeNamespace(), snapshot.getNodeNamespace());
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            assertEquals(node, snapshot.indexOf(graph.idOf(node)));
+            assertEquals(graph.idOf(node), snapshot.idOf(node));
+            assertEquals(graph.outEnd(node) - graph.outStart(node), snapshot.outEnd(node) - snapshot.outStart(node));
+            assertEquals(graph.adjacencyHash(node, true), snapshot.adjacencyHash(node, true));
+            assertEquals(graph.adjacencyHash(node, false), snapshot.adjacencyHash(node, false));
+        }
+        assertEquals(-1, snapshot.indexOf("IT.DM.SEX"));
+    }
+
+    @Test
+    public void compilesAgainWhenTheGraphChanges() throws IOException {
+        File graphFile = write(GRAPHML + "</graph></graphml>");
+        assertEquals(3, GraphSnapshot.open(graphFile).nodeCount());
+        Files.write(graphFile.toPath(), (GRAPHML + "<edge source=\"IT.DM.AGE\" target=\"IT.ADSL.AGEGR1\"/></graph></graphml>")
+                .getBytes(StandardCharsets.UTF_8));
+        GraphSnapshot snapshot = GraphSnapshot.open(graphFile);
+        assertEquals(4, snapshot.nodeCount());
+        assertEquals(3, snapshot.edgeCount());
+    }
+
+    @Test
+    public void compilesAgainFromAnOlderFormat() throws IOException {
+        File graphFile = write(GRAPHML + "</graph></graphml>");
+        GraphSnapshot.open(graphFile);
+        File snapshotFile = new File(graphFile.getPath() + GraphSnapshot.SUFFIX);
+        int version;
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+            file.seek(4);
+            version = file.readInt();
+            file.seek(4);
+            file.writeInt(version - 1);
+        }
+        assertEquals(3, GraphSnapshot.open(graphFile).nodeCount());
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "r")) {
+            file.seek(4);
+            assertEquals(version, file.readInt());
+        }
+    }
+
+    private static File write(String graphMl) throws IOException {
+        TestConfig.load("xml-path=/data");
+        File graphFile = TestGraphs.graphFile();
+        new File(graphFile.getPath() + GraphSnapshot.SUFFIX).deleteOnExit();
+        Files.write(graphFile.toPath(), graphMl.getBytes(StandardCharsets.UTF_8));
+        return graphFile;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * LineageIndexTest checks that a saved lineage index carries over the lineages an edge change does
+ * not touch and computes the others again.
+ * @version 0.1
+ */
+public class LineageIndexTest {
+    private static final String[] NODES = {"IT.A", "IT.B", "IT.C", "IT.D", "IT.E", "IT.X", "IT.Y", "IG.1"};
+    private static final String[][] EDGES = {{"IT.A", "IT.B"}, {"IT.B", "IT.C"}, {"IT.D", "IT.E"}, {"IT.X", "IT.Y"}, 
+        {"IG.1", "IT.A"}};
+
+    @Test
+    public void computesEveryVariableOnce() throws IOException {
+        File graphFile = TestGraphs.graphFile();
+        LineageIndex index = LineageIndex.open(graphFile, TestGraphs.graph(NODES, EDGES), "IT.");
+        assertEquals(7, index.getComputedCount());
+        assertEquals(7, index.getIndexedCount());
+        index = LineageIndex.open(graphFile, TestGraphs.graph(NODES, EDGES), "IT.");
+        assertEquals(0, index.getComputedCount());
+        assertEquals(7, index.getIndexedCount());
+    }
+
+    @Test
+    public void carriesOverLineagesAfterAnEdgeChange() throws IOException {
+        File graphFile = TestGraphs.graphFile();
+        LineageIndex.open(graphFile, TestGraphs.graph(NODES, EDGES), "IT.");
+        String[][] changed = new String[EDGES.length + 1][];
+        System.arraycopy(EDGES, 0, changed, 0, EDGES.length);
+        changed[EDGES.length] = new String[] {"IT.C", "IT.D"};
+        LineageIndex index = LineageIndex.open(graphFile, TestGraphs.graph(NODES, changed), "IT.");
+        // A, B and C gain downstream nodes and D and E gain upstream nodes, X and Y are carried over
+        assertEquals(5, index.getComputedCount());
+        assertEquals(list("IT.B", "IT.C", "IT.D", "IT.E"), downstream(index, "IT.A"));
+        assertEquals(list("IG.1", "IT.A", "IT.B", "IT.C", "IT.D"), upstream(index, "IT.E"));
+        assertEquals(list("IT.Y"), downstream(index, "IT.X"));
+        assertEquals(list("IT.X"), upstream(index, "IT.Y"));
+    }
+
+    @Test
+    public void carriesOverLineagesWhenNodesMove() throws IOException {
+        File graphFile = TestGraphs.graphFile();
+        LineageIndex.open(graphFile, TestGraphs.graph(NODES, EDGES), "IT.");
+        String[] reordered = {"IG.1", "IT.Y", "IT.X", "IT.E", "IT.D", "IT.C", "IT.B", "IT.A"};
+        LineageIndex index = LineageIndex.open(graphFile, TestGraphs.graph(reordered, EDGES), "IT.");
+        assertEquals(0, index.getComputedCount());
+        assertEquals(list("IT.B", "IT.C"), downstream(index, "IT.A"));
+        assertEquals(list("IG.1", "IT.A", "IT.B"), upstream(index, "IT.C"));
+    }
+
+    private static List<String> downstream(LineageIndex index, String id) {
+        return toIds(index, index.downstream(index.indexOf(id), new int[1]));
+    }
+
+    private static List<String> upstream(LineageIndex index, String id) {
+        return toIds(index, index.upstream(index.indexOf(id), new int[1]));
+    }
+
+    /* the lineage arrays hold the count first, then the sorted node indexes */
+    private static List<String> toIds(LineageIndex index, int[] lineage) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 1; i <= lineage[0]; i++) {
+            ids.add(index.idOf(lineage[i]));
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private static List<String> list(String... ids) {
+        List<String> list = new ArrayList<>();
+        for (String id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
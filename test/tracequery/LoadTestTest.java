@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * LoadTestTest checks that a workload is read with and without timestamps, that the open-loop test
+ * needs a rate or timestamps, and the nearest-rank percentiles of the report.
+ * @version 0.1
+ */
+public class LoadTestTest {
+
+    @Test
+    public void readsAWorkloadWithoutTimestamps() throws IOException {
+        List<LoadTest.Request> requests = LoadTest.readWorkload(workload("# OIDs to trace", "IT.AE.AESTDTC", "", "  IT.DM.AGE  "));
+        assertEquals(2, requests.size());
+        assertEquals("IT.AE.AESTDTC", requests.get(0).getOid());
+        assertEquals("IT.DM.AGE", requests.get(1).getOid());
+        assertEquals(-1, requests.get(0).getOffsetNanos());
+        assertEquals(-1, requests.get(1).getOffsetNanos());
+    }
+
+    @Test
+    public void readsTheOffsetsFromTheTimestamps() throws IOException {
+        List<LoadTest.Request> requests = LoadTest.readWorkload(workload("1700000000000,IT.AE.AESTDTC", 
+                "1700000000250\tIT.DM.AGE", "2023-11-14T22:13:21.500Z , IT.VS.VSORRES"));
+        assertEquals(3, requests.size());
+        assertEquals("IT.AE.AESTDTC", requests.get(0).getOid());
+        assertEquals(0, requests.get(0).getOffsetNanos());
+        assertEquals("IT.DM.AGE", requests.get(1).getOid());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), requests.get(1).getOffsetNanos());
+        assertEquals("IT.VS.VSORRES", requests.get(2).getOid());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), requests.get(2).getOffsetNanos());
+    }
+
+    @Test
+    public void rejectsABadTimestamp() throws IOException {
+        File file = workload("yesterday,IT.AE.AESTDTC");
+        try {
+            LoadTest.readWorkload(file);
+            fail("the timestamp yesterday was read");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void needsARateOrTimestampsForAnOpenLoop() {
+        LoadTest loadTest = new LoadTest(null, new StageMetrics(false), Boolean.FALSE, TraceLimits.NONE, Boolean.FALSE);
+        try {
+            loadTest.run(Collections.singletonList(new LoadTest.Request("IT.AE.AESTDTC", -1)), LoadTest.MODE_OPEN, 0, 0);
+            fail("an open loop without a rate or timestamps was run");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void takesTheNearestRankPercentile() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals(50, LoadTest.percentile(sorted, 0.50));
+        assertEquals(95, LoadTest.percentile(sorted, 0.95));
+        assertEquals(99, LoadTest.percentile(sorted, 0.99));
+        assertEquals(100, LoadTest.percentile(sorted, 1.0));
+        assertEquals(7, LoadTest.percentile(new long[] {7}, 0.99));
+        assertEquals(3, LoadTest.percentile(new long[] {3, 9}, 0.50));
+    }
+
+    private static File workload(String... lines) throws IOException {
+        File file = File.createTempFile("workload", ".txt");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+}
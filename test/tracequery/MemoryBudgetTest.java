@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * MemoryBudgetTest checks the heap budget read from the configuration, that it is capped at the
+ * maximum heap, and that a trace over the budget waits for a running trace but never for none.
+ * @version 0.1
+ */
+public class MemoryBudgetTest {
+    private static final long MB = 1L << 20;
+
+    @Test
+    public void readsTheBudgetFromTheConfiguration() throws IOException {
+        TestConfig.load("heap-budget-mb= 256 ");
+        assertEquals(256, ConfigReader.getHeapBudgetMb());
+        TestConfig.load("heap-budget-mb=");
+        assertEquals(0, ConfigReader.getHeapBudgetMb());
+        TestConfig.load();
+        assertEquals(0, ConfigReader.getHeapBudgetMb());
+    }
+
+    @Test
+    public void capsTheBudgetAtTheMaximumHeap() {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        assertEquals(maxHeap, new MemoryBudget(0).getBudgetBytes());
+        assertEquals(maxHeap, new MemoryBudget(maxHeap + MB).getBudgetBytes());
+        assertEquals(MB, new MemoryBudget(MB).getBudgetBytes());
+    }
+
+    @Test
+    public void waitsOverTheBudgetOnlyWhileATraceRuns() throws InterruptedException {
+        // no live heap is within one byte, so every trace after the first waits
+        final MemoryBudget budget = new MemoryBudget(1);
+        budget.acquire();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try {
+                budget.acquire();
+                started.countDown();
+                budget.release();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        assertFalse(started.await(300, TimeUnit.MILLISECONDS));
+        budget.release();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        waiting.join();
+        assertTrue(budget.getReport(), budget.getReport().endsWith(", 1 traces waited for the heap"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * NodeRecordsTest checks that the low-memory mode keeps the data of the GraphML nodes and writes the
+ * records of the traced nodes back as GraphML with the node key declarations of the graph.
+ * @version 0.1
+ */
+public class NodeRecordsTest {
+    private static final String GRAPH = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">"
+            + "<key id=\"d0\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>"
+            + "<key id=\"d1\" for=\"edge\" attr.name=\"weight\" attr.type=\"double\"/>"
+            + "<graph edgedefault=\"directed\">"
+            + "<node id=\"IT.DM.AGE\"><data key=\"d0\">Age &lt;years&gt;</data></node>"
+            + "<node id=\"IT.ADSL.AGE\"><data key=\"d0\">Age</data><data key=\"d2\">ADSL</data></node>"
+            + "<node id=\"IT.ADSL.AGEGR1\"/>"
+            + "<edge source=\"IT.DM.AGE\" target=\"IT.ADSL.AGE\"><data key=\"d1\">1.0</data></edge>"
+            + "</graph></graphml>";
+
+    @After
+    public void resetConfig() throws IOException {
+        TestConfig.load();
+    }
+
+    @Test
+    public void writesTheRecordsOfTheTracedNodes() throws IOException {
+        TestConfig.load("low-memory=true");
+        TraceGraph graph = GraphMlLoader.load(graphFile());
+        String xml = graph.getNodeRecords().toGraphMl(graph, Arrays.asList("IT.ADSL.AGE", "IT.DM.AGE", "IT.AE.AETERM"));
+        assertEquals("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">"
+                + "<key id=\"d0\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>"
+                + "<graph edgedefault=\"directed\">"
+                + "<node id=\"IT.ADSL.AGE\"><data key=\"d0\">Age</data><data key=\"d2\">ADSL</data></node>"
+                + "<node id=\"IT.DM.AGE\"><data key=\"d0\">Age &lt;years&gt;</data></node>"
+                + "</graph></graphml>", xml);
+    }
+
+    @Test
+    public void writesANodeWithoutData() throws IOException {
+        TestConfig.load("low-memory=true");
+        TraceGraph graph = GraphMlLoader.load(graphFile());
+        String xml = graph.getNodeRecords().toGraphMl(graph, Collections.singletonList("IT.ADSL.AGEGR1"));
+        assertEquals("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">"
+                + "<key id=\"d0\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>"
+                + "<graph edgedefault=\"directed\"><node id=\"IT.ADSL.AGEGR1\"></node></graph></graphml>", xml);
+    }
+
+    @Test
+    public void keepsNoRecordsOutsideTheLowMemoryMode() throws IOException {
+        TestConfig.load();
+        assertNull(GraphMlLoader.load(graphFile()).getNodeRecords());
+    }
+
+    private static File graphFile() throws IOException {
+        File file = TestGraphs.graphFile();
+        Files.write(file.toPath(), GRAPH.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
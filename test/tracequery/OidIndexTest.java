@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * OidIndexTest checks which elements the L1 subsets keep: the traced definitions, the definitions
+ * they reference, their containers and the children of MetaDataVersion without an OID, and that a
+ * file is decoded with its declared encoding or read whole when the encoding cannot be indexed.
+ * @version 0.1
+ */
+public class OidIndexTest {
+    private static final String ODM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\"><Study OID=\"S.1\"><MetaDataVersion OID=\"MDV.1\" Name=\"m\">\n"
+            + "<Protocol><StudyEventRef StudyEventOID=\"SE.1\" Mandatory=\"Yes\"/></Protocol>\n"
+            + "<FormDef OID=\"F.DM\" Name=\"DM\"><ItemGroupRef ItemGroupOID=\"IG.DM\" Mandatory=\"Yes\"/></FormDef>\n"
+            + "<ItemGroupDef OID=\"IG.DM\" Name=\"DM\"><ItemRef ItemOID=\"IT.AGE\" Mandatory=\"Yes\"/>"
+            + "<ItemRef ItemOID=\"IT.SEX\" Mandatory=\"Yes\" MethodOID=\"MT.SEX\"/></ItemGroupDef>\n"
+            + "<ItemDef OID=\"IT.AGE\" Name=\"AGE\" DataType=\"integer\"/>\n"
+            + "<ItemDef OID=\"IT.SEX\" Name=\"SEX\" DataType=\"text\"><CodeListRef CodeListOID=\"CL.SEX\"/></ItemDef>\n"
+            + "<CodeList OID=\"CL.SEX\" Name=\"Sex\" DataType=\"text\"><CodeListItem CodedValue=\"F\"/></CodeList>\n"
+            + "<MethodDef OID=\"MT.SEX\" Name=\"Sex\" Type=\"Computation\"/>\n"
+            + "</MetaDataVersion></Study></ODM>\n";
+    private static final String DEFINE = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+            + "<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\" xmlns:def=\"http://www.cdisc.org/ns/def/v2.0\" "
+            + "xmlns:xlink=\"http://www.w3.org/1999/xlink\"><Study OID=\"S.1\"><MetaDataVersion OID=\"MDV.2\" Name=\"d\">\n"
+            + "<ItemDef OID=\"IT.DM.AGE\" Name=\"AGE\" DataType=\"integer\"><Description>"
+            + "<TranslatedText>\u00c2ge \u00e0 l'inclusion</TranslatedText></Description></ItemDef>\n"
+            + "<def:leaf ID=\"LF.ACRF\" xlink:href=\"acrf.pdf\"><def:title>CRF</def:title></def:leaf>\n"
+            + "<ItemDef OID=\"IT.DM.SEX\" Name=\"SEX\" DataType=\"text\"/>\n"
+            + "</MetaDataVersion></Study></ODM>\n";
+    private static final String ADAM = "<?xml version=\"1.0\" encoding=\"UTF-16\"?>\n"
+            + "<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\"><Study OID=\"S.1\"><MetaDataVersion OID=\"MDV.3\" Name=\"a\">\n"
+            + "<ItemDef OID=\"IT.ADSL.AGE\" Name=\"AGE\" DataType=\"integer\"/>\n"
+            + "</MetaDataVersion></Study></ODM>\n";
+
+    @Test
+    public void keepsTheTracedDefinitionsTheirReferencesAndContainers() throws IOException {
+        OidIndex index = OidIndex.open(xmlPath());
+        String odm = index.readSubset(Collections.singletonList("IT.SEX")).get(0);
+        assertTrue(odm, odm.contains("<ItemDef OID=\"IT.SEX\""));
+        // named by the CodeListRef of the traced ItemDef
+        assertTrue(odm, odm.contains("<CodeList OID=\"CL.SEX\""));
+        // holds the ItemRef of the traced ItemDef, its own references are not followed
+        assertTrue(odm, odm.contains("<ItemGroupDef OID=\"IG.DM\""));
+        assertFalse(odm, odm.contains("<MethodDef OID=\"MT.SEX\""));
+        assertFalse(odm, odm.contains("<ItemDef OID=\"IT.AGE\""));
+        assertFalse(odm, odm.contains("<FormDef OID=\"F.DM\""));
+        assertEquals(new HashSet<>(Arrays.asList("IT.SEX", "CL.SEX", "IG.DM")),
+                index.getDefinitionOids(Collections.singletonList("IT.SEX")));
+    }
+
+    @Test
+    public void keepsTheChildrenOfMetaDataVersionWithoutAnOid() throws IOException {
+        OidIndex index = OidIndex.open(xmlPath());
+        List<String> subsets = index.readSubset(Collections.singletonList("IT.DM.SEX"));
+        assertTrue(subsets.get(0), subsets.get(0).contains("<Protocol><StudyEventRef StudyEventOID=\"SE.1\""));
+        assertTrue(subsets.get(1), subsets.get(1).contains("<def:leaf ID=\"LF.ACRF\""));
+        assertFalse(subsets.get(1), subsets.get(1).contains("IT.DM.AGE"));
+        for (String subset : subsets) {
+            assertWellFormed(subset);
+        }
+    }
+
+    @Test
+    public void keepsTheChildrenWithoutAnOidWhenTheIndexIsReopened() throws IOException {
+        String xmlPath = xmlPath();
+        OidIndex.open(xmlPath);
+        OidIndex index = OidIndex.open(xmlPath);
+        assertEquals(0, index.getScannedCount());
+        String define = index.readSubset(Collections.singletonList("IT.DM.SEX")).get(1);
+        assertTrue(define, define.contains("<def:leaf ID=\"LF.ACRF\""));
+    }
+
+    @Test
+    public void decodesTheDeclaredEncoding() throws IOException {
+        OidIndex index = OidIndex.open(xmlPath());
+        String define = index.readSubset(Collections.singletonList("IT.DM.AGE")).get(1);
+        assertTrue(define, define.contains("\u00c2ge \u00e0 l'inclusion"));
+        OidIndex.Entry entry = index.lookup("IT.DM.AGE").get(0);
+        assertTrue(index.readFragment(entry).endsWith("\u00c2ge \u00e0 l'inclusion</TranslatedText></Description></ItemDef>"));
+        assertWellFormed(define);
+    }
+
+    @Test
+    public void readsAFileInAnEncodingThatIsNotIndexedWhole() throws IOException {
+        String xmlPath = xmlPath();
+        OidIndex index = OidIndex.open(xmlPath);
+        assertEquals(0, index.lookup("IT.ADSL.AGE").size());
+        List<String> subsets = index.readSubset(Collections.singletonList("IT.SEX"));
+        assertEquals(3, subsets.size());
+        assertTrue(subsets.get(2), subsets.get(2).contains("<ItemDef OID=\"IT.ADSL.AGE\""));
+        // the subset file list names the original file in place of a copy
+        List<File> written = index.writeSubset(Collections.singletonList("IT.SEX"), "test-");
+        for (File file : written) {
+            file.deleteOnExit();
+        }
+        assertEquals(3, written.size());
+        String list = new String(Files.readAllBytes(written.get(0).toPath()), StandardCharsets.UTF_8);
+        assertTrue(list, list.contains("adam.xml"));
+        assertFalse(list, list.contains("test-adam.xml"));
+    }
+
+    @Test
+    public void readsTheEncodingFromTheDeclarationOrByteOrderMark() throws IOException {
+        assertEquals("ISO-8859-1", OidIndex.readEncoding(write(DEFINE, StandardCharsets.ISO_8859_1)));
+        assertEquals("UTF-16", OidIndex.readEncoding(write(ADAM, StandardCharsets.UTF_16)));
+        assertEquals("UTF-8", OidIndex.readEncoding(write("<ODM/>", StandardCharsets.UTF_8)));
+        assertTrue(OidIndex.isAsciiCompatible("windows-1252"));
+        assertFalse(OidIndex.isAsciiCompatible("UTF-16"));
+        assertFalse(OidIndex.isAsciiCompatible("no-such-encoding"));
+    }
+
+    private static String xmlPath() throws IOException {
+        File directory = TestConfig.directory();
+        String xmlPath = directory.getPath() + File.separator;
+        write(directory, XmlFileList.FILE_NAME, "<files><file href=\"odm.xml\"/><file href=\"define.xml\"/>"
+                + "<file href=\"adam.xml\"/></files>", StandardCharsets.UTF_8);
+        write(directory, "odm.xml", ODM, StandardCharsets.UTF_8);
+        write(directory, "define.xml", DEFINE, StandardCharsets.ISO_8859_1);
+        write(directory, "adam.xml", ADAM, StandardCharsets.UTF_16);
+        new File(xmlPath + OidIndex.FILE_NAME).deleteOnExit();
+        new File(xmlPath + OidIndex.SUBSET_DIR).deleteOnExit();
+        return xmlPath;
+    }
+
+    private static File write(String xml, Charset charset) throws IOException {
+        return write(TestConfig.directory(), "file.xml", xml, charset);
+    }
+
+    private static File write(File directory, String name, String xml, Charset charset) throws IOException {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes(charset));
+        return file;
+    }
+
+    private static void assertWellFormed(String xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // parsed from the decoded text, as parse-xml reads the subsets bound to $l1-docs
+            factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new AssertionError(ex.getMessage() + "\n" + xml);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * ParallelTraceTest checks that the output prefixes of the OIDs in a batch are file names that do not
+ * collide, even on a file system that ignores case.
+ * @version 0.1
+ */
+public class ParallelTraceTest {
+
+    @Test
+    public void prefixesAreStableFileNames() {
+        String prefix = ParallelTrace.getOutputPrefix("IT.DM.AGE");
+        assertEquals(prefix, ParallelTrace.getOutputPrefix("IT.DM.AGE"));
+        assertTrue(prefix, prefix.startsWith("IT.DM.AGE-"));
+        assertTrue(prefix, ParallelTrace.getOutputPrefix("IT/DM:AGE").matches("[A-Za-z0-9._-]+"));
+    }
+
+    @Test
+    public void oidsThatDifferOnlyInCaseGetDifferentPrefixes() {
+        assertNotEquals(ParallelTrace.getOutputPrefix("IT.DM.Age").toLowerCase(), 
+                ParallelTrace.getOutputPrefix("IT.DM.AGE").toLowerCase());
+    }
+
+    @Test
+    public void oidsThatDifferOnlyInReplacedCharactersGetDifferentPrefixes() {
+        assertNotEquals(ParallelTrace.getOutputPrefix("IT/DM"), ParallelTrace.getOutputPrefix("IT:DM"));
+        assertNotEquals(ParallelTrace.getOutputPrefix("IT/DM"), ParallelTrace.getOutputPrefix("IT_DM"));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * QueryCacheTest checks that queries and stylesheets are read once while their files are unchanged
+ * and read again when a file is modified.
+ * @version 0.1
+ */
+public class QueryCacheTest {
+    private static final String XSL = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:template match=\"/\"><trace/></xsl:template></xsl:stylesheet>";
+
+    @Test
+    public void keepsAQueryUntilItsFileChanges() throws IOException {
+        File file = write("trace-node.xql", "(: trace :)\ndeclare variable $oid external; $oid");
+        String query = QueryCache.getQuery(file.getPath());
+        assertEquals("(: trace :)\ndeclare variable $oid external; $oid", query);
+        assertSame(query, QueryCache.getQuery(file.getPath()));
+        Files.write(file.toPath(), "declare variable $oid external; ($oid)".getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(file.lastModified() + 60000));
+        assertEquals("declare variable $oid external; ($oid)", QueryCache.getQuery(file.getPath()));
+    }
+
+    @Test
+    public void reportsAMissingQuery() throws IOException {
+        try {
+            QueryCache.getQuery(new File(TestConfig.directory(), "missing.xql").getPath());
+            fail("a missing query was read");
+        } catch (NoSuchFileException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void compilesAStylesheetOnce() throws IOException, TransformerConfigurationException {
+        File file = write("trace.xsl", XSL);
+        Templates templates = QueryCache.getTemplates(file.getPath());
+        assertSame(templates, QueryCache.getTemplates(file.getPath()));
+        assertTrue(file.setLastModified(file.lastModified() + 60000));
+        assertNotSame(templates, QueryCache.getTemplates(file.getPath()));
+    }
+
+    private static File write(String name, String content) throws IOException {
+        File file = new File(TestConfig.directory(), name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
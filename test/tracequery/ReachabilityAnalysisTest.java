@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * ReachabilityAnalysisTest checks that the variables no collection variable reaches and the
+ * variables that reach no analysis variable are reported with their layer and reason, on a small
+ * graph and on one wide enough to split each level across the fork-join pool.
+ * @version 0.1
+ */
+public class ReachabilityAnalysisTest {
+
+    @Test
+    public void reportsEachUnreachableVariableWithItsReason() throws IOException {
+        String[][] edges = {{"IT.C1", "IT.T1"}, {"IT.C2", "IT.T3"}, {"IT.T1", "IT.A1"}, {"IT.T2", "IT.A2"}};
+        ReachabilityAnalysis analysis = analysis(edges, Arrays.asList("IT.C1", "IT.C2", "IT.C3"),
+                Arrays.asList("IT.T1", "IT.T2", "IT.T3"), Arrays.asList("IT.A1", "IT.A2"));
+        List<String> reported = new ArrayList<>();
+        for (ReachabilityAnalysis.Variable variable : analysis.run()) {
+            reported.add(variable.getOid() + " " + variable.getLayer() + " " + variable.getReason());
+        }
+        assertEquals(Arrays.asList("IT.C2 data-collection not-analyzed", "IT.C3 data-collection not-in-graph",
+                "IT.T2 data-tabulation no-source", "IT.T3 data-tabulation not-analyzed",
+                "IT.A2 data-analysis no-source"), reported);
+        assertEquals(8, analysis.getVariableCount());
+    }
+
+    @Test
+    public void searchesWideLevelsInParallel() throws IOException {
+        int width = 5000;
+        List<String> collection = new ArrayList<>();
+        List<String> tabulation = new ArrayList<>();
+        List<String> analyzed = new ArrayList<>();
+        List<String[]> edges = new ArrayList<>();
+        for (int i = 0; i < width; i++) {
+            collection.add("IT.C" + i);
+            tabulation.add("IT.T" + i);
+            analyzed.add("IT.A" + i);
+            edges.add(new String[] {"IT.C" + i, "IT.T" + i});
+            // every seventh tabulation variable is not used in the analysis, its analysis variable only has a target
+            edges.add(i % 7 == 0 ? new String[] {"IT.A" + i, "IT.X" + i} : new String[] {"IT.T" + i, "IT.A" + i});
+        }
+        ReachabilityAnalysis analysis = analysis(edges.toArray(new String[edges.size()][]), collection, tabulation, analyzed);
+        int notAnalyzed = 0;
+        int noSource = 0;
+        for (ReachabilityAnalysis.Variable variable : analysis.run()) {
+            if (variable.getReason().equals(ReachabilityAnalysis.NOT_ANALYZED)) notAnalyzed++;
+            if (variable.getReason().equals(ReachabilityAnalysis.NO_SOURCE)) noSource++;
+        }
+        int skipped = (width + 6) / 7;
+        // the collection and the tabulation variable of each skipped chain, and its analysis variable has no source
+        assertEquals(2 * skipped, notAnalyzed);
+        assertEquals(skipped, noSource);
+    }
+
+    @Test
+    public void writesTheReportAsXmlAndText() throws IOException {
+        String[][] edges = {{"IT.C1", "IT.T1"}, {"IT.T1", "IT.A1"}};
+        ReachabilityAnalysis analysis = analysis(edges, Arrays.asList("IT.C1"), Arrays.asList("IT.T1", "IT.T2"),
+                Arrays.asList("IT.A1"));
+        analysis.run();
+        File xmlFile = File.createTempFile("unreachable", ".xml");
+        File textFile = File.createTempFile("unreachable", ".txt");
+        xmlFile.deleteOnExit();
+        textFile.deleteOnExit();
+        analysis.writeXml(xmlFile);
+        analysis.writeText(textFile);
+        String xml = new String(Files.readAllBytes(xmlFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(xml, xml.contains("variables=\"4\" count=\"1\""));
+        assertTrue(xml, xml.contains("<layer name=\"data-tabulation\" file=\"tabulation.xml\" variables=\"2\">"
+                + "<variable oid=\"IT.T2\" reason=\"not-in-graph\"/></layer>"));
+        assertEquals(Arrays.asList("IT.T2\tdata-tabulation\tnot-in-graph"), Files.readAllLines(textFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void needsTheCollectionAndAnalysisLayers() throws IOException {
+        ReachabilityAnalysis analysis = analysis(new String[0][], Arrays.asList("IT.C1"), Arrays.asList("IT.T1"),
+                Arrays.asList("IT.A1"));
+        try {
+            new ReachabilityAnalysis(TestGraphs.graph(new String[0], new String[0][])).run();
+            fail("the analysis ran without layers");
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(ReachabilityAnalysis.COLLECTION_LAYER));
+        }
+        try {
+            analysis.addLayer(ReachabilityAnalysis.ANALYSIS_LAYER, "missing.xml", OidIndex.open(ConfigReader.getXmlPath()));
+            fail("a file without ItemDefs was added as a layer");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("missing.xml"));
+        }
+    }
+
+    /* writes the three L1 files and the graph of the edges, then adds the layers */
+    private static ReachabilityAnalysis analysis(String[][] edges, List<String> collection, List<String> tabulation,
+            List<String> analyzed) throws IOException {
+        File directory = TestConfig.directory();
+        String xmlPath = directory.getPath() + File.separator;
+        TestConfig.load("xml-path=" + xmlPath);
+        write(directory, XmlFileList.FILE_NAME, "<files><file href=\"collection.xml\"/><file href=\"tabulation.xml\"/>"
+                + "<file href=\"analysis.xml\"/></files>");
+        write(directory, "collection.xml", define(collection));
+        write(directory, "tabulation.xml", define(tabulation));
+        write(directory, "analysis.xml", define(analyzed));
+        new File(xmlPath + OidIndex.FILE_NAME).deleteOnExit();
+        List<String> nodeIds = new ArrayList<>();
+        for (String[] edge : edges) {
+            for (String id : edge) {
+                if (!nodeIds.contains(id)) nodeIds.add(id);
+            }
+        }
+        ReachabilityAnalysis analysis = new ReachabilityAnalysis(TestGraphs.graph(nodeIds.toArray(new String[nodeIds.size()]), edges));
+        OidIndex oidIndex = OidIndex.open(xmlPath);
+        analysis.addLayer(ReachabilityAnalysis.COLLECTION_LAYER, "collection.xml", oidIndex);
+        analysis.addLayer(ReachabilityAnalysis.TABULATION_LAYER, "tabulation.xml", oidIndex);
+        analysis.addLayer(ReachabilityAnalysis.ANALYSIS_LAYER, "analysis.xml", oidIndex);
+        return analysis;
+    }
+
+    private static String define(List<String> oids) {
+        StringBuilder xml = new StringBuilder("<ODM><Study OID=\"S.1\"><MetaDataVersion OID=\"MDV.1\">");
+        for (String oid : oids) {
+            xml.append("<ItemDef OID=\"").append(oid).append("\" DataType=\"text\"/>");
+        }
+        return xml.append("</MetaDataVersion></Study></ODM>").toString();
+    }
+
+    private static void write(File directory, String name, String xml) throws IOException {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
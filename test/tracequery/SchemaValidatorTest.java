@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * SchemaValidatorTest checks that the L1 files are validated against their schema, that the files
+ * found valid are skipped until they or a schema file they were validated with change, and that
+ * the files that are not valid are named and validated again on the next run.
+ * @version 0.1
+ */
+public class SchemaValidatorTest {
+    private static final String LIST = "<files><file href=\"ae.xml\"/><file href=\"dm.xml\"/></files>";
+    private static final String SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+            + "<xs:include schemaLocation=\"item.xsd\"/>"
+            + "<xs:element name=\"ODM\"><xs:complexType><xs:sequence>"
+            + "<xs:element ref=\"ItemDef\" maxOccurs=\"unbounded\"/>"
+            + "</xs:sequence></xs:complexType></xs:element></xs:schema>";
+    private static final String ITEM_SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+            + "<xs:element name=\"ItemDef\"><xs:complexType>"
+            + "<xs:attribute name=\"OID\" type=\"xs:string\" use=\"required\"/>"
+            + "</xs:complexType></xs:element></xs:schema>";
+
+    @Test
+    public void skipsTheFilesFoundValidUntilTheyChange() throws IOException {
+        File directory = study("<ODM><ItemDef OID=\"IT.AE.AETERM\"/></ODM>");
+        SchemaValidator validator = validator(directory);
+        assertTrue(validator.validate(2).isEmpty());
+        assertEquals(2, validator.getValidatedCount());
+        assertEquals(0, validator.getSkippedCount());
+        validator = validator(directory);
+        assertTrue(validator.validate(2).isEmpty());
+        assertEquals(0, validator.getValidatedCount());
+        assertEquals(2, validator.getSkippedCount());
+        write(directory, "dm.xml", "<ODM><ItemDef OID=\"IT.DM.AGE\"/><ItemDef OID=\"IT.DM.SEX\"/></ODM>");
+        validator = validator(directory);
+        assertTrue(validator.validate(2).isEmpty());
+        assertEquals(1, validator.getValidatedCount());
+        assertEquals(1, validator.getSkippedCount());
+    }
+
+    @Test
+    public void validatesAgainWhenAnIncludedSchemaChanges() throws IOException {
+        File directory = study("<ODM><ItemDef OID=\"IT.AE.AETERM\"/></ODM>");
+        assertTrue(validator(directory).validate(2).isEmpty());
+        write(directory, "item.xsd", ITEM_SCHEMA.replace("use=\"required\"", "use=\"optional\""));
+        SchemaValidator validator = validator(directory);
+        assertTrue(validator.validate(2).isEmpty());
+        assertEquals(2, validator.getValidatedCount());
+        assertEquals(0, validator.getSkippedCount());
+    }
+
+    @Test
+    public void namesTheFilesThatAreNotValid() throws IOException {
+        File directory = study("<ODM><ItemDef/></ODM>");
+        SchemaValidator validator = validator(directory);
+        List<String> errors = validator.validate(2);
+        assertFalse(errors.isEmpty());
+        assertTrue(errors.get(0), errors.get(0).startsWith("dm.xml line 1: "));
+        assertEquals(Collections.singletonList("dm.xml"), validator.getInvalidReferences());
+        assertEquals(1, validator.getValidatedCount());
+        // a file that is not valid is not recorded, so it is validated again
+        validator = validator(directory);
+        assertFalse(validator.validate(2).isEmpty());
+        assertEquals(1, validator.getSkippedCount());
+        assertEquals(Collections.singletonList("dm.xml"), validator.getInvalidReferences());
+    }
+
+    private static SchemaValidator validator(File directory) throws IOException {
+        String xmlPath = directory.getPath() + File.separator;
+        return new SchemaValidator(xmlPath, SchemaValidator.getSchemaFile(xmlPath, "odm.xsd"), null);
+    }
+
+    /* a study with a valid ae.xml, the given dm.xml and the ODM schema split over two files */
+    private static File study(String dm) throws IOException {
+        File directory = TestConfig.directory();
+        write(directory, XmlFileList.FILE_NAME, LIST);
+        write(directory, "odm.xsd", SCHEMA);
+        write(directory, "item.xsd", ITEM_SCHEMA);
+        write(directory, "ae.xml", "<ODM><ItemDef OID=\"IT.AE.AESTDTC\"/></ODM>");
+        write(directory, "dm.xml", dm);
+        return directory;
+    }
+
+    private static void write(File directory, String name, String content) throws IOException {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
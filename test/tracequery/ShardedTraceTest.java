@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ShardedTraceTest checks that a trace walks on into the shards that share a reached OID, in the
+ * direction it was reached, that a walk is reset for the next trace, and the configuration of the
+ * shards. The node details of the shards are looked up by XQuery and are not covered here.
+ * @version 0.1
+ */
+public class ShardedTraceTest {
+    private List<ShardedTrace.Shard> shards;
+    private ShardedTrace sharded;
+    private List<ShardedTrace.ShardWalk> walk;
+
+    @Before
+    public void openShards() {
+        // each study derives the pooled AGE, which the ISS derives its own AGE from
+        shards = Arrays.asList(shard("S1", new String[][] {{"IT.S1.AGE", "IT.POOL.AGE"}}), 
+                shard("S2", new String[][] {{"IT.S2.AGE", "IT.POOL.AGE"}, {"IT.POOL.AGE", "IT.ISS.AGE"}}));
+        sharded = new ShardedTrace(null, shards, Boolean.FALSE, new StageMetrics(false), 2);
+        walk = new ArrayList<>();
+        for (ShardedTrace.Shard shard : shards) {
+            walk.add(new ShardedTrace.ShardWalk(shard, null));
+        }
+    }
+
+    @After
+    public void closeShards() {
+        sharded.close();
+    }
+
+    @Test
+    public void walksDownstreamIntoTheShardsThatShareAReachedOid() throws TraceException {
+        List<ShardedTrace.ShardWalk> traced = sharded.walkShards("IT.S1.AGE", walk);
+        assertEquals(2, traced.size());
+        assertEquals(Arrays.asList("IT.S1.AGE", "IT.POOL.AGE"), new ArrayList<>(walk.get(0).getNodeIds()));
+        // the other study is upstream of the pooled AGE, which was only reached downstream
+        assertEquals(Arrays.asList("IT.POOL.AGE", "IT.ISS.AGE"), new ArrayList<>(walk.get(1).getNodeIds()));
+    }
+
+    @Test
+    public void walksUpstreamIntoTheShardsThatShareAReachedOid() throws TraceException {
+        sharded.walkShards("IT.S1.AGE", walk);
+        List<ShardedTrace.ShardWalk> traced = sharded.walkShards("IT.ISS.AGE", walk);
+        assertEquals(2, traced.size());
+        assertEquals(Arrays.asList("IT.POOL.AGE", "IT.S1.AGE"), new ArrayList<>(walk.get(0).getNodeIds()));
+        assertEquals(Arrays.asList("IT.ISS.AGE", "IT.POOL.AGE", "IT.S2.AGE"), new ArrayList<>(walk.get(1).getNodeIds()));
+    }
+
+    @Test
+    public void findsNoShardForAnUnknownOid() throws TraceException {
+        sharded.walkShards("IT.S1.AGE", walk);
+        assertTrue(sharded.walkShards("IT.AE.AETERM", walk).isEmpty());
+        assertTrue(walk.get(0).getNodeIds().isEmpty());
+    }
+
+    @Test
+    public void listsEachSharedVariableOnce() {
+        assertEquals(Arrays.asList("IT.S1.AGE", "IT.POOL.AGE", "IT.S2.AGE", "IT.ISS.AGE"), sharded.getVariableOids("IT."));
+    }
+
+    @Test
+    public void readsTheShardsFromTheConfiguration() throws IOException {
+        TestConfig.load("shards=S1, S2,", "S1.xml-path=/studies/s1", "S1.L3-graph=s1.graphml", "S2.xml-path=/studies/s2/");
+        assertEquals(Arrays.asList("S1", "S2"), ConfigReader.getShards());
+        assertEquals("/studies/s1" + File.separator, ConfigReader.getShardXmlPath("S1"));
+        assertEquals("s1.graphml", ConfigReader.getShardL3Graph("S1"));
+        assertEquals("", ConfigReader.getShardL3Graph("S2"));
+    }
+
+    /* a shard with the nodes in the order they are first named by the edges */
+    private static ShardedTrace.Shard shard(String name, String[][] edges) {
+        List<String> nodeIds = new ArrayList<>();
+        for (String[] edge : edges) {
+            for (String id : edge) {
+                if (!nodeIds.contains(id)) nodeIds.add(id);
+            }
+        }
+        return new ShardedTrace.Shard(name, TestGraphs.graph(nodeIds.toArray(new String[nodeIds.size()]), edges), null, "", "", null);
+    }
+}
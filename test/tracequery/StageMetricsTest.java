@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * StageMetricsTest checks that stage records are kept only when enabled and that the JSON report
+ * carries the measurements of each stage.
+ * @version 0.1
+ */
+public class StageMetricsTest {
+
+    @Test
+    public void keepsRecordsOnlyWhenEnabled() {
+        StageMetrics disabled = new StageMetrics(false);
+        disabled.finish(disabled.start("IT.A", "trace-node.xql"));
+        assertEquals(0, disabled.getRecords().size());
+        StageMetrics enabled = new StageMetrics(true);
+        enabled.finish(enabled.start("IT.A", "trace-node.xql"));
+        enabled.finish(enabled.start("IT.A", "trace-node-oid.xql"));
+        assertEquals(2, enabled.getRecords().size());
+        assertEquals("trace-node-oid.xql", enabled.getRecords().get(1).getStage());
+    }
+
+    @Test
+    public void addsTheSerializationOfALaterWrite() {
+        StageMetrics metrics = new StageMetrics(true);
+        StageMetrics.Record record = metrics.start("IT.A", "trace-node.xql");
+        record.parseNanos = 1000;
+        record.evaluateNanos = 2000;
+        metrics.finish(record);
+        record.addSerialize(500, 64);
+        record.addSerialize(500, 36);
+        assertEquals(4000, record.getTotalNanos());
+        assertEquals(100, record.bytesWritten);
+    }
+
+    @Test
+    public void writesEachStageToTheJsonReport() throws IOException {
+        StageMetrics metrics = new StageMetrics(true);
+        StageMetrics.Record record = metrics.start("IT.\"A\"", "trace-node.xql");
+        record.evaluateNanos = 1500000;
+        record.items = 12;
+        metrics.finish(record);
+        File report = new File(TestConfig.directory(), "metrics.json");
+        report.deleteOnExit();
+        metrics.writeJson(report);
+        String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json, json.contains("\"oid\": \"IT.\\\"A\\\"\", \"stage\": \"trace-node.xql\""));
+        assertTrue(json, json.contains("\"evaluateMs\": 1.500"));
+        assertTrue(json, json.contains("\"items\": 12"));
+    }
+
+    @Test
+    public void countsTheBytesWritten() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CountingOutputStream out = new CountingOutputStream(bytes);
+        out.write('<');
+        out.write("trace/>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(8, out.getCount());
+        assertEquals("<trace/>", bytes.toString("UTF-8"));
+    }
+}
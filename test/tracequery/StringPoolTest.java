@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * StringPoolTest checks that each string is interned once under a dense handle, that it is decoded
+ * unchanged, and that the pool grows past its expected size and past the size of a chunk.
+ * @version 0.1
+ */
+public class StringPoolTest {
+
+    @Test
+    public void internsEachStringOnce() {
+        StringPool pool = new StringPool(4);
+        assertEquals(0, pool.add("IT.DM.AGE"));
+        assertEquals(1, pool.add("IT.ADSL.AGE"));
+        assertEquals(0, pool.add("IT.DM.AGE"));
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.indexOf("IT.ADSL.AGE"));
+        assertEquals(-1, pool.indexOf("IT.DM.SEX"));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void decodesTheStringsUnchanged() {
+        StringPool pool = new StringPool(4);
+        int empty = pool.add("");
+        int accented = pool.add("\u00c2ge \u00e0 l'inclusion");
+        assertEquals("", pool.get(empty));
+        assertEquals("\u00c2ge \u00e0 l'inclusion", pool.get(accented));
+        // the same hash, different characters
+        int first = pool.add("Aa");
+        int second = pool.add("BB");
+        assertTrue(first != second);
+        assertEquals("Aa", pool.get(first));
+        assertEquals("BB", pool.get(second));
+    }
+
+    @Test
+    public void growsPastTheExpectedSize() {
+        StringPool pool = new StringPool(4);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, pool.add("IT.ADSL.V" + i));
+        }
+        assertEquals(10000, pool.size());
+        for (int i = 0; i < 10000; i += 997) {
+            assertEquals(i, pool.indexOf("IT.ADSL.V" + i));
+            assertEquals("IT.ADSL.V" + i, pool.get(i));
+        }
+    }
+
+    @Test
+    public void keepsAStringLongerThanAChunk() {
+        char[] text = new char[(1 << 20) + 10];
+        Arrays.fill(text, 'x');
+        String large = new String(text);
+        StringPool pool = new StringPool(4);
+        int before = pool.add("IT.DM.AGE");
+        int handle = pool.add(large);
+        int after = pool.add("IT.DM.SEX");
+        assertEquals(large, pool.get(handle));
+        assertEquals("IT.DM.AGE", pool.get(before));
+        assertEquals("IT.DM.SEX", pool.get(after));
+        assertEquals(handle, pool.indexOf(large));
+    }
+}
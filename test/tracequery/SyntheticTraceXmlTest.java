@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * SyntheticTraceXmlTest checks that the benchmark data set loads as a trace graph of the requested
+ * size, that each derived variable has fanOut sources, and that a seed generates the same data again.
+ * @version 0.1
+ */
+public class SyntheticTraceXmlTest {
+    private static final int NODES = 25;
+    private static final int FAN_OUT = 3;
+    private static final int DEPTH = 4;
+
+    @Test
+    public void writesTheFilesNamedInTheConfiguration() throws IOException {
+        File dir = TestConfig.directory();
+        File cfg = new SyntheticTraceXml(NODES, FAN_OUT, DEPTH, 1).generate(dir, null);
+        deleteOnExit(dir);
+        ConfigReader.loadConfigProperties(cfg.getPath());
+        assertEquals(SyntheticTraceXml.GRAPH_FILE, ConfigReader.getL3Graph());
+        XmlFileList list = new XmlFileList(dir.getPath() + File.separator);
+        assertEquals(Arrays.asList(SyntheticTraceXml.COLLECTION_FILE, SyntheticTraceXml.TABULATION_FILE,
+                SyntheticTraceXml.ANALYSIS_FILE), list.getReferences());
+        for (String reference : list.getReferences()) {
+            assertTrue(reference, list.resolve(reference).isFile());
+        }
+    }
+
+    @Test
+    public void loadsAGraphOfTheRequestedSize() throws IOException {
+        File dir = TestConfig.directory();
+        SyntheticTraceXml data = new SyntheticTraceXml(NODES, FAN_OUT, DEPTH, 1);
+        File cfg = data.generate(dir, null);
+        deleteOnExit(dir);
+        ConfigReader.loadConfigProperties(cfg.getPath());
+        CsrGraph graph = GraphMlLoader.load(new File(dir, SyntheticTraceXml.GRAPH_FILE));
+        int groups = (NODES + 9) / 10;
+        int forms = (groups + 3) / 4;
+        assertEquals(DEPTH * (NODES + groups) + forms, graph.nodeCount());
+        // form to group, group to variable and fanOut sources for each derived variable
+        assertEquals(groups + DEPTH * NODES + (DEPTH - 1) * NODES * FAN_OUT, graph.edgeCount());
+        assertEquals(NODES, data.getOids(DEPTH - 1).size());
+        for (int layer = 0; layer < data.getDepth(); layer++) {
+            for (String oid : data.getOids(layer)) {
+                int node = graph.indexOf(oid);
+                assertTrue(oid, node >= 0);
+                int sources = graph.inEnd(node) - graph.inStart(node);
+                assertEquals(oid, layer == 0 ? 1 : 1 + FAN_OUT, sources);
+            }
+        }
+    }
+
+    @Test
+    public void generatesTheSameDataForASeed() throws IOException {
+        File first = TestConfig.directory();
+        File second = TestConfig.directory();
+        new SyntheticTraceXml(NODES, FAN_OUT, DEPTH, 7).generate(first, null);
+        new SyntheticTraceXml(NODES, FAN_OUT, DEPTH, 7).generate(second, null);
+        deleteOnExit(first);
+        deleteOnExit(second);
+        for (String name : new String[] {SyntheticTraceXml.GRAPH_FILE, SyntheticTraceXml.COLLECTION_FILE,
+                SyntheticTraceXml.TABULATION_FILE, SyntheticTraceXml.ANALYSIS_FILE}) {
+            assertArrayEquals(name, Files.readAllBytes(new File(first, name).toPath()),
+                    Files.readAllBytes(new File(second, name).toPath()));
+        }
+    }
+
+    private static void deleteOnExit(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            file.deleteOnExit();
+        }
+    }
+}
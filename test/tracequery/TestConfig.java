@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TestConfig loads a configuration for the unit tests from properties given as key=value lines, so
+ * the tests read the settings the same way a run does.
+ * @version 0.1
+ */
+final class TestConfig {
+
+    private TestConfig() {
+    }
+
+    /**
+     * load writes the properties to a temporary configuration file and loads it
+     * @param properties String[] key=value lines, the settings not given take their defaults
+     * @throws IOException if the configuration file cannot be written
+     */
+    static void load(String... properties) throws IOException {
+        File file = File.createTempFile("trace-query", ".cfg");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (String property : properties) {
+                // properties files treat a backslash as an escape, as in a Windows path
+                out.write((property.replace("\\", "\\\\") + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        ConfigReader.loadConfigProperties(file.getPath());
+    }
+
+    /**
+     * directory returns a new empty temporary directory
+     * @return File of the directory, deleted with its files when the JVM exits
+     * @throws IOException if the temporary directory cannot be used
+     */
+    static File directory() throws IOException {
+        File directory = File.createTempFile("trace-query", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+}
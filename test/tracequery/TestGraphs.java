@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TestGraphs builds small in-memory graphs for the unit tests from edges given as pairs of node ids.
+ * @version 0.1
+ */
+final class TestGraphs {
+
+    private TestGraphs() {
+    }
+
+    /**
+     * graph builds a CsrGraph with the nodes in the order they are named and an edge for each pair
+     * @param nodeIds String[] ids of the nodes
+     * @param edges String[][] source and target id of each edge
+     * @return CsrGraph with the nodes and edges
+     */
+    static CsrGraph graph(String[] nodeIds, String[][] edges) {
+        NodeIdTable ids = new NodeIdTable(nodeIds.length);
+        for (String id : nodeIds) {
+            ids.add(id);
+        }
+        int[] sources = new int[edges.length];
+        int[] targets = new int[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            sources[i] = ids.indexOf(edges[i][0]);
+            targets[i] = ids.indexOf(edges[i][1]);
+        }
+        return new CsrGraph(ids, sources, targets, edges.length, "");
+    }
+
+    /**
+     * ids returns the sorted ids of the nodes read from a tracer after a trace
+     * @param tracer NodeTracer that ran the trace
+     * @param count int number of nodes in the trace
+     * @return List of the node ids in sorted order
+     */
+    static List<String> ids(NodeTracer tracer, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(tracer.getGraph().idOf(tracer.getNode(i)));
+        }
+        String[] sorted = ids.toArray(new String[ids.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    /**
+     * graphFile returns a new temporary file name for a graph, the lineage index is saved next to it
+     * @return File that does not exist yet and is deleted with its index when the JVM exits
+     * @throws IOException if the temporary directory cannot be used
+     */
+    static File graphFile() throws IOException {
+        File file = File.createTempFile("trace-graph", ".graphml");
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + LineageIndex.FILE_EXTENSION).deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * TraceCacheTest checks the least recently used eviction of both cache levels and that a new
+ * fingerprint leaves the old entries behind.
+ * @version 0.1
+ */
+public class TraceCacheTest {
+
+    @Test
+    public void evictsTheLeastRecentlyUsedTraceFromMemory() throws IOException {
+        TraceCache cache = new TraceCache("v1", 10, 0, TestConfig.directory());
+        cache.put("IT.A", Boolean.FALSE, "html", bytes("aaaa"));
+        cache.put("IT.B", Boolean.FALSE, "html", bytes("bbbb"));
+        // reading IT.A makes IT.B the least recently used
+        assertEquals("aaaa", string(cache.get("IT.A", Boolean.FALSE, "html")));
+        cache.put("IT.C", Boolean.FALSE, "html", bytes("cccc"));
+        assertNull(cache.get("IT.B", Boolean.FALSE, "html"));
+        assertEquals("aaaa", string(cache.get("IT.A", Boolean.FALSE, "html")));
+        assertEquals("cccc", string(cache.get("IT.C", Boolean.FALSE, "html")));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void keysTheTraceByFilterAndFormat() throws IOException {
+        TraceCache cache = new TraceCache("v1", 100, 0, TestConfig.directory());
+        cache.put("IT.A", Boolean.FALSE, "html", bytes("html"));
+        assertNull(cache.get("IT.A", Boolean.TRUE, "html"));
+        assertNull(cache.get("IT.A", Boolean.FALSE, "text"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedFileFromDisk() throws IOException {
+        File cacheDir = TestConfig.directory();
+        TraceCache cache = new TraceCache("v1", 0, 10, cacheDir);
+        cache.put("IT.A", Boolean.FALSE, "html", bytes("aaaaaa"));
+        File first = cacheDir.listFiles()[0];
+        first.deleteOnExit();
+        first.setLastModified(System.currentTimeMillis() - 60000);
+        cache.put("IT.B", Boolean.FALSE, "html", bytes("bbbbbb"));
+        for (File file : cacheDir.listFiles()) {
+            file.deleteOnExit();
+        }
+        assertEquals(1, cacheDir.listFiles().length);
+        assertNull(cache.get("IT.A", Boolean.FALSE, "html"));
+        assertEquals("bbbbbb", string(cache.get("IT.B", Boolean.FALSE, "html")));
+        assertEquals(1, cache.getDiskHits());
+    }
+
+    @Test
+    public void findsTheDiskEntriesOfAnEarlierRun() throws IOException {
+        File cacheDir = TestConfig.directory();
+        new TraceCache("v1", 0, 100, cacheDir).put("IT.A", Boolean.FALSE, "html", bytes("aaaa"));
+        for (File file : cacheDir.listFiles()) {
+            file.deleteOnExit();
+        }
+        assertEquals("aaaa", string(new TraceCache("v1", 0, 100, cacheDir).get("IT.A", Boolean.FALSE, "html")));
+        assertNull(new TraceCache("v2", 0, 100, cacheDir).get("IT.A", Boolean.FALSE, "html"));
+    }
+
+    @Test
+    public void fingerprintChangesWithTheSettings() throws IOException {
+        File graph = new File(TestConfig.directory(), "graph.graphml");
+        String java = TraceCache.fingerprint(Arrays.asList(graph), Collections.singletonList("engine=java"));
+        assertEquals(java, TraceCache.fingerprint(Arrays.asList(graph), Collections.singletonList("engine=java")));
+        assertNotEquals(java, TraceCache.fingerprint(Arrays.asList(graph), Collections.singletonList("engine=xquery")));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * TraceLimitsTest checks that the trace limits are read from the options, that invalid limits are
+ * rejected, and the page end and walk limit a bounded trace stops at.
+ * @version 0.1
+ */
+public class TraceLimitsTest {
+
+    @Test
+    public void readsTheOptions() {
+        assertSame(TraceLimits.NONE, TraceLimits.parse(null, null, null, null));
+        TraceLimits limits = TraceLimits.parse(TraceLimits.UPSTREAM, "2", " 10 ", "20");
+        assertTrue(limits.isUpstream());
+        assertFalse(limits.isDownstream());
+        assertEquals(2, limits.getMaxDepth());
+        assertEquals(10, limits.getMaxNodes());
+        assertEquals(20, limits.getCursor());
+        limits = TraceLimits.parse(null, null, "5", null);
+        assertEquals(TraceLimits.BOTH, limits.getDirection());
+        assertTrue(limits.isUpstream() && limits.isDownstream());
+    }
+
+    @Test
+    public void rejectsInvalidLimits() {
+        assertRejected(TraceLimits.BOTH, null, "-1", null);
+        assertRejected(TraceLimits.BOTH, "-2", null, null);
+        assertRejected(TraceLimits.BOTH, null, null, "-5");
+        assertRejected("sideways", null, null, null);
+        assertRejected(null, "two", null, null);
+    }
+
+    @Test
+    public void tellsABoundedTraceFromAPagedOne() {
+        assertFalse(TraceLimits.NONE.isBounded());
+        assertTrue(new TraceLimits(TraceLimits.DOWNSTREAM, 0, 0, 0).isBounded());
+        assertFalse(new TraceLimits(TraceLimits.DOWNSTREAM, 0, 0, 0).isPaged());
+        assertFalse(new TraceLimits(TraceLimits.BOTH, 3, 0, 0).isPaged());
+        assertTrue(new TraceLimits(TraceLimits.BOTH, 0, 10, 0).isPaged());
+        assertTrue(new TraceLimits(TraceLimits.BOTH, 0, 0, 10).isPaged());
+    }
+
+    @Test
+    public void walksOneNodePastThePage() {
+        TraceLimits limits = new TraceLimits(TraceLimits.BOTH, 0, 10, 20);
+        assertEquals(30, limits.getPageEnd());
+        assertEquals(31, limits.getWalkLimit());
+        assertEquals(Integer.MAX_VALUE, TraceLimits.NONE.getPageEnd());
+        assertEquals(Integer.MAX_VALUE, TraceLimits.NONE.getWalkLimit());
+        // a cursor without max-nodes pages to the end of the trace
+        assertEquals(Integer.MAX_VALUE, new TraceLimits(TraceLimits.BOTH, 0, 0, 20).getWalkLimit());
+        TraceLimits last = new TraceLimits(TraceLimits.BOTH, 0, Integer.MAX_VALUE, Integer.MAX_VALUE - 1);
+        assertEquals(Integer.MAX_VALUE, last.getPageEnd());
+        assertEquals(Integer.MAX_VALUE, last.getWalkLimit());
+    }
+
+    private static void assertRejected(String direction, String maxDepth, String maxNodes, String cursor) {
+        try {
+            TraceLimits.parse(direction, maxDepth, maxNodes, cursor);
+            fail("the limits " + direction + ", " + maxDepth + ", " + maxNodes + ", " + cursor + " were accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
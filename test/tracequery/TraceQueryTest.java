@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * TraceQueryTest checks how the batch mode reads the OIDs to trace and the variable OID prefix of oid=*.
+ * @version 0.1
+ */
+public class TraceQueryTest {
+
+    @Test
+    public void readsACommaSeparatedListOnce() {
+        assertEquals(Arrays.asList("IT.DM.AGE", "IT.DM.SEX"), TraceQuery.readOidList(" IT.DM.AGE, IT.DM.SEX,,IT.DM.AGE "));
+    }
+
+    @Test
+    public void readsAnOidFileSkippingCommentsAndBlankLines() throws IOException {
+        File file = File.createTempFile("oids", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.asList("# demographics", "IT.DM.AGE", "", "  IT.DM.SEX  ", "IT.DM.AGE"), 
+                StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("IT.DM.AGE", "IT.DM.SEX"), TraceQuery.readOidList(file.getPath()));
+    }
+
+    @Test
+    public void variableOidPrefixDefaultsToItemDefs() throws IOException {
+        TestConfig.load("xml-path=/data");
+        assertEquals("IT.", ConfigReader.getVariableOidPrefix());
+        TestConfig.load("xml-path=/data", "variable-oid-prefix=VAR.");
+        assertEquals("VAR.", ConfigReader.getVariableOidPrefix());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * TraceRendererTest checks that rendering a trace document once to several outputs gives the same
+ * html, text and xml as transforming it separately for each style sheet, from a stream and from a DOM.
+ * @version 0.1
+ */
+public class TraceRendererTest {
+    private static final String TRACE = "<trace oid=\"IT.ADSL.AGE\"><!-- nodes --><node oid=\"IT.DM.AGE\" type=\"ItemDef\">"
+            + "<name>Age &amp; units</name></node><node oid=\"IT.ADSL.AGE\" type=\"ItemDef\"><name>Age</name></node></trace>";
+    private static final String HTML_XSL = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:output method=\"html\"/><xsl:template match=\"/trace\"><html><body><h1><xsl:value-of select=\"@oid\"/></h1>"
+            + "<ul><xsl:for-each select=\"node\"><li><xsl:value-of select=\"name\"/></li></xsl:for-each></ul></body></html>"
+            + "</xsl:template></xsl:stylesheet>";
+    private static final String TEXT_XSL = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:output method=\"text\"/><xsl:template match=\"/trace\"><xsl:for-each select=\"node\">"
+            + "<xsl:value-of select=\"@oid\"/><xsl:text>&#9;</xsl:text><xsl:value-of select=\"name\"/>"
+            + "<xsl:text>&#10;</xsl:text></xsl:for-each></xsl:template></xsl:stylesheet>";
+
+    @Test
+    public void rendersEachOutputFromAStream() throws IOException, TransformerException {
+        assertRendersLikeSeparateTransforms(new StreamSource(new StringReader(TRACE)));
+    }
+
+    @Test
+    public void rendersEachOutputFromADom() throws IOException, TransformerException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            assertRendersLikeSeparateTransforms(new DOMSource(
+                    factory.newDocumentBuilder().parse(new InputSource(new StringReader(TRACE)))));
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new AssertionError(ex.getMessage());
+        }
+    }
+
+    @Test
+    public void failsForAStyleSheetThatDoesNotCompile() throws IOException {
+        File xsl = styleSheet("<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                + "<xsl:template match=\"/\"><xsl:value-of/></xsl:template></xsl:stylesheet>");
+        try {
+            new TraceRenderer().addOutput(xsl.getPath(), new ByteArrayOutputStream());
+            fail("the style sheet compiled");
+        } catch (TransformerException ex) {
+            // expected
+        }
+    }
+
+    private static void assertRendersLikeSeparateTransforms(Source source) throws IOException, TransformerException {
+        File htmlXsl = styleSheet(HTML_XSL);
+        File textXsl = styleSheet(TEXT_XSL);
+        ByteArrayOutputStream html = new ByteArrayOutputStream();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        TraceRenderer renderer = new TraceRenderer();
+        renderer.addOutput(htmlXsl.getPath(), html);
+        renderer.addOutput(textXsl.getPath(), text);
+        renderer.addOutput(null, xml);
+        renderer.render(source);
+        assertEquals(transform(htmlXsl), new String(html.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("IT.DM.AGE\tAge & units\nIT.ADSL.AGE\tAge\n", new String(text.toByteArray(), StandardCharsets.UTF_8));
+        String copy = new String(xml.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(copy, copy.endsWith(TRACE));
+    }
+
+    private static String transform(File xsl) throws TransformerException {
+        StringWriter out = new StringWriter();
+        TransformerFactory.newInstance().newTransformer(new StreamSource(xsl))
+                .transform(new StreamSource(new StringReader(TRACE)), new StreamResult(out));
+        return out.toString();
+    }
+
+    private static File styleSheet(String xsl) throws IOException {
+        File file = File.createTempFile("trace", ".xsl");
+        file.deleteOnExit();
+        Files.write(file.toPath(), xsl.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
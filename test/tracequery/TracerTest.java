@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * TracerTest checks the breadth-first graph walk with its direction, depth and page limits, and that the
+ * lineage index engine traces the same nodes as the graph walk, in each direction, through cycles and
+ * page by page in the same order.
+ * @version 0.1
+ */
+public class TracerTest {
+    private static final String[] NODES = {"IT.A", "IT.B", "IT.C", "IT.D", "IT.E", "IT.F", "IG.1", "F.1", "MT.1"};
+    private static final String[][] EDGES = {{"F.1", "IG.1"}, {"IG.1", "IT.A"}, {"IT.A", "IT.B"}, {"IT.B", "IT.C"}, 
+        {"IT.C", "IT.A"}, {"IT.C", "IT.D"}, {"MT.1", "IT.D"}, {"IT.D", "IT.E"}, {"IT.F", "IT.E"}};
+
+    @Test
+    public void graphTracerReportsEachNodeOnce() {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        GraphTracer tracer = new GraphTracer(graph);
+        // IT.A, IT.B and IT.C form a cycle so they are both upstream and downstream of IT.B
+        int count = tracer.trace(graph.indexOf("IT.B"), TraceLimits.NONE);
+        assertEquals(graph.indexOf("IT.B"), tracer.getNode(0));
+        assertEquals(Arrays.asList("F.1", "IG.1", "IT.A", "IT.B", "IT.C", "IT.D", "IT.E"), TestGraphs.ids(tracer, count));
+        assertFalse(tracer.isTruncated());
+    }
+
+    @Test
+    public void graphTracerWalksBreadthFirst() {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        GraphTracer tracer = new GraphTracer(graph);
+        int count = tracer.trace(graph.indexOf("IT.E"), TraceLimits.NONE);
+        // the nodes one hop away come before the nodes two hops away and so on
+        assertEquals(Arrays.asList("IT.E", "IT.D", "IT.F", "IT.C", "MT.1", "IT.B", "IT.A", "IG.1", "F.1"), order(tracer, count));
+    }
+
+    @Test
+    public void graphTracerWalksOneDirection() {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        GraphTracer tracer = new GraphTracer(graph);
+        int count = tracer.trace(graph.indexOf("IT.D"), new TraceLimits(TraceLimits.UPSTREAM, 0, 0, 0));
+        assertEquals(Arrays.asList("F.1", "IG.1", "IT.A", "IT.B", "IT.C", "IT.D", "MT.1"), TestGraphs.ids(tracer, count));
+        count = tracer.trace(graph.indexOf("IT.D"), new TraceLimits(TraceLimits.DOWNSTREAM, 0, 0, 0));
+        assertEquals(Arrays.asList("IT.D", "IT.E"), TestGraphs.ids(tracer, count));
+    }
+
+    @Test
+    public void graphTracerStopsAtTheMaxDepth() {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        GraphTracer tracer = new GraphTracer(graph);
+        int count = tracer.trace(graph.indexOf("IT.E"), new TraceLimits(TraceLimits.BOTH, 1, 0, 0));
+        assertEquals(Arrays.asList("IT.D", "IT.E", "IT.F"), TestGraphs.ids(tracer, count));
+        count = tracer.trace(graph.indexOf("IT.E"), new TraceLimits(TraceLimits.BOTH, 2, 0, 0));
+        assertEquals(Arrays.asList("IT.C", "IT.D", "IT.E", "IT.F", "MT.1"), TestGraphs.ids(tracer, count));
+        assertFalse(tracer.isTruncated());
+    }
+
+    @Test
+    public void graphTracerStopsOneNodePastThePage() {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        GraphTracer tracer = new GraphTracer(graph);
+        int count = tracer.trace(graph.indexOf("IT.E"), new TraceLimits(TraceLimits.BOTH, 0, 3, 0));
+        assertEquals(4, count);
+        assertTrue(tracer.isTruncated());
+        count = tracer.trace(graph.indexOf("IT.E"), new TraceLimits(TraceLimits.BOTH, 0, 3, 6));
+        // the last page ends with the last node, nothing is left for a next page
+        assertEquals(NODES.length, count);
+        assertFalse(tracer.isTruncated());
+    }
+
+    @Test
+    public void lineageTracerPagesInTheGraphTracerOrder() throws IOException {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        LineageIndex index = LineageIndex.open(TestGraphs.graphFile(), graph, "");
+        String[] directions = {TraceLimits.BOTH, TraceLimits.UPSTREAM, TraceLimits.DOWNSTREAM};
+        GraphTracer graphTracer = new GraphTracer(graph);
+        LineageTracer lineageTracer = new LineageTracer(index);
+        for (String direction : directions) {
+            for (int node = 0; node < graph.nodeCount(); node++) {
+                String id = graph.idOf(node);
+                List<String> walked = order(graphTracer, graphTracer.trace(node, new TraceLimits(direction, 0, 0, 0)));
+                List<String> graphPages = new ArrayList<>();
+                List<String> lineagePages = new ArrayList<>();
+                for (int cursor = 0; cursor < walked.size(); cursor += 2) {
+                    TraceLimits page = new TraceLimits(direction, 0, 2, cursor);
+                    int graphCount = Math.min(graphTracer.trace(node, page), page.getPageEnd());
+                    int lineageCount = Math.min(lineageTracer.trace(index.indexOf(id), page), page.getPageEnd());
+                    graphPages.addAll(order(graphTracer, graphCount).subList(cursor, graphCount));
+                    lineagePages.addAll(order(lineageTracer, lineageCount).subList(cursor, lineageCount));
+                    assertEquals(direction + " page at " + cursor + " of " + id, graphTracer.isTruncated(), 
+                            lineageTracer.isTruncated());
+                }
+                assertEquals(direction + " pages of " + id, walked, graphPages);
+                assertEquals(direction + " pages of " + id, walked, lineagePages);
+            }
+        }
+    }
+
+    @Test
+    public void lineageTracerMatchesGraphTracer() throws IOException {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        LineageIndex index = LineageIndex.open(TestGraphs.graphFile(), graph, "");
+        String[] directions = {TraceLimits.BOTH, TraceLimits.UPSTREAM, TraceLimits.DOWNSTREAM};
+        for (String direction : directions) {
+            TraceLimits limits = new TraceLimits(direction, 0, 0, 0);
+            for (int node = 0; node < graph.nodeCount(); node++) {
+                GraphTracer graphTracer = new GraphTracer(graph);
+                LineageTracer lineageTracer = new LineageTracer(index);
+                int graphCount = graphTracer.trace(node, limits);
+                int lineageCount = lineageTracer.trace(index.indexOf(graph.idOf(node)), limits);
+                assertEquals(direction + " trace of " + graph.idOf(node), TestGraphs.ids(graphTracer, graphCount), 
+                        TestGraphs.ids(lineageTracer, lineageCount));
+                assertFalse(lineageTracer.isTruncated());
+            }
+        }
+    }
+
+    @Test
+    public void lineageTracerStartsWithTheTracedNode() throws IOException {
+        CsrGraph graph = TestGraphs.graph(NODES, EDGES);
+        LineageIndex index = LineageIndex.open(TestGraphs.graphFile(), graph, "");
+        LineageTracer tracer = new LineageTracer(index);
+        int start = index.indexOf("IT.D");
+        int count = tracer.trace(start, TraceLimits.NONE);
+        assertEquals(start, tracer.getNode(0));
+        assertEquals(NODES.length - 1, count);
+    }
+
+    private static List<String> order(NodeTracer tracer, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(tracer.getGraph().idOf(tracer.getNode(i)));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Sam Hume.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tracequery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * XmlFileListTest checks that the L1 file references are read from the attributes and text of
+ * xml-files.xml, resolved against the xml-path, and replaced when the list is copied.
+ * @version 0.1
+ */
+public class XmlFileListTest {
+    private static final String LIST = "<files><file href=\"odm.xml\"/><file>define.xml</file>"
+            + "<file name=\"notes.txt\"/><file href=\"odm.xml\"/></files>";
+
+    @Test
+    public void readsEachReferenceOnce() throws IOException {
+        XmlFileList list = new XmlFileList(xmlPath(LIST));
+        assertEquals(Arrays.asList("odm.xml", "define.xml"), list.getReferences());
+    }
+
+    @Test
+    public void resolvesRelativeReferencesAgainstTheXmlPath() throws IOException {
+        String xmlPath = xmlPath(LIST);
+        XmlFileList list = new XmlFileList(xmlPath);
+        assertEquals(new File(xmlPath + "odm.xml"), list.resolve("odm.xml"));
+        File absolute = new File(xmlPath + "other.xml").getAbsoluteFile();
+        assertEquals(absolute, list.resolve(absolute.getPath()));
+    }
+
+    @Test
+    public void copiesTheListWithMappedReferences() throws IOException {
+        XmlFileList list = new XmlFileList(xmlPath(LIST));
+        String xml = list.toMappedXml(Collections.singletonMap("define.xml", "oid-subset/define.xml"));
+        assertTrue(xml, xml.contains("<file>oid-subset/define.xml</file>"));
+        assertTrue(xml, xml.contains("href=\"odm.xml\""));
+    }
+
+    private static String xmlPath(String list) throws IOException {
+        File directory = TestConfig.directory();
+        File file = new File(directory, XmlFileList.FILE_NAME);
+        file.deleteOnExit();
+        Files.write(file.toPath(), list.getBytes(StandardCharsets.UTF_8));
+        return directory.getPath() + File.separator;
+    }
+}